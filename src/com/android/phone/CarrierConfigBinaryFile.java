@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.util.AtomicFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary encoding of a carrier config {@link PersistableBundle}, used to cache configs on
+ * disk in place of XML.
+ *
+ * A file starts with a header holding a magic number, the format version, the number of top
+ * level keys, the payload length and a CRC32 of the payload. The payload starts with an index of
+ * the offsets of the top level entries, sorted by key, followed by the entries. Each entry is a
+ * key, a type tag and a value; nested bundles are written as a count followed by their entries,
+ * without an index.
+ *
+ * Files are written and read through {@link AtomicFile}, and read into memory in full since the
+ * checksum covers every byte. Once the checksum is verified, a single value can be looked up with a
+ * binary search over the index without decoding the other entries. A {@link PersistableBundle}
+ * cannot be backed by the file, so {@link #readAll} still decodes every key; what the format saves
+ * over XML is the parsing, not the decoding.
+ */
+public final class CarrierConfigBinaryFile {
+    private static final int MAGIC = 0x43434647; // "CCFG"
+    private static final int FORMAT_VERSION = 1;
+    // magic, format version, entry count, payload length, checksum.
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_BOOLEAN_ARRAY = 6;
+    private static final byte TYPE_INT_ARRAY = 7;
+    private static final byte TYPE_LONG_ARRAY = 8;
+    private static final byte TYPE_DOUBLE_ARRAY = 9;
+    private static final byte TYPE_STRING_ARRAY = 10;
+    private static final byte TYPE_BUNDLE = 11;
+
+    /** Thrown when a file is truncated, corrupt or of an unknown format. */
+    public static class InvalidFormatException extends IOException {
+        public InvalidFormatException(String message) {
+            super(message);
+        }
+    }
+
+    private final ByteBuffer mPayload;
+    private final int mEntryCount;
+
+    private CarrierConfigBinaryFile(ByteBuffer payload, int entryCount) {
+        mPayload = payload;
+        mEntryCount = entryCount;
+    }
+
+    /**
+     * Writes {@code config} to {@code file}, replacing it atomically.
+     * @throws IllegalArgumentException if the config holds a value of an unsupported type.
+     */
+    public static void write(@NonNull File file, @NonNull PersistableBundle config)
+            throws IOException {
+        String[] keys = config.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream entriesOut = new DataOutputStream(entries);
+        int[] offsets = new int[keys.length];
+        final int indexSize = 4 * keys.length;
+        for (int i = 0; i < keys.length; i++) {
+            offsets[i] = indexSize + entriesOut.size();
+            writeEntry(entriesOut, keys[i], config.get(keys[i]));
+        }
+        entriesOut.flush();
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(indexSize + entries.size());
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        for (int offset : offsets) {
+            payloadOut.writeInt(offset);
+        }
+        entries.writeTo(payloadOut);
+        payloadOut.flush();
+        byte[] payloadBytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes);
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = atomicFile.startWrite();
+        try {
+            DataOutputStream headerOut = new DataOutputStream(out);
+            headerOut.writeInt(MAGIC);
+            headerOut.writeInt(FORMAT_VERSION);
+            headerOut.writeInt(keys.length);
+            headerOut.writeInt(payloadBytes.length);
+            headerOut.writeLong(crc.getValue());
+            headerOut.write(payloadBytes);
+            headerOut.flush();
+            atomicFile.finishWrite(out);
+        } catch (IOException | RuntimeException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads {@code file} and verifies its header and checksum.
+     * @throws java.io.FileNotFoundException if the file does not exist.
+     * @throws InvalidFormatException if the file is not a valid config file.
+     */
+    public static CarrierConfigBinaryFile open(@NonNull File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(new AtomicFile(file).readFully());
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new InvalidFormatException("Not a carrier config file: " + file);
+        }
+        final int formatVersion = buffer.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new InvalidFormatException("Unsupported format version " + formatVersion);
+        }
+        final int entryCount = buffer.getInt();
+        final int payloadLength = buffer.getInt();
+        final long checksum = buffer.getLong();
+        if (entryCount < 0 || payloadLength != buffer.remaining()
+                || 4L * entryCount > payloadLength) {
+            throw new InvalidFormatException("Truncated carrier config file: " + file);
+        }
+        ByteBuffer payload = buffer.slice();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if (crc.getValue() != checksum) {
+            throw new InvalidFormatException("Checksum mismatch: " + file);
+        }
+        return new CarrierConfigBinaryFile(payload, entryCount);
+    }
+
+    /** @return the number of top level keys. */
+    public int size() {
+        return mEntryCount;
+    }
+
+    /**
+     * Decodes the value of a single top level key.
+     * @return the value, or null if the key is absent or its value is null.
+     */
+    @Nullable
+    public Object get(@NonNull String key) throws InvalidFormatException {
+        ByteBuffer buffer = mPayload.duplicate();
+        int low = 0;
+        int high = mEntryCount - 1;
+        try {
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                buffer.position(buffer.getInt(4 * mid));
+                int cmp = readString(buffer).compareTo(key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return readValue(buffer);
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NullPointerException e) {
+            throw new InvalidFormatException("Corrupt entry for key " + key);
+        }
+        return null;
+    }
+
+    /** Decodes every key into a new bundle. */
+    @NonNull
+    public PersistableBundle readAll() throws InvalidFormatException {
+        ByteBuffer buffer = mPayload.duplicate();
+        buffer.position(4 * mEntryCount);
+        try {
+            return readEntries(buffer, mEntryCount);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new InvalidFormatException("Corrupt carrier config file");
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, String key, Object value)
+            throws IOException {
+        writeString(out, key);
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(TYPE_BOOLEAN_ARRAY);
+            out.writeInt(array.length);
+            for (boolean b : array) out.writeBoolean(b);
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(TYPE_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int i : array) out.writeInt(i);
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(TYPE_LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long l : array) out.writeLong(l);
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            out.writeByte(TYPE_DOUBLE_ARRAY);
+            out.writeInt(array.length);
+            for (double d : array) out.writeDouble(d);
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String s : array) writeString(out, s);
+        } else if (value instanceof PersistableBundle) {
+            PersistableBundle bundle = (PersistableBundle) value;
+            out.writeByte(TYPE_BUNDLE);
+            out.writeInt(bundle.size());
+            for (String nestedKey : bundle.keySet()) {
+                writeEntry(out, nestedKey, bundle.get(nestedKey));
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported type for key " + key + ": "
+                    + value.getClass().getName());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static PersistableBundle readEntries(ByteBuffer buffer, int count) {
+        PersistableBundle bundle = new PersistableBundle(count);
+        for (int i = 0; i < count; i++) {
+            String key = readString(buffer);
+            putValue(bundle, key, readValue(buffer));
+        }
+        return bundle;
+    }
+
+    private static Object readValue(ByteBuffer buffer) {
+        final byte type = buffer.get();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_BOOLEAN:
+                return buffer.get() != 0;
+            case TYPE_INT:
+                return buffer.getInt();
+            case TYPE_LONG:
+                return buffer.getLong();
+            case TYPE_DOUBLE:
+                return buffer.getDouble();
+            case TYPE_STRING:
+                return readString(buffer);
+            case TYPE_BOOLEAN_ARRAY: {
+                boolean[] array = new boolean[readLength(buffer, 1)];
+                for (int i = 0; i < array.length; i++) array[i] = buffer.get() != 0;
+                return array;
+            }
+            case TYPE_INT_ARRAY: {
+                int[] array = new int[readLength(buffer, 4)];
+                for (int i = 0; i < array.length; i++) array[i] = buffer.getInt();
+                return array;
+            }
+            case TYPE_LONG_ARRAY: {
+                long[] array = new long[readLength(buffer, 8)];
+                for (int i = 0; i < array.length; i++) array[i] = buffer.getLong();
+                return array;
+            }
+            case TYPE_DOUBLE_ARRAY: {
+                double[] array = new double[readLength(buffer, 8)];
+                for (int i = 0; i < array.length; i++) array[i] = buffer.getDouble();
+                return array;
+            }
+            case TYPE_STRING_ARRAY: {
+                String[] array = new String[readLength(buffer, 4)];
+                for (int i = 0; i < array.length; i++) array[i] = readString(buffer);
+                return array;
+            }
+            case TYPE_BUNDLE:
+                return readEntries(buffer, readLength(buffer, 1));
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    /** Reads an element count, checking it against the bytes left in the buffer. */
+    private static int readLength(ByteBuffer buffer, int minElementSize) {
+        int length = buffer.getInt();
+        if (length < 0 || (long) length * minElementSize > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        return length;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) return null;
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putValue(PersistableBundle bundle, String key, Object value) {
+        if (value == null) {
+            bundle.putString(key, null);
+        } else if (value instanceof Boolean) {
+            bundle.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            bundle.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            bundle.putLong(key, (Long) value);
+        } else if (value instanceof Double) {
+            bundle.putDouble(key, (Double) value);
+        } else if (value instanceof String) {
+            bundle.putString(key, (String) value);
+        } else if (value instanceof boolean[]) {
+            bundle.putBooleanArray(key, (boolean[]) value);
+        } else if (value instanceof int[]) {
+            bundle.putIntArray(key, (int[]) value);
+        } else if (value instanceof long[]) {
+            bundle.putLongArray(key, (long[]) value);
+        } else if (value instanceof double[]) {
+            bundle.putDoubleArray(key, (double[]) value);
+        } else if (value instanceof String[]) {
+            bundle.putStringArray(key, (String[]) value);
+        } else if (value instanceof PersistableBundle) {
+            bundle.putPersistableBundle(key, (PersistableBundle) value);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.function.LongSupplier;
+
+/**
+ * Index of the config files {@link CarrierConfigLoader} caches, one per package, ICCID and
+ * carrier id a config was fetched for.
+ *
+ * The index remembers the package, size and last access time of each file, so that the files of
+ * a package are found without listing the directory, and so that the cache stays within a number
+ * of files and bytes by deleting the least recently used files. Files holding persistent
+ * overrides are never evicted, since they cannot be fetched again.
+ *
+ * The index is saved next to the files in the format of {@link CarrierConfigBinaryFile} whenever
+ * a file is added or removed, along with the access times recorded since. If it is missing, for
+ * example on the first boot with an index, it is rebuilt by listing the directory once. Thread
+ * safe.
+ */
+/* package */ final class CarrierConfigCacheIndex {
+    private static final String TAG = "CarrierConfigCacheIndex";
+
+    private static final String FILE_PREFIX = "carrierconfig-";
+    @VisibleForTesting
+    static final String INDEX_FILENAME = FILE_PREFIX + "index.bin";
+    // Files kept per slot by LastKnownGoodConfigStore, which bounds them itself.
+    private static final String LAST_KNOWN_GOOD_PREFIX = FILE_PREFIX + "lastknowngood-";
+    private static final String OVERRIDE_INFIX = "-override-";
+
+    private static final String KEY_PACKAGE = "package";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_ACCESS = "access";
+    private static final String KEY_PINNED = "pinned";
+
+    private static final class Entry {
+        final String packageName;
+        final boolean pinned;
+        long sizeBytes;
+        long accessMillis;
+
+        Entry(String packageName, boolean pinned, long sizeBytes, long accessMillis) {
+            this.packageName = packageName;
+            this.pinned = pinned;
+            this.sizeBytes = sizeBytes;
+            this.accessMillis = accessMillis;
+        }
+    }
+
+    private final File mDir;
+    private final int mMaxFiles;
+    private final long mMaxBytes;
+    private final LongSupplier mClock;
+    // Indexed by file name.
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+    private final ArrayMap<String, ArraySet<String>> mFilesByPackage = new ArrayMap<>();
+    private long mTotalBytes;
+    private int mEvictedFiles;
+    private boolean mLoaded;
+
+    CarrierConfigCacheIndex(@NonNull File dir, int maxFiles, long maxBytes) {
+        this(dir, maxFiles, maxBytes, System::currentTimeMillis);
+    }
+
+    @VisibleForTesting
+    CarrierConfigCacheIndex(@NonNull File dir, int maxFiles, long maxBytes, LongSupplier clock) {
+        mDir = dir;
+        mMaxFiles = maxFiles;
+        mMaxBytes = maxBytes;
+        mClock = clock;
+    }
+
+    /**
+     * Records that a file of the package was written, then deletes the least recently used files
+     * while the cache is over its limits.
+     * @param pinned whether the file must never be evicted.
+     */
+    synchronized void recordWrite(@NonNull String fileName, @NonNull String packageName,
+            boolean pinned) {
+        ensureLoaded();
+        removeEntry(fileName);
+        putEntry(fileName, new Entry(packageName, pinned, new File(mDir, fileName).length(),
+                mClock.getAsLong()));
+        evict(fileName);
+        save();
+    }
+
+    /**
+     * Records that a file was read. Reads are frequent, so the access time is only saved with the
+     * next change to the index, such as a write or an eviction.
+     */
+    synchronized void recordAccess(@NonNull String fileName) {
+        ensureLoaded();
+        Entry entry = mEntries.get(fileName);
+        if (entry != null) {
+            entry.accessMillis = mClock.getAsLong();
+        }
+    }
+
+    /** Deletes a file, whether or not it is indexed. */
+    synchronized void delete(@NonNull String fileName) {
+        ensureLoaded();
+        new File(mDir, fileName).delete();
+        if (removeEntry(fileName) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Deletes the files of a package.
+     * @return whether any file was deleted.
+     */
+    synchronized boolean deletePackage(@NonNull String packageName) {
+        ensureLoaded();
+        ArraySet<String> files = mFilesByPackage.get(packageName);
+        if (files == null) {
+            return false;
+        }
+        for (String fileName : new ArraySet<>(files)) {
+            Log.d(TAG, "Deleting " + fileName);
+            new File(mDir, fileName).delete();
+            removeEntry(fileName);
+        }
+        save();
+        return true;
+    }
+
+    /** Forgets every file, after the caller deleted them. */
+    synchronized void clear() {
+        mEntries.clear();
+        mFilesByPackage.clear();
+        mTotalBytes = 0;
+        mLoaded = true;
+        save();
+    }
+
+    synchronized int getFileCount() {
+        ensureLoaded();
+        return mEntries.size();
+    }
+
+    synchronized long getTotalBytes() {
+        ensureLoaded();
+        return mTotalBytes;
+    }
+
+    synchronized void dump(IndentingPrintWriter pw) {
+        ensureLoaded();
+        pw.println("Config cache: " + mEntries.size() + " files, " + mTotalBytes + " bytes (max "
+                + mMaxFiles + " files, " + mMaxBytes + " bytes), " + mEvictedFiles
+                + " evicted since boot");
+    }
+
+    /**
+     * Deletes the least recently used files that are not pinned until the cache is within its
+     * limits, never deleting {@code keepFileName}.
+     */
+    private void evict(String keepFileName) {
+        while (mEntries.size() > mMaxFiles || mTotalBytes > mMaxBytes) {
+            String oldest = null;
+            long oldestMillis = Long.MAX_VALUE;
+            for (int i = 0; i < mEntries.size(); i++) {
+                Entry entry = mEntries.valueAt(i);
+                String fileName = mEntries.keyAt(i);
+                if (!entry.pinned && !fileName.equals(keepFileName)
+                        && entry.accessMillis < oldestMillis) {
+                    oldest = fileName;
+                    oldestMillis = entry.accessMillis;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            Log.d(TAG, "Evicting " + oldest);
+            new File(mDir, oldest).delete();
+            removeEntry(oldest);
+            mEvictedFiles++;
+        }
+    }
+
+    private void putEntry(String fileName, Entry entry) {
+        mEntries.put(fileName, entry);
+        ArraySet<String> files = mFilesByPackage.get(entry.packageName);
+        if (files == null) {
+            files = new ArraySet<>();
+            mFilesByPackage.put(entry.packageName, files);
+        }
+        files.add(fileName);
+        mTotalBytes += entry.sizeBytes;
+    }
+
+    @Nullable
+    private Entry removeEntry(String fileName) {
+        Entry entry = mEntries.remove(fileName);
+        if (entry == null) {
+            return null;
+        }
+        ArraySet<String> files = mFilesByPackage.get(entry.packageName);
+        files.remove(fileName);
+        if (files.isEmpty()) {
+            mFilesByPackage.remove(entry.packageName);
+        }
+        mTotalBytes -= entry.sizeBytes;
+        return entry;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File indexFile = new File(mDir, INDEX_FILENAME);
+        try {
+            PersistableBundle index = CarrierConfigBinaryFile.open(indexFile).readAll();
+            for (String fileName : index.keySet()) {
+                PersistableBundle b = index.getPersistableBundle(fileName);
+                putEntry(fileName, new Entry(b.getString(KEY_PACKAGE), b.getBoolean(KEY_PINNED),
+                        b.getLong(KEY_SIZE), b.getLong(KEY_ACCESS)));
+            }
+            return;
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No index, listing cached configs");
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Rebuilding unreadable index: " + e);
+            mEntries.clear();
+            mFilesByPackage.clear();
+            mTotalBytes = 0;
+        }
+        rebuild();
+        evict(null);
+        save();
+    }
+
+    /** Indexes the cached config files in the directory, as if they were just read. */
+    private void rebuild() {
+        File[] files = mDir.listFiles((dir, name) -> name.startsWith(FILE_PREFIX)
+                && !name.startsWith(LAST_KNOWN_GOOD_PREFIX) && !name.equals(INDEX_FILENAME));
+        if (files == null) {
+            return;
+        }
+        long now = mClock.getAsLong();
+        for (File file : files) {
+            String name = file.getName();
+            // Names are carrierconfig-<package>[-override]-<iccid>-<carrier id> or
+            // carrierconfig-<package>-nosim, and package names cannot contain dashes.
+            int end = name.indexOf('-', FILE_PREFIX.length());
+            if (end < 0) {
+                continue;
+            }
+            putEntry(name, new Entry(name.substring(FILE_PREFIX.length(), end),
+                    name.contains(OVERRIDE_INFIX), file.length(), now));
+        }
+    }
+
+    private void save() {
+        PersistableBundle index = new PersistableBundle();
+        for (int i = 0; i < mEntries.size(); i++) {
+            Entry entry = mEntries.valueAt(i);
+            PersistableBundle b = new PersistableBundle();
+            b.putString(KEY_PACKAGE, entry.packageName);
+            b.putBoolean(KEY_PINNED, entry.pinned);
+            b.putLong(KEY_SIZE, entry.sizeBytes);
+            b.putLong(KEY_ACCESS, entry.accessMillis);
+            index.putPersistableBundle(mEntries.keyAt(i), b);
+        }
+        try {
+            CarrierConfigBinaryFile.write(new File(mDir, INDEX_FILENAME), index);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save index: " + e);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Intent;
+import android.os.PersistableBundle;
+import android.util.ArraySet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Computes which keys differ between two carrier configs, so that components interested in a few
+ * keys can skip work when a config change left those keys alone.
+ */
+public final class CarrierConfigDiff {
+    /**
+     * Extra of {@link android.telephony.CarrierConfigManager#ACTION_CARRIER_CONFIG_CHANGED}
+     * holding the keys whose value changed since the previous broadcast for the slot, as a string
+     * array. It is only included when the previous config of the same subscription is known and
+     * the number of changed keys is small; without it every key may have changed.
+     */
+    public static final String EXTRA_CHANGED_KEYS =
+            "com.android.phone.extra.CHANGED_CARRIER_CONFIG_KEYS";
+
+    private CarrierConfigDiff() {
+    }
+
+    /**
+     * @return the keys that were added, removed or whose value changed between the two configs.
+     * Array values and nested bundles are compared by content.
+     */
+    @NonNull
+    public static Set<String> diff(@NonNull PersistableBundle oldConfig,
+            @NonNull PersistableBundle newConfig) {
+        Set<String> changed = new ArraySet<>();
+        for (String key : newConfig.keySet()) {
+            if (!oldConfig.containsKey(key)
+                    || !valueEquals(oldConfig.get(key), newConfig.get(key))) {
+                changed.add(key);
+            }
+        }
+        for (String key : oldConfig.keySet()) {
+            if (!newConfig.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return whether any of the keys may have changed according to a config changed broadcast,
+     * which is the case unless the broadcast lists the changed keys and none of them is given.
+     * With no keys given, whether anything may have changed.
+     */
+    public static boolean mayHaveChanged(@NonNull Intent intent, String... keys) {
+        String[] changedKeys = intent.getStringArrayExtra(EXTRA_CHANGED_KEYS);
+        if (changedKeys == null) {
+            return true;
+        }
+        if (keys.length == 0) {
+            return changedKeys.length > 0;
+        }
+        for (String changedKey : changedKeys) {
+            for (String key : keys) {
+                if (key.equals(changedKey)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether a change of {@code changedKeys} is relevant to a component interested in
+     * {@code keys}. Either may be null, meaning every key.
+     */
+    static boolean intersects(@Nullable Set<String> changedKeys, @Nullable Set<String> keys) {
+        if (changedKeys == null) {
+            return true;
+        }
+        if (keys == null) {
+            return !changedKeys.isEmpty();
+        }
+        return !Collections.disjoint(changedKeys, keys);
+    }
+
+    private static boolean valueEquals(@Nullable Object a, @Nullable Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.getClass() != b.getClass()) {
+            return false;
+        }
+        if (a instanceof PersistableBundle) {
+            return diff((PersistableBundle) a, (PersistableBundle) b).isEmpty();
+        } else if (a instanceof int[]) {
+            return Arrays.equals((int[]) a, (int[]) b);
+        } else if (a instanceof long[]) {
+            return Arrays.equals((long[]) a, (long[]) b);
+        } else if (a instanceof double[]) {
+            return Arrays.equals((double[]) a, (double[]) b);
+        } else if (a instanceof boolean[]) {
+            return Arrays.equals((boolean[]) a, (boolean[]) b);
+        } else if (a instanceof String[]) {
+            return Arrays.equals((String[]) a, (String[]) b);
+        }
+        return Objects.equals(a, b);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.io.PrintWriter;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks the config loads {@link CarrierConfigLoader} runs for each phone.
+ *
+ * A load has a phase for the config from the default app and, when the phone has a carrier app,
+ * a phase for the config from the carrier app. The phases run concurrently, and the tracker tells
+ * the loader when the last of them has finished so that the subscription is updated, and the
+ * config change broadcast, once per load. It also records how long each phase took.
+ *
+ * Every step of a phase, such as binding to the app or a timeout, is recorded with the time since
+ * the previous step of the phase in a fixed size timeline shared by all phones, and in a histogram
+ * per step across the loads since boot, so that the time a load takes can be broken down.
+ *
+ * Every load is identified by a sequence number. A phase finishing for a load that has since been
+ * cleared or restarted is ignored. Loads are only tracked on the loader's handler, but the
+ * timeline can be exported from any thread.
+ */
+/* package */ final class CarrierConfigFetchTracker {
+    static final int PHASE_DEFAULT = 0;
+    static final int PHASE_CARRIER = 1;
+    private static final int PHASE_COUNT = 2;
+    // Phase of the timeline events about the load as a whole.
+    private static final int PHASE_LOAD = PHASE_COUNT;
+
+    // How a phase ended.
+    static final int RESULT_NONE = 0;
+    static final int RESULT_CACHE = 1;
+    static final int RESULT_FETCHED = 2;
+    static final int RESULT_FAILED = 3;
+
+    // Steps of a phase, each recorded with the time since the previous step of the phase.
+    /** The cache of the app was looked up. */
+    static final int STEP_LOOKUP = 0;
+    /** Nothing was cached, so the loader started binding to the app. */
+    static final int STEP_BIND = 1;
+    /** The app was bound and asked for its config. */
+    static final int STEP_CONNECTED = 2;
+    static final int STEP_BIND_TIMEOUT = 3;
+    static final int STEP_FETCH_TIMEOUT = 4;
+    // Recorded by finish(), with the result of the phase.
+    private static final int STEP_DONE = 5;
+    // Steps of the load as a whole, each recorded with the time since the load started.
+    private static final int STEP_START = 6;
+    private static final int STEP_COMPLETE = 7;
+    private static final int STEP_BROADCAST = 8;
+    private static final int STEP_COUNT = 9;
+
+    private static final String[] PHASE_NAMES = {"default", "carrier", "load"};
+    private static final String[] RESULT_NAMES = {"none", "cache", "fetched", "failed"};
+    private static final String[] STEP_NAMES = {"lookup", "bind", "connected", "bind_timeout",
+            "fetch_timeout", "done", "start", "complete", "broadcast"};
+
+    @VisibleForTesting
+    static final int TIMELINE_CAPACITY = 256;
+
+    private static final class Load {
+        int sequence;
+        // Bitmask of the phases that have not finished yet.
+        int pendingPhases;
+        long startMillis;
+        // Time from the start of the load until each phase finished.
+        final long[] phaseMillis = new long[PHASE_COUNT];
+        final int[] phaseResults = new int[PHASE_COUNT];
+        // When the last step of each phase was recorded, and the app it was about.
+        final long[] lastStepMillis = new long[PHASE_COUNT];
+        final String[] phasePackages = new String[PHASE_COUNT];
+        // Time from the start of the load until its last phase finished, or -1 while loading.
+        long totalMillis = -1;
+        boolean broadcastRecorded;
+    }
+
+    /** An entry of the timeline, reused once the timeline wraps around. */
+    private static final class Event {
+        long elapsedMillis;
+        int phoneId;
+        int sequence;
+        int phase;
+        int step;
+        String packageName;
+        int result;
+        long durationMillis;
+    }
+
+    private final Load[] mLoads;
+    private final LongSupplier mClock;
+    private final LatencyHistogram mTimeToConfig = new LatencyHistogram();
+    // Indexed by phase, then step.
+    private final LatencyHistogram[][] mStepLatency =
+            new LatencyHistogram[PHASE_COUNT + 1][STEP_COUNT];
+    private final Event[] mTimeline = new Event[TIMELINE_CAPACITY];
+    private int mTimelineNext;
+    private int mTimelineSize;
+
+    CarrierConfigFetchTracker(int numPhones) {
+        this(numPhones, SystemClock::elapsedRealtime);
+    }
+
+    @VisibleForTesting
+    CarrierConfigFetchTracker(int numPhones, LongSupplier clock) {
+        mLoads = new Load[numPhones];
+        for (int i = 0; i < numPhones; i++) {
+            mLoads[i] = new Load();
+        }
+        mClock = clock;
+        for (int phase = 0; phase < mStepLatency.length; phase++) {
+            for (int step = 0; step < STEP_COUNT; step++) {
+                mStepLatency[phase][step] = new LatencyHistogram();
+            }
+        }
+        for (int i = 0; i < TIMELINE_CAPACITY; i++) {
+            mTimeline[i] = new Event();
+        }
+    }
+
+    /**
+     * Starts a load of the phone, superseding any load still running.
+     * @param fetchCarrier whether the load has a phase for the carrier app.
+     * @return the sequence number of the load.
+     */
+    synchronized int start(int phoneId, boolean fetchCarrier) {
+        Load load = mLoads[phoneId];
+        load.sequence++;
+        load.pendingPhases = (1 << PHASE_DEFAULT) | (fetchCarrier ? 1 << PHASE_CARRIER : 0);
+        load.startMillis = mClock.getAsLong();
+        load.totalMillis = -1;
+        load.broadcastRecorded = false;
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            load.phaseMillis[phase] = 0;
+            load.phaseResults[phase] = RESULT_NONE;
+            load.lastStepMillis[phase] = load.startMillis;
+            load.phasePackages[phase] = null;
+        }
+        record(load.startMillis, phoneId, load.sequence, PHASE_LOAD, STEP_START, null,
+                RESULT_NONE, 0);
+        return load.sequence;
+    }
+
+    /**
+     * Records a step of a phase of a load, if the phase has yet to finish.
+     * @param packageName the app the step is about, remembered for the later steps of the phase.
+     */
+    synchronized void step(int phoneId, int sequence, int phase, int step,
+            @Nullable String packageName) {
+        if (!isPending(phoneId, sequence, phase)) {
+            return;
+        }
+        Load load = mLoads[phoneId];
+        if (packageName != null) {
+            load.phasePackages[phase] = packageName;
+        }
+        recordStep(load, phoneId, phase, step, RESULT_NONE);
+    }
+
+    /**
+     * Records that the config of the phone was broadcast, if that is the first broadcast since
+     * its last load completed.
+     */
+    synchronized void broadcast(int phoneId) {
+        Load load = mLoads[phoneId];
+        if (load.totalMillis < 0 || load.broadcastRecorded) {
+            return;
+        }
+        load.broadcastRecorded = true;
+        long now = mClock.getAsLong();
+        record(now, phoneId, load.sequence, PHASE_LOAD, STEP_BROADCAST, null, RESULT_NONE,
+                now - load.startMillis);
+    }
+
+    /** Abandons the load of the phone still running, if any. */
+    synchronized void cancel(int phoneId) {
+        Load load = mLoads[phoneId];
+        load.sequence++;
+        load.pendingPhases = 0;
+    }
+
+    /** @return whether the phase of the given load has yet to finish. */
+    synchronized boolean isPending(int phoneId, int sequence, int phase) {
+        Load load = mLoads[phoneId];
+        return load.sequence == sequence && (load.pendingPhases & (1 << phase)) != 0;
+    }
+
+    /**
+     * Records that a phase of a load has finished.
+     * @return whether that was the last phase of a load that is still current, in which case the
+     * load is complete.
+     */
+    synchronized boolean finish(int phoneId, int sequence, int phase, int result) {
+        if (!isPending(phoneId, sequence, phase)) {
+            return false;
+        }
+        Load load = mLoads[phoneId];
+        long now = recordStep(load, phoneId, phase, STEP_DONE, result);
+        load.phaseMillis[phase] = now - load.startMillis;
+        load.phaseResults[phase] = result;
+        load.pendingPhases &= ~(1 << phase);
+        if (load.pendingPhases != 0) {
+            return false;
+        }
+        load.totalMillis = now - load.startMillis;
+        mTimeToConfig.recordMillis(load.totalMillis);
+        record(now, phoneId, sequence, PHASE_LOAD, STEP_COMPLETE, null, RESULT_NONE,
+                load.totalMillis);
+        return true;
+    }
+
+    /** @return the time the last complete load of the phone took, or -1 if there is none. */
+    synchronized long getTotalMillis(int phoneId) {
+        return mLoads[phoneId].totalMillis;
+    }
+
+    /**
+     * @return how the phase of the last load of the phone ended, {@link #RESULT_NONE} if it did
+     * not run or has not finished.
+     */
+    synchronized int getPhaseResult(int phoneId, int phase) {
+        return mLoads[phoneId].phaseResults[phase];
+    }
+
+    synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("Config loads: time to config " + mTimeToConfig.toSummaryString());
+        pw.increaseIndent();
+        for (int i = 0; i < mLoads.length; i++) {
+            Load load = mLoads[i];
+            StringBuilder sb = new StringBuilder("phone ").append(i).append(':');
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                sb.append(' ').append(PHASE_NAMES[phase]).append('=');
+                if ((load.pendingPhases & (1 << phase)) != 0) {
+                    sb.append("pending");
+                } else if (load.phaseResults[phase] == RESULT_NONE) {
+                    sb.append('-');
+                } else {
+                    sb.append(load.phaseMillis[phase]).append("ms(")
+                            .append(RESULT_NAMES[load.phaseResults[phase]]).append(')');
+                }
+            }
+            sb.append(" total=").append(load.totalMillis < 0 ? "-" : load.totalMillis + "ms");
+            pw.println(sb.toString());
+        }
+        pw.println("Timeline: " + mTimelineSize + " events, use cc load-timeline to export");
+        pw.decreaseIndent();
+    }
+
+    /**
+     * Prints the timeline, oldest event first, then the latency percentiles of each step, as
+     * comma separated values. Times are in milliseconds of elapsed realtime, percentiles are
+     * the upper bounds in milliseconds of the histogram buckets holding them.
+     */
+    synchronized void exportTimeline(PrintWriter pw) {
+        pw.println("type,elapsed_ms,phone,sequence,phase,step,package,result,duration_ms");
+        for (int i = 0; i < mTimelineSize; i++) {
+            Event event = mTimeline[(mTimelineNext - mTimelineSize + i + TIMELINE_CAPACITY)
+                    % TIMELINE_CAPACITY];
+            pw.println("event," + event.elapsedMillis + "," + event.phoneId + ","
+                    + event.sequence + "," + PHASE_NAMES[event.phase] + ","
+                    + STEP_NAMES[event.step] + ","
+                    + (event.packageName == null ? "" : event.packageName) + ","
+                    + RESULT_NAMES[event.result] + "," + event.durationMillis);
+        }
+        pw.println("type,phase,step,count,p50_ms,p90_ms,p99_ms");
+        for (int phase = 0; phase < mStepLatency.length; phase++) {
+            for (int step = 0; step < STEP_COUNT; step++) {
+                LatencyHistogram histogram = mStepLatency[phase][step];
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                pw.println("latency," + PHASE_NAMES[phase] + "," + STEP_NAMES[step] + ","
+                        + histogram.getCount() + ","
+                        + formatPercentile(histogram, 50) + ","
+                        + formatPercentile(histogram, 90) + ","
+                        + formatPercentile(histogram, 99));
+            }
+        }
+    }
+
+    /** Records a step of a phase with the time since its previous step. @return the time. */
+    private long recordStep(Load load, int phoneId, int phase, int step, int result) {
+        long now = mClock.getAsLong();
+        record(now, phoneId, load.sequence, phase, step, load.phasePackages[phase], result,
+                now - load.lastStepMillis[phase]);
+        load.lastStepMillis[phase] = now;
+        return now;
+    }
+
+    private void record(long now, int phoneId, int sequence, int phase, int step,
+            @Nullable String packageName, int result, long durationMillis) {
+        Event event = mTimeline[mTimelineNext];
+        event.elapsedMillis = now;
+        event.phoneId = phoneId;
+        event.sequence = sequence;
+        event.phase = phase;
+        event.step = step;
+        event.packageName = packageName;
+        event.result = result;
+        event.durationMillis = durationMillis;
+        mTimelineNext = (mTimelineNext + 1) % TIMELINE_CAPACITY;
+        mTimelineSize = Math.min(mTimelineSize + 1, TIMELINE_CAPACITY);
+        if (step != STEP_START) {
+            mStepLatency[phase][step].recordMillis(durationMillis);
+        }
+    }
+
+    private static String formatPercentile(LatencyHistogram histogram, int percentile) {
+        long micros = histogram.getPercentileMicros(percentile);
+        return micros == Long.MAX_VALUE ? "inf" : Long.toString(micros / 1000);
+    }
+}
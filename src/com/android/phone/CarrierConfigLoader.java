@@ -43,6 +43,7 @@ import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
+import android.provider.DeviceConfig;
 import android.service.carrier.CarrierIdentifier;
 import android.service.carrier.CarrierService;
 import android.service.carrier.ICarrierService;
@@ -51,6 +52,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyFrameworkInitializer;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
@@ -58,9 +60,13 @@ import android.util.Log;
 import com.android.internal.telephony.ICarrierConfigLoader;
 import com.android.internal.telephony.IccCardConstants;
 import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.SubscriptionInfoUpdater;
 import com.android.internal.telephony.TelephonyPermissions;
+import com.android.internal.telephony.uicc.IccUtils;
+import com.android.internal.telephony.uicc.UiccController;
+import com.android.internal.telephony.uicc.UiccSlot;
 import com.android.internal.telephony.util.ArrayUtils;
 import com.android.internal.util.IndentingPrintWriter;
 
@@ -68,7 +74,6 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -77,6 +82,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * CarrierConfigLoader binds to privileged carrier apps to fetch carrier config overlays.
@@ -84,6 +92,22 @@ import java.util.Set;
 public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private static final String LOG_TAG = "CarrierConfigLoader";
 
+    /**
+     * Experiment flag to serve the config a SIM had when it was last loaded while it is loaded
+     * again, default value is false. Read once at startup.
+     */
+    public static final String CARRIER_CONFIG_WARM_START_ENABLED =
+            "carrier_config_warm_start_enabled";
+
+    /**
+     * Experiment flags bounding the number of config files and the bytes cached on disk, the
+     * least recently used files are deleted beyond them. Read once at startup.
+     */
+    public static final String CARRIER_CONFIG_CACHE_MAX_FILES = "carrier_config_cache_max_files";
+    public static final String CARRIER_CONFIG_CACHE_MAX_BYTES = "carrier_config_cache_max_bytes";
+    private static final int DEFAULT_CACHE_MAX_FILES = 24;
+    private static final long DEFAULT_CACHE_MAX_BYTES = 1024 * 1024;
+
     // Package name for platform carrier config app, bundled with system image.
     private final String mPlatformCarrierConfigPackage;
 
@@ -101,14 +125,44 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private PersistableBundle[] mOverrideConfigs;
     // Carrier configs to override code default when there is no SIM inserted
     private PersistableBundle mNoSimConfig;
-    // Service connection for binding to config app.
+    // Merged configs handed out by getConfigForSubId, indexed by phoneID. Each is merged again
+    // only once one of its layers has changed.
+    private MergedCarrierConfig[] mMergedConfigs;
+    // Merged config handed out when there is no SIM inserted.
+    private MergedCarrierConfig mMergedNoSimConfig;
+    // Incremented whenever a layer is modified in place rather than replaced.
+    private final AtomicLong mConfigGeneration = new AtomicLong();
+    // Service connection for fetching from the default config app.
     private CarrierServiceConnection[] mServiceConnection;
+    // Service connection for fetching from the carrier config app.
+    private CarrierServiceConnection[] mCarrierServiceConnection;
     // Service connection for binding to carrier config app for no SIM config.
     private CarrierServiceConnection[] mServiceConnectionForNoSimConfig;
-    // Whether we are bound to a service for each phone
-    private boolean[] mServiceBound;
-    // Whether we are bound to a service for no SIM config
-    private boolean[] mServiceBoundForNoSimConfig;
+    // Bindings to config apps, keyed by package. Fetches from the same package share a binding.
+    private final ArrayMap<String, SharedServiceBinding> mSharedBindings = new ArrayMap<>();
+    // Tracks the default and carrier phases of the config load of each phone.
+    private CarrierConfigFetchTracker mFetchTracker;
+    // The merged config and subscription of each phone as of its last config change broadcast,
+    // which the config at the next broadcast is diffed against.
+    private MergedCarrierConfig[] mLastBroadcastConfigs;
+    private int[] mLastBroadcastSubIds;
+    // The keys that changed at the last broadcast of each phone, for dump.
+    private String[] mLastChangedKeys;
+    // Whether to serve the last known good config of a SIM until it is loaded, see
+    // CARRIER_CONFIG_WARM_START_ENABLED.
+    private final boolean mWarmStartEnabled;
+    // Index of the cached config files, bounding their number and size.
+    private CarrierConfigCacheIndex mCacheIndex;
+    // The config of each slot as of its last load, keyed by ICCID.
+    private LastKnownGoodConfigStore mLastKnownGoodStore;
+    // The last known good config served for each phone until its load completes, or null.
+    private PersistableBundle[] mLastKnownGoodConfigs;
+    // Whether the last broadcast of each phone was for its last known good config, in which case
+    // the next broadcast is diffed against it although the subscription was not known.
+    private boolean[] mLastBroadcastProvisional;
+    // Components of the phone process listening to config changes.
+    private final List<ConfigChangeListenerRecord> mConfigChangeListeners =
+            new CopyOnWriteArrayList<>();
     // Whether we have sent config change broadcast for each phone id.
     private boolean[] mHasSentConfigChange;
     // Whether the broadcast was sent from EVENT_SYSTEM_UNLOCKED, to track rebroadcasts
@@ -120,6 +174,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private final BroadcastReceiver mBootReceiver = new ConfigLoaderBroadcastReceiver();
     // Broadcast receiver for SIM and pkg intents, register intent filter in constructor.
     private final BroadcastReceiver mPackageReceiver = new ConfigLoaderBroadcastReceiver();
+    // Broadcast receiver for SIM state intents, only registered if warm start is enabled.
+    private final BroadcastReceiver mSimStateReceiver = new ConfigLoaderBroadcastReceiver();
     private final LocalLog mCarrierConfigLoadingLog = new LocalLog(100);
 
 
@@ -166,9 +222,14 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private static final int EVENT_BIND_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT = 21;
     // Fetching config timed out from the default app for no SIM config.
     private static final int EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT = 22;
+    // The ICCID of a SIM may be known, serve its last known good config until it is loaded.
+    private static final int EVENT_WARM_START = 23;
 
     private static final int BIND_TIMEOUT_MILLIS = 30000;
 
+    // Above this many changed keys, the broadcast does not list them.
+    private static final int MAX_CHANGED_KEYS_IN_BROADCAST = 64;
+
     // Keys used for saving and restoring config bundle from file.
     private static final String KEY_VERSION = "__carrier_config_package_version__";
 
@@ -185,18 +246,22 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     // Handler to process various events.
     //
-    // For each phoneId, the event sequence should be:
-    //     fetch default, connected to default, fetch default (async), fetch default done,
+    // For each phoneId, a load runs two phases concurrently, with the event sequences:
+    //     fetch default, connected to default, fetch default (async), fetch default done;
     //     fetch carrier, connected to carrier, fetch carrier (async), fetch carrier done.
+    // The carrier phase only runs if the phone has a carrier app. The load completes once both
+    // phases are done, see CarrierConfigFetchTracker. The layers are always merged in the same
+    // order, whichever phase finishes first.
     //
     // If there is a saved config file for either the default app or the carrier app, we skip
     // binding to the app and go straight from fetch to loaded.
     //
-    // At any time, at most one connection is active. If events are not in this order, previous
-    // connection will be unbound, so only latest event takes effect.
+    // At any time, at most one connection per phase is active. If events are not in this order,
+    // previous connection will be unbound, so only latest event takes effect. Connections to the
+    // same package, for any phone, share a single binding.
     //
     // We broadcast ACTION_CARRIER_CONFIG_CHANGED after:
-    // 1. loading from carrier app (even if read from a file)
+    // 1. loading from carrier app (even if read from a file), once the default phase is done
     // 2. loading from default app if there is no carrier app (even if read from a file)
     // 3. clearing config (e.g. due to sim removal)
     // 4. encountering bind or IPC error
@@ -247,6 +312,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 }
 
                 case EVENT_DO_FETCH_DEFAULT: {
+                    // The carrier app is found from the access rules on the SIM rather than from
+                    // the default config, so its config is fetched alongside the default config.
+                    final String carrierPackageName = getCarrierPackageForPhoneId(phoneId);
+                    final int sequence =
+                            mFetchTracker.start(phoneId, carrierPackageName != null);
                     // Restore persistent override values.
                     PersistableBundle config = restoreConfigFromXml(
                             mPlatformCarrierConfigPackage, OVERRIDE_PACKAGE_ADDITION, phoneId);
@@ -257,6 +327,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         mPersistentOverrideConfigs[phoneId] = config;
                     }
 
+                    mFetchTracker.step(phoneId, sequence, CarrierConfigFetchTracker.PHASE_DEFAULT,
+                            CarrierConfigFetchTracker.STEP_LOOKUP, mPlatformCarrierConfigPackage);
                     config = restoreConfigFromXml(mPlatformCarrierConfigPackage, "", phoneId);
                     if (config != null) {
                         logd(
@@ -265,55 +337,71 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         + " phoneId="
                                         + phoneId);
                         mConfigFromDefaultApp[phoneId] = config;
-                        Message newMsg = obtainMessage(EVENT_FETCH_DEFAULT_DONE, phoneId, -1);
+                        Message newMsg = obtainMessage(EVENT_FETCH_DEFAULT_DONE, phoneId, sequence);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         mHandler.sendMessage(newMsg);
                     } else {
                         // No cached config, so fetch it from the default app.
+                        mFetchTracker.step(phoneId, sequence,
+                                CarrierConfigFetchTracker.PHASE_DEFAULT,
+                                CarrierConfigFetchTracker.STEP_BIND, null);
                         if (bindToConfigPackage(
                                 mPlatformCarrierConfigPackage,
                                 phoneId,
-                                EVENT_CONNECTED_TO_DEFAULT)) {
+                                EVENT_CONNECTED_TO_DEFAULT,
+                                sequence)) {
                             sendMessageDelayed(
-                                    obtainMessage(EVENT_BIND_DEFAULT_TIMEOUT, phoneId, -1),
+                                    obtainMessage(EVENT_BIND_DEFAULT_TIMEOUT, phoneId, -1,
+                                            mServiceConnection[phoneId]),
                                     BIND_TIMEOUT_MILLIS);
                         } else {
-                            // Send broadcast if bind fails.
-                            notifySubscriptionInfoUpdater(phoneId);
+                            // The broadcast is sent once the carrier phase, if any, ends too.
+                            onFetchPhaseFinished(phoneId, sequence,
+                                    CarrierConfigFetchTracker.PHASE_DEFAULT,
+                                    CarrierConfigFetchTracker.RESULT_FAILED);
                             // TODO: We *must* call unbindService even if bindService returns false.
                             // (And possibly if SecurityException was thrown.)
                             loge("binding to default app: "
                                     + mPlatformCarrierConfigPackage + " fails");
                         }
                     }
+                    if (carrierPackageName != null) {
+                        logd("Found carrier config app: " + carrierPackageName);
+                        sendMessage(obtainMessage(EVENT_DO_FETCH_CARRIER, phoneId, sequence));
+                    }
                     break;
                 }
 
                 case EVENT_CONNECTED_TO_DEFAULT: {
-                    removeMessages(EVENT_BIND_DEFAULT_TIMEOUT);
                     final CarrierServiceConnection conn = (CarrierServiceConnection) msg.obj;
+                    removeMessages(EVENT_BIND_DEFAULT_TIMEOUT, conn);
                     // If new service connection has been created, unbind.
                     if (mServiceConnection[phoneId] != conn || conn.service == null) {
-                        unbindIfBound(mContext, conn, phoneId);
+                        unbindIfBound(conn);
                         break;
                     }
+                    mFetchTracker.step(phoneId, conn.sequence,
+                            CarrierConfigFetchTracker.PHASE_DEFAULT,
+                            CarrierConfigFetchTracker.STEP_CONNECTED, null);
                     final CarrierIdentifier carrierId = getCarrierIdentifierForPhoneId(phoneId);
                     // ResultReceiver callback will execute in this Handler's thread.
                     final ResultReceiver resultReceiver =
                             new ResultReceiver(this) {
                                 @Override
                                 public void onReceiveResult(int resultCode, Bundle resultData) {
-                                    unbindIfBound(mContext, conn, phoneId);
+                                    unbindIfBound(conn);
                                     // If new service connection has been created, this is stale.
                                     if (mServiceConnection[phoneId] != conn) {
                                         loge("Received response for stale request.");
                                         return;
                                     }
-                                    removeMessages(EVENT_FETCH_DEFAULT_TIMEOUT);
+                                    removeMessages(EVENT_FETCH_DEFAULT_TIMEOUT, conn);
                                     if (resultCode == RESULT_ERROR || resultData == null) {
                                         // On error, abort config fetching.
                                         loge("Failed to get carrier config");
-                                        notifySubscriptionInfoUpdater(phoneId);
+                                        onFetchPhaseFinished(phoneId, conn.sequence,
+                                                CarrierConfigFetchTracker.PHASE_DEFAULT,
+                                                CarrierConfigFetchTracker.RESULT_FAILED);
                                         return;
                                     }
                                     PersistableBundle config =
@@ -323,7 +411,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                     mConfigFromDefaultApp[phoneId] = config;
                                     sendMessage(
                                             obtainMessage(
-                                                    EVENT_FETCH_DEFAULT_DONE, phoneId, -1));
+                                                    EVENT_FETCH_DEFAULT_DONE, phoneId,
+                                                    conn.sequence));
                                 }
                             };
                     // Now fetch the config asynchronously from the ICarrierService.
@@ -337,51 +426,58 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     } catch (RemoteException e) {
                         loge("Failed to get carrier config from default app: " +
                                 mPlatformCarrierConfigPackage + " err: " + e.toString());
-                        unbindIfBound(mContext, conn, phoneId);
+                        unbindIfBound(conn);
+                        // So the carrier phase of the load does not wait on this one forever.
+                        onFetchPhaseFinished(phoneId, conn.sequence,
+                                CarrierConfigFetchTracker.PHASE_DEFAULT,
+                                CarrierConfigFetchTracker.RESULT_FAILED);
                         break; // So we don't set a timeout.
                     }
                     sendMessageDelayed(
-                            obtainMessage(EVENT_FETCH_DEFAULT_TIMEOUT, phoneId, -1),
+                            obtainMessage(EVENT_FETCH_DEFAULT_TIMEOUT, phoneId, -1, conn),
                             BIND_TIMEOUT_MILLIS);
                     break;
                 }
 
                 case EVENT_BIND_DEFAULT_TIMEOUT:
                 case EVENT_FETCH_DEFAULT_TIMEOUT: {
+                    final CarrierServiceConnection conn = (CarrierServiceConnection) msg.obj;
                     loge("Bind/fetch time out from " + mPlatformCarrierConfigPackage);
-                    removeMessages(EVENT_FETCH_DEFAULT_TIMEOUT);
-                    // If we attempted to bind to the app, but the service connection is null due to
-                    // the race condition that clear config event happens before bind/fetch complete
-                    // then config was cleared while we were waiting and we should not continue.
-                    if (mServiceConnection[phoneId] != null) {
-                        // If a ResponseReceiver callback is in the queue when this happens, we will
-                        // unbind twice and throw an exception.
-                        unbindIfBound(mContext, mServiceConnection[phoneId], phoneId);
-                        broadcastConfigChangedIntent(phoneId);
-                    }
-                    notifySubscriptionInfoUpdater(phoneId);
+                    removeMessages(EVENT_FETCH_DEFAULT_TIMEOUT, conn);
+                    mFetchTracker.step(phoneId, conn.sequence,
+                            CarrierConfigFetchTracker.PHASE_DEFAULT,
+                            msg.what == EVENT_BIND_DEFAULT_TIMEOUT
+                                    ? CarrierConfigFetchTracker.STEP_BIND_TIMEOUT
+                                    : CarrierConfigFetchTracker.STEP_FETCH_TIMEOUT, null);
+                    // The fetch is released even if it was superseded by a new load or the config
+                    // was cleared while we were waiting, so that its binding does not leak. Only
+                    // the current load is finished, which broadcasts once its last phase ends.
+                    unbindIfBound(conn);
+                    onFetchPhaseFinished(phoneId, conn.sequence,
+                            CarrierConfigFetchTracker.PHASE_DEFAULT,
+                            CarrierConfigFetchTracker.RESULT_FAILED);
                     break;
                 }
 
                 case EVENT_FETCH_DEFAULT_DONE: {
-                    // If we attempted to bind to the app, but the service connection is null, then
-                    // config was cleared while we were waiting and we should not continue.
-                    if (!msg.getData().getBoolean("loaded_from_xml", false)
-                            && mServiceConnection[phoneId] == null) {
-                        break;
-                    }
-                    final String carrierPackageName = getCarrierPackageForPhoneId(phoneId);
-                    if (carrierPackageName != null) {
-                        logd("Found carrier config app: " + carrierPackageName);
-                        sendMessage(obtainMessage(EVENT_DO_FETCH_CARRIER, phoneId, -1));
-                    } else {
-                        notifySubscriptionInfoUpdater(phoneId);
-                    }
+                    // A load that was cleared or restarted while we were waiting is ignored.
+                    onFetchPhaseFinished(phoneId, msg.arg2,
+                            CarrierConfigFetchTracker.PHASE_DEFAULT,
+                            msg.getData().getBoolean("loaded_from_xml", false)
+                                    ? CarrierConfigFetchTracker.RESULT_CACHE
+                                    : CarrierConfigFetchTracker.RESULT_FETCHED);
                     break;
                 }
 
                 case EVENT_DO_FETCH_CARRIER: {
+                    final int sequence = msg.arg2;
+                    if (!mFetchTracker.isPending(phoneId, sequence,
+                            CarrierConfigFetchTracker.PHASE_CARRIER)) {
+                        break;
+                    }
                     final String carrierPackageName = getCarrierPackageForPhoneId(phoneId);
+                    mFetchTracker.step(phoneId, sequence, CarrierConfigFetchTracker.PHASE_CARRIER,
+                            CarrierConfigFetchTracker.STEP_LOOKUP, carrierPackageName);
                     final PersistableBundle config =
                             restoreConfigFromXml(carrierPackageName, "", phoneId);
                     if (config != null) {
@@ -391,53 +487,61 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         + " phoneId="
                                         + phoneId);
                         mConfigFromCarrierApp[phoneId] = config;
-                        Message newMsg = obtainMessage(EVENT_FETCH_CARRIER_DONE, phoneId, -1);
+                        Message newMsg = obtainMessage(EVENT_FETCH_CARRIER_DONE, phoneId, sequence);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         sendMessage(newMsg);
                     } else {
                         // No cached config, so fetch it from a carrier app.
+                        mFetchTracker.step(phoneId, sequence,
+                                CarrierConfigFetchTracker.PHASE_CARRIER,
+                                CarrierConfigFetchTracker.STEP_BIND, null);
                         if (carrierPackageName != null && bindToConfigPackage(carrierPackageName,
-                                phoneId, EVENT_CONNECTED_TO_CARRIER)) {
+                                phoneId, EVENT_CONNECTED_TO_CARRIER, sequence)) {
                             sendMessageDelayed(
-                                    obtainMessage(EVENT_BIND_CARRIER_TIMEOUT, phoneId, -1),
+                                    obtainMessage(EVENT_BIND_CARRIER_TIMEOUT, phoneId, -1,
+                                            mCarrierServiceConnection[phoneId]),
                                     BIND_TIMEOUT_MILLIS);
                         } else {
-                            // Send broadcast if bind fails.
-                            broadcastConfigChangedIntent(phoneId);
                             loge("Bind to carrier app: " + carrierPackageName + " fails");
-                            notifySubscriptionInfoUpdater(phoneId);
+                            onFetchPhaseFinished(phoneId, sequence,
+                                    CarrierConfigFetchTracker.PHASE_CARRIER,
+                                    CarrierConfigFetchTracker.RESULT_FAILED);
                         }
                     }
                     break;
                 }
 
                 case EVENT_CONNECTED_TO_CARRIER: {
-                    removeMessages(EVENT_BIND_CARRIER_TIMEOUT);
                     final CarrierServiceConnection conn = (CarrierServiceConnection) msg.obj;
+                    removeMessages(EVENT_BIND_CARRIER_TIMEOUT, conn);
                     // If new service connection has been created, unbind.
-                    if (mServiceConnection[phoneId] != conn || conn.service == null) {
-                        unbindIfBound(mContext, conn, phoneId);
+                    if (mCarrierServiceConnection[phoneId] != conn || conn.service == null) {
+                        unbindIfBound(conn);
                         break;
                     }
+                    mFetchTracker.step(phoneId, conn.sequence,
+                            CarrierConfigFetchTracker.PHASE_CARRIER,
+                            CarrierConfigFetchTracker.STEP_CONNECTED, null);
                     final CarrierIdentifier carrierId = getCarrierIdentifierForPhoneId(phoneId);
                     // ResultReceiver callback will execute in this Handler's thread.
                     final ResultReceiver resultReceiver =
                             new ResultReceiver(this) {
                                 @Override
                                 public void onReceiveResult(int resultCode, Bundle resultData) {
-                                    unbindIfBound(mContext, conn, phoneId);
+                                    unbindIfBound(conn);
                                     // If new service connection has been created, this is stale.
-                                    if (mServiceConnection[phoneId] != conn) {
+                                    if (mCarrierServiceConnection[phoneId] != conn) {
                                         loge("Received response for stale request.");
                                         return;
                                     }
-                                    removeMessages(EVENT_FETCH_CARRIER_TIMEOUT);
+                                    removeMessages(EVENT_FETCH_CARRIER_TIMEOUT, conn);
                                     if (resultCode == RESULT_ERROR || resultData == null) {
                                         // On error, abort config fetching.
                                         loge("Failed to get carrier config from carrier app: "
                                                 + getCarrierPackageForPhoneId(phoneId));
-                                        broadcastConfigChangedIntent(phoneId);
-                                        notifySubscriptionInfoUpdater(phoneId);
+                                        onFetchPhaseFinished(phoneId, conn.sequence,
+                                                CarrierConfigFetchTracker.PHASE_CARRIER,
+                                                CarrierConfigFetchTracker.RESULT_FAILED);
                                         return;
                                     }
                                     PersistableBundle config =
@@ -447,7 +551,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                     mConfigFromCarrierApp[phoneId] = config;
                                     sendMessage(
                                             obtainMessage(
-                                                    EVENT_FETCH_CARRIER_DONE, phoneId, -1));
+                                                    EVENT_FETCH_CARRIER_DONE, phoneId,
+                                                    conn.sequence));
                                 }
                             };
                     // Now fetch the config asynchronously from the ICarrierService.
@@ -460,39 +565,45 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                 + " carrierid: " + carrierId.toString());
                     } catch (RemoteException e) {
                         loge("Failed to get carrier config: " + e.toString());
-                        unbindIfBound(mContext, conn, phoneId);
+                        unbindIfBound(conn);
+                        // So the load does not wait on this phase forever.
+                        onFetchPhaseFinished(phoneId, conn.sequence,
+                                CarrierConfigFetchTracker.PHASE_CARRIER,
+                                CarrierConfigFetchTracker.RESULT_FAILED);
                         break; // So we don't set a timeout.
                     }
                     sendMessageDelayed(
-                            obtainMessage(EVENT_FETCH_CARRIER_TIMEOUT, phoneId, -1),
+                            obtainMessage(EVENT_FETCH_CARRIER_TIMEOUT, phoneId, -1, conn),
                             BIND_TIMEOUT_MILLIS);
                     break;
                 }
 
                 case EVENT_BIND_CARRIER_TIMEOUT:
                 case EVENT_FETCH_CARRIER_TIMEOUT: {
+                    final CarrierServiceConnection conn = (CarrierServiceConnection) msg.obj;
                     loge("Bind/fetch from carrier app timeout");
-                    removeMessages(EVENT_FETCH_CARRIER_TIMEOUT);
-                    // If we attempted to bind to the app, but the service connection is null due to
-                    // the race condition that clear config event happens before bind/fetch complete
-                    // then config was cleared while we were waiting and we should not continue.
-                    if (mServiceConnection[phoneId] != null) {
-                        // If a ResponseReceiver callback is in the queue when this happens, we will
-                        // unbind twice and throw an exception.
-                        unbindIfBound(mContext, mServiceConnection[phoneId], phoneId);
-                        broadcastConfigChangedIntent(phoneId);
-                    }
-                    notifySubscriptionInfoUpdater(phoneId);
+                    removeMessages(EVENT_FETCH_CARRIER_TIMEOUT, conn);
+                    mFetchTracker.step(phoneId, conn.sequence,
+                            CarrierConfigFetchTracker.PHASE_CARRIER,
+                            msg.what == EVENT_BIND_CARRIER_TIMEOUT
+                                    ? CarrierConfigFetchTracker.STEP_BIND_TIMEOUT
+                                    : CarrierConfigFetchTracker.STEP_FETCH_TIMEOUT, null);
+                    // The fetch is released even if it was superseded by a new load or the config
+                    // was cleared while we were waiting, so that its binding does not leak. Only
+                    // the current load is finished, which broadcasts once its last phase ends.
+                    unbindIfBound(conn);
+                    onFetchPhaseFinished(phoneId, conn.sequence,
+                            CarrierConfigFetchTracker.PHASE_CARRIER,
+                            CarrierConfigFetchTracker.RESULT_FAILED);
                     break;
                 }
                 case EVENT_FETCH_CARRIER_DONE: {
-                    // If we attempted to bind to the app, but the service connection is null, then
-                    // config was cleared while we were waiting and we should not continue.
-                    if (!msg.getData().getBoolean("loaded_from_xml", false)
-                            && mServiceConnection[phoneId] == null) {
-                        break;
-                    }
-                    notifySubscriptionInfoUpdater(phoneId);
+                    // A load that was cleared or restarted while we were waiting is ignored.
+                    onFetchPhaseFinished(phoneId, msg.arg2,
+                            CarrierConfigFetchTracker.PHASE_CARRIER,
+                            msg.getData().getBoolean("loaded_from_xml", false)
+                                    ? CarrierConfigFetchTracker.RESULT_CACHE
+                                    : CarrierConfigFetchTracker.RESULT_FETCHED);
                     break;
                 }
 
@@ -518,6 +629,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 case EVENT_SUBSCRIPTION_INFO_UPDATED:
                     broadcastConfigChangedIntent(phoneId);
                     break;
+
+                case EVENT_WARM_START:
+                    warmStartConfigForPhone(phoneId);
+                    break;
                 case EVENT_MULTI_SIM_CONFIG_CHANGED:
                     onMultiSimConfigChanged();
                     break;
@@ -539,11 +654,14 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         if (bindToConfigPackage(
                                 mPlatformCarrierConfigPackage,
                                 phoneId,
-                                EVENT_CONNECTED_TO_DEFAULT_FOR_NO_SIM_CONFIG)) {
+                                EVENT_CONNECTED_TO_DEFAULT_FOR_NO_SIM_CONFIG,
+                                0 /* sequence */)) {
                             sendMessageDelayed(
                                     obtainMessage(
                                             EVENT_BIND_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT,
-                                                phoneId, -1), BIND_TIMEOUT_MILLIS);
+                                                phoneId, -1,
+                                                mServiceConnectionForNoSimConfig[phoneId]),
+                                    BIND_TIMEOUT_MILLIS);
                         } else {
                             broadcastConfigChangedIntent(phoneId, false);
                             // TODO: We *must* call unbindService even if bindService returns false.
@@ -562,28 +680,26 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
                 case EVENT_BIND_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT:
                 case EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT: {
+                    final CarrierServiceConnection conn = (CarrierServiceConnection) msg.obj;
                     loge("Bind/fetch time out for no SIM config from "
                             + mPlatformCarrierConfigPackage);
-                    removeMessages(EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT);
+                    removeMessages(EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT, conn);
                     // If we attempted to bind to the app, but the service connection is null due to
                     // the race condition that clear config event happens before bind/fetch complete
                     // then config was cleared while we were waiting and we should not continue.
-                    if (mServiceConnectionForNoSimConfig[phoneId] != null) {
-                        // If a ResponseReceiver callback is in the queue when this happens, we will
-                        // unbind twice and throw an exception.
-                        unbindIfBoundForNoSimConfig(mContext,
-                                mServiceConnectionForNoSimConfig[phoneId], phoneId);
+                    if (mServiceConnectionForNoSimConfig[phoneId] == conn) {
+                        unbindIfBound(conn);
                     }
                     broadcastConfigChangedIntent(phoneId, false);
                     break;
                 }
 
                 case EVENT_CONNECTED_TO_DEFAULT_FOR_NO_SIM_CONFIG: {
-                    removeMessages(EVENT_BIND_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT);
                     final CarrierServiceConnection conn = (CarrierServiceConnection) msg.obj;
+                    removeMessages(EVENT_BIND_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT, conn);
                     // If new service connection has been created, unbind.
                     if (mServiceConnectionForNoSimConfig[phoneId] != conn || conn.service == null) {
-                        unbindIfBoundForNoSimConfig(mContext, conn, phoneId);
+                        unbindIfBound(conn);
                         break;
                     }
 
@@ -592,13 +708,14 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             new ResultReceiver(this) {
                                 @Override
                                 public void onReceiveResult(int resultCode, Bundle resultData) {
-                                    unbindIfBoundForNoSimConfig(mContext, conn, phoneId);
+                                    unbindIfBound(conn);
                                     // If new service connection has been created, this is stale.
                                     if (mServiceConnectionForNoSimConfig[phoneId] != conn) {
                                         loge("Received response for stale request.");
                                         return;
                                     }
-                                    removeMessages(EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT);
+                                    removeMessages(EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT,
+                                            conn);
                                     if (resultCode == RESULT_ERROR || resultData == null) {
                                         // On error, abort config fetching.
                                         loge("Failed to get no SIM carrier config");
@@ -624,13 +741,13 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     } catch (RemoteException e) {
                         loge("Failed to get no sim carrier config from default app: " +
                                 mPlatformCarrierConfigPackage + " err: " + e.toString());
-                        unbindIfBoundForNoSimConfig(mContext, conn, phoneId);
+                        unbindIfBound(conn);
                         break; // So we don't set a timeout.
                     }
                     sendMessageDelayed(
                             obtainMessage(
                                     EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_TIMEOUT,
-                                        phoneId, -1), BIND_TIMEOUT_MILLIS);
+                                        phoneId, -1, conn), BIND_TIMEOUT_MILLIS);
                     break;
                 }
             }
@@ -668,12 +785,33 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mPersistentOverrideConfigs = new PersistableBundle[numPhones];
         mOverrideConfigs = new PersistableBundle[numPhones];
         mNoSimConfig = new PersistableBundle();
+        mMergedConfigs = new MergedCarrierConfig[numPhones];
         mServiceConnection = new CarrierServiceConnection[numPhones];
-        mServiceBound = new boolean[numPhones];
+        mCarrierServiceConnection = new CarrierServiceConnection[numPhones];
         mHasSentConfigChange = new boolean[numPhones];
         mFromSystemUnlocked = new boolean[numPhones];
         mServiceConnectionForNoSimConfig = new CarrierServiceConnection[numPhones];
-        mServiceBoundForNoSimConfig = new boolean[numPhones];
+        mFetchTracker = new CarrierConfigFetchTracker(numPhones);
+        mLastBroadcastConfigs = new MergedCarrierConfig[numPhones];
+        mLastBroadcastSubIds = new int[numPhones];
+        Arrays.fill(mLastBroadcastSubIds, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+        mLastChangedKeys = new String[numPhones];
+        mWarmStartEnabled = DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_TELEPHONY,
+                CARRIER_CONFIG_WARM_START_ENABLED, false);
+        mLastKnownGoodStore = new LastKnownGoodConfigStore(mContext.getFilesDir());
+        mCacheIndex = new CarrierConfigCacheIndex(mContext.getFilesDir(),
+                DeviceConfig.getInt(DeviceConfig.NAMESPACE_TELEPHONY,
+                        CARRIER_CONFIG_CACHE_MAX_FILES, DEFAULT_CACHE_MAX_FILES),
+                DeviceConfig.getLong(DeviceConfig.NAMESPACE_TELEPHONY,
+                        CARRIER_CONFIG_CACHE_MAX_BYTES, DEFAULT_CACHE_MAX_BYTES));
+        mLastKnownGoodConfigs = new PersistableBundle[numPhones];
+        mLastBroadcastProvisional = new boolean[numPhones];
+        if (mWarmStartEnabled) {
+            IntentFilter simStateFilter = new IntentFilter();
+            simStateFilter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+            simStateFilter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+            context.registerReceiver(mSimStateReceiver, simStateFilter);
+        }
         // Make this service available through ServiceManager.
         TelephonyFrameworkInitializer
                 .getTelephonyServiceManager().getCarrierConfigServiceRegisterer().register(this);
@@ -711,6 +849,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mConfigFromDefaultApp[phoneId] = null;
         mConfigFromCarrierApp[phoneId] = null;
         mServiceConnection[phoneId] = null;
+        mCarrierServiceConnection[phoneId] = null;
+        mFetchTracker.cancel(phoneId);
+        mLastBroadcastConfigs[phoneId] = null;
+        mLastKnownGoodConfigs[phoneId] = null;
+        mLastBroadcastProvisional[phoneId] = false;
         mHasSentConfigChange[phoneId] = false;
 
         if (fetchNoSimConfig) {
@@ -721,6 +864,86 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
     }
 
+    /**
+     * Records that a phase of a load of the phone has finished, and updates the subscription once
+     * the last phase of the load has.
+     */
+    private void onFetchPhaseFinished(int phoneId, int sequence, int phase, int result) {
+        if (mFetchTracker.finish(phoneId, sequence, phase, result)) {
+            logdWithLocalLog("Config loaded for phone " + phoneId + " in "
+                    + mFetchTracker.getTotalMillis(phoneId) + "ms");
+            saveLastKnownGoodConfig(phoneId);
+            // Stop serving the last known good config, the broadcast that follows is diffed
+            // against it.
+            mLastKnownGoodConfigs[phoneId] = null;
+            notifySubscriptionInfoUpdater(phoneId);
+        }
+    }
+
+    /**
+     * Serves the last known good config of the SIM of the phone, if warm start is enabled and
+     * the phone has neither loaded its config nor started serving it yet.
+     */
+    private void warmStartConfigForPhone(int phoneId) {
+        if (!mWarmStartEnabled || mLastKnownGoodConfigs[phoneId] != null
+                || mConfigFromDefaultApp[phoneId] != null
+                || mConfigFromCarrierApp[phoneId] != null) {
+            return;
+        }
+        String iccid = getSlotIccIdForPhoneId(phoneId);
+        if (iccid == null) {
+            return;
+        }
+        PersistableBundle config = mLastKnownGoodStore.restore(phoneId, iccid);
+        if (config == null) {
+            return;
+        }
+        logdWithLocalLog("Serving last known good config for phone " + phoneId);
+        mLastKnownGoodConfigs[phoneId] = config;
+        // The subscription is not known until the SIM is loaded, so the broadcast does not
+        // include it, and the broadcast after the load reports the keys that changed since.
+        broadcastConfigChangedIntent(phoneId, false);
+        mLastBroadcastConfigs[phoneId] = getMergedConfigForPhoneId(phoneId);
+        mLastBroadcastSubIds[phoneId] = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        mLastBroadcastProvisional[phoneId] = true;
+    }
+
+    /**
+     * Saves the config the phone just loaded as the last known good config of its SIM, unless
+     * it is the config that was already served.
+     */
+    private void saveLastKnownGoodConfig(int phoneId) {
+        final PersistableBundle defaultAppConfig = mConfigFromDefaultApp[phoneId];
+        final PersistableBundle carrierAppConfig = mConfigFromCarrierApp[phoneId];
+        if (!mWarmStartEnabled || (defaultAppConfig == null && carrierAppConfig == null)
+                || SubscriptionManager.getSimStateForSlotIndex(phoneId)
+                        != TelephonyManager.SIM_STATE_LOADED) {
+            return;
+        }
+        String iccid = getSlotIccIdForPhoneId(phoneId);
+        if (iccid == null) {
+            return;
+        }
+        // Overrides are restored separately, only keep the configs of the apps.
+        PersistableBundle config = new PersistableBundle();
+        if (defaultAppConfig != null) {
+            config.putAll(defaultAppConfig);
+        }
+        if (carrierAppConfig != null) {
+            config.putAll(carrierAppConfig);
+        }
+        config.remove(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL);
+        PersistableBundle served = mLastKnownGoodConfigs[phoneId];
+        if (served != null && CarrierConfigDiff.diff(served, config).isEmpty()) {
+            return;
+        }
+        try {
+            mLastKnownGoodStore.save(phoneId, iccid, config);
+        } catch (IOException | IllegalArgumentException e) {
+            loge("Failed to save last known good config: " + e);
+        }
+    }
+
     private void notifySubscriptionInfoUpdater(int phoneId) {
         String configPackagename;
         PersistableBundle configToSend;
@@ -759,6 +982,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT |
                 Intent.FLAG_RECEIVER_FOREGROUND);
+        int subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        Set<String> changedKeys = null;
         if (addSubIdExtra) {
             int simApplicationState = TelephonyManager.SIM_STATE_UNKNOWN;
             int[] subIds = SubscriptionManager.getSubId(phoneId);
@@ -776,6 +1001,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 intent.putExtra(TelephonyManager.EXTRA_SPECIFIC_CARRIER_ID,
                         getSpecificCarrierIdForPhoneId(phoneId));
                 intent.putExtra(TelephonyManager.EXTRA_CARRIER_ID, getCarrierIdForPhoneId(phoneId));
+                subId = subIds[0];
+                changedKeys = computeChangedKeys(phoneId, subId);
+                if (changedKeys != null && changedKeys.size() <= MAX_CHANGED_KEYS_IN_BROADCAST) {
+                    intent.putExtra(CarrierConfigDiff.EXTRA_CHANGED_KEYS,
+                            changedKeys.toArray(new String[0]));
+                }
             }
         }
         intent.putExtra(CarrierConfigManager.EXTRA_SLOT_INDEX, phoneId);
@@ -790,28 +1021,124 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
         mHasSentConfigChange[phoneId] = true;
         mFromSystemUnlocked[phoneId] = false;
+        mFetchTracker.broadcast(phoneId);
+        notifyConfigChangeListeners(phoneId, subId, changedKeys);
     }
 
-    /** Binds to the default or carrier config app. */
-    private boolean bindToConfigPackage(String pkgName, int phoneId, int eventId) {
-        logdWithLocalLog("Binding to " + pkgName + " for phone " + phoneId);
-        Intent carrierService = new Intent(CarrierService.CARRIER_SERVICE_INTERFACE);
-        carrierService.setPackage(pkgName);
+    /**
+     * Diffs the config of the phone against its config at the previous broadcast for the same
+     * subscription, and keeps it for the next broadcast.
+     * @return the changed keys, or null if there is no previous config of the subscription.
+     */
+    private Set<String> computeChangedKeys(int phoneId, int subId) {
+        MergedCarrierConfig current = getMergedConfigForPhoneId(phoneId);
+        MergedCarrierConfig previous = mLastBroadcastConfigs[phoneId];
+        // The last known good config is only served for the same ICCID, so the config loaded
+        // for the SIM is diffed against it.
+        boolean sameSubscription = mLastBroadcastSubIds[phoneId] == subId
+                || mLastBroadcastProvisional[phoneId];
+        mLastBroadcastProvisional[phoneId] = false;
+        mLastBroadcastConfigs[phoneId] = current;
+        mLastBroadcastSubIds[phoneId] = subId;
+
+        Set<String> changedKeys;
+        if (previous == null || !sameSubscription) {
+            changedKeys = null;
+        } else if (previous == current) {
+            // No layer changed since the last broadcast, for example a rebroadcast on unlock.
+            changedKeys = Collections.emptySet();
+        } else {
+            changedKeys = CarrierConfigDiff.diff(previous.get(), current.get());
+        }
+        mLastChangedKeys[phoneId] = changedKeys == null ? "all"
+                : changedKeys.size() > MAX_CHANGED_KEYS_IN_BROADCAST
+                        ? changedKeys.size() + " keys" : changedKeys.toString();
+        logdWithLocalLog("Config of phone " + phoneId + " changed keys: "
+                + (changedKeys == null ? "all" : changedKeys.size()));
+        return changedKeys;
+    }
+
+    private void notifyConfigChangeListeners(int phoneId, int subId,
+            @Nullable Set<String> changedKeys) {
+        for (ConfigChangeListenerRecord record : mConfigChangeListeners) {
+            if (CarrierConfigDiff.intersects(changedKeys, record.keys)) {
+                record.executor.execute(() ->
+                        record.listener.onCarrierConfigChanged(phoneId, subId, changedKeys));
+            }
+        }
+    }
+
+    /**
+     * Listener of the carrier config changes of all phones, for components of the phone process.
+     */
+    public interface ConfigChangeListener {
+        /**
+         * Called when the config of a phone changed in a way the listener is interested in.
+         * @param subId the subscription of the phone, or
+         *        {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} if its SIM is not loaded.
+         * @param changedKeys the keys that changed, or null if any key may have changed, for
+         *        example because the subscription of the phone changed.
+         */
+        void onCarrierConfigChanged(int phoneId, int subId, @Nullable Set<String> changedKeys);
+    }
+
+    private static final class ConfigChangeListenerRecord {
+        final Set<String> keys;
+        final Executor executor;
+        final ConfigChangeListener listener;
+
+        ConfigChangeListenerRecord(Set<String> keys, Executor executor,
+                ConfigChangeListener listener) {
+            this.keys = keys;
+            this.executor = executor;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Registers a listener of config changes. It is called alongside the config changed
+     * broadcast, but only when one of the given keys may have changed.
+     * @param keys the keys of interest, or null to be told of any change. A broadcast that
+     *        leaves the config unchanged does not call the listener either way.
+     */
+    public void registerConfigChangeListener(@Nullable Set<String> keys,
+            @NonNull Executor executor, @NonNull ConfigChangeListener listener) {
+        mConfigChangeListeners.add(new ConfigChangeListenerRecord(
+                keys == null ? null : new ArraySet<>(keys), executor, listener));
+    }
+
+    public void unregisterConfigChangeListener(@NonNull ConfigChangeListener listener) {
+        mConfigChangeListeners.removeIf(record -> record.listener == listener);
+    }
+
+    /**
+     * Binds to the default or carrier config app. Fetches from the same package share a binding,
+     * so a second fetch from an app that is already connected does not wait for another bind.
+     */
+    private boolean bindToConfigPackage(String pkgName, int phoneId, int eventId, int sequence) {
         CarrierServiceConnection serviceConnection =  new CarrierServiceConnection(
-                phoneId, pkgName, eventId);
+                phoneId, pkgName, eventId, sequence);
         if (eventId == EVENT_CONNECTED_TO_DEFAULT_FOR_NO_SIM_CONFIG) {
             mServiceConnectionForNoSimConfig[phoneId] = serviceConnection;
+        } else if (eventId == EVENT_CONNECTED_TO_CARRIER) {
+            mCarrierServiceConnection[phoneId] = serviceConnection;
         } else {
             mServiceConnection[phoneId] = serviceConnection;
         }
+        SharedServiceBinding binding = mSharedBindings.get(pkgName);
+        if (binding != null) {
+            logdWithLocalLog("Sharing binding to " + pkgName + " for phone " + phoneId);
+            binding.attach(serviceConnection);
+            return true;
+        }
+        logdWithLocalLog("Binding to " + pkgName + " for phone " + phoneId);
+        Intent carrierService = new Intent(CarrierService.CARRIER_SERVICE_INTERFACE);
+        carrierService.setPackage(pkgName);
+        binding = new SharedServiceBinding(pkgName);
         try {
-            if (mContext.bindService(carrierService, serviceConnection,
-                    Context.BIND_AUTO_CREATE)) {
-                if (eventId == EVENT_CONNECTED_TO_DEFAULT_FOR_NO_SIM_CONFIG) {
-                    mServiceBoundForNoSimConfig[phoneId] = true;
-                } else {
-                    mServiceBound[phoneId] = true;
-                }
+            if (mContext.bindService(carrierService, binding, Context.BIND_AUTO_CREATE)) {
+                mSharedBindings.put(pkgName, binding);
+                binding.attach(serviceConnection);
                 return true;
             } else {
                 return false;
@@ -859,6 +1186,16 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
     }
 
+    /**
+     * @return the ICCID of the SIM in the slot of the phone, which is known from the slot status
+     * before the SIM records are loaded, or null if there is no SIM.
+     */
+    private String getSlotIccIdForPhoneId(int phoneId) {
+        UiccSlot slot = UiccController.getInstance().getUiccSlotForPhone(phoneId);
+        String iccid = slot != null ? slot.getIccId() : null;
+        return TextUtils.isEmpty(iccid) ? null : IccUtils.stripTrailingFs(iccid);
+    }
+
     private String getIccIdForPhoneId(int phoneId) {
         if (!SubscriptionManager.isValidPhoneId(phoneId)) {
             return null;
@@ -899,7 +1236,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     /**
-     * Writes a bundle to an XML file.
+     * Writes a bundle to a config file, in the binary format of {@link CarrierConfigBinaryFile}.
      *
      * The bundle will be written to a file named after the package name, ICCID and
      * specific carrier id {@link TelephonyManager#getSimSpecificCarrierId()}. the same carrier
@@ -908,8 +1245,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
      * the canonical file name. carrierid can also handle the cases SIM OTA resolves to different
      * carrier while iccid remains the same.
      *
-     * The file can be restored later with {@link @restoreConfigFromXml}. The XML output will
-     * include the bundle and the current version of the specified package.
+     * The file can be restored later with {@link @restoreConfigFromXml}. The output will include
+     * the bundle and the current version of the specified package. The file is replaced
+     * atomically, and an XML file saved by an earlier release for the same config is deleted.
      *
      * In case of errors or invalid input, no file will be written.
      *
@@ -962,18 +1300,19 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         logdWithLocalLog(
-                "Save config to xml, packagename: " + packageName + " phoneId: " + phoneId);
+                "Save config to file, packagename: " + packageName + " phoneId: " + phoneId);
 
-        FileOutputStream outFile = null;
+        final String binaryFileName = getBinaryFilename(fileName);
         try {
-            outFile = new FileOutputStream(new File(mContext.getFilesDir(), fileName));
             config.putString(KEY_VERSION, version);
-            config.writeToStream(outFile);
-            outFile.flush();
-            outFile.close();
-        } catch (IOException e) {
+            CarrierConfigBinaryFile.write(new File(mContext.getFilesDir(), binaryFileName), config);
+        } catch (IOException | IllegalArgumentException e) {
             loge(e.toString());
+            return;
         }
+        // Persistent overrides cannot be fetched again, so they are never evicted.
+        mCacheIndex.recordWrite(binaryFileName, packageName, !extraString.isEmpty());
+        mCacheIndex.delete(fileName);
     }
 
     private void saveConfigToXml(String packageName, @NonNull String extraString, int phoneId,
@@ -986,10 +1325,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     /**
-     * Reads a bundle from an XML file.
+     * Reads a bundle from a config file.
      *
      * This restores a bundle that was written with {@link #saveConfigToXml}. This returns the saved
-     * config bundle for the given package and phone ID.
+     * config bundle for the given package and phone ID. The saved version is checked before the
+     * rest of the file is decoded. If there is no binary file but there is an XML file saved by an
+     * earlier release, the XML file is read and migrated to the binary format.
      *
      * In case of errors, or if the saved config is from a different package version than the
      * current version, then null will be returned.
@@ -1031,6 +1372,26 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             fileName = getFilenameForConfig(packageName, extraString, iccid, cid);
         }
 
+        File binaryFile = new File(mContext.getFilesDir(), getBinaryFilename(fileName));
+        try {
+            CarrierConfigBinaryFile configFile = CarrierConfigBinaryFile.open(binaryFile);
+            Object savedVersion = configFile.get(KEY_VERSION);
+            if (!version.equals(savedVersion)) {
+                loge("Saved version mismatch: " + version + " vs " + savedVersion);
+                return null;
+            }
+            PersistableBundle restoredBundle = configFile.readAll();
+            restoredBundle.remove(KEY_VERSION);
+            mCacheIndex.recordAccess(binaryFile.getName());
+            return restoredBundle;
+        } catch (FileNotFoundException e) {
+            // Look for an XML file saved by an earlier release below.
+        } catch (IOException e) {
+            loge("Deleting unreadable config file: " + e);
+            mCacheIndex.delete(binaryFile.getName());
+            return null;
+        }
+
         PersistableBundle restoredBundle = null;
         File file = null;
         FileInputStream inFile = null;
@@ -1040,14 +1401,16 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
             restoredBundle = PersistableBundle.readFromStream(inFile);
             String savedVersion = restoredBundle.getString(KEY_VERSION);
-            restoredBundle.remove(KEY_VERSION);
+            inFile.close();
 
             if (!version.equals(savedVersion)) {
                 loge("Saved version mismatch: " + version + " vs " + savedVersion);
                 restoredBundle = null;
+            } else {
+                migrateConfigFile(file, binaryFile, restoredBundle, packageName,
+                        !extraString.isEmpty());
+                restoredBundle.remove(KEY_VERSION);
             }
-
-            inFile.close();
         } catch (FileNotFoundException e) {
             // Missing file is normal occurrence that might occur with a new sim or when restoring
             // an override file during boot and should not be treated as an error.
@@ -1070,30 +1433,58 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     /**
      * Clears cached carrier config.
-     * This deletes all saved XML files associated with the given package name. If packageName is
-     * null, then it deletes all saved XML files.
+     * This deletes all saved config files associated with the given package name. If packageName
+     * is null, then it deletes all saved config files, including the last known good configs.
      *
      * @param packageName the name of a carrier package, or null if all cached config should be
      *                    cleared.
      * @return true iff one or more files were deleted.
      */
     private boolean clearCachedConfigForPackage(final String packageName) {
+        if (packageName != null) {
+            // The index finds the files of the package without listing the directory.
+            return mCacheIndex.deletePackage(packageName);
+        }
         File dir = mContext.getFilesDir();
         File[] packageFiles = dir.listFiles(new FilenameFilter() {
             public boolean accept(File dir, String filename) {
-                if (packageName != null) {
-                    return filename.startsWith("carrierconfig-" + packageName + "-");
-                } else {
-                    return filename.startsWith("carrierconfig-");
-                }
+                return filename.startsWith("carrierconfig-");
             }
         });
-        if (packageFiles == null || packageFiles.length < 1) return false;
-        for (File f : packageFiles) {
-            logd("Deleting " + f.getName());
-            f.delete();
+        boolean deleted = false;
+        if (packageFiles != null) {
+            for (File f : packageFiles) {
+                logd("Deleting " + f.getName());
+                deleted |= f.delete();
+            }
         }
-        return true;
+        mCacheIndex.clear();
+        return deleted;
+    }
+
+    /**
+     * Rewrites a config read from an XML file in the binary format and deletes the XML file.
+     * The XML file is kept if the binary file cannot be written.
+     */
+    private void migrateConfigFile(File xmlFile, File binaryFile, PersistableBundle config,
+            String packageName, boolean pinned) {
+        try {
+            CarrierConfigBinaryFile.write(binaryFile, config);
+        } catch (IOException | IllegalArgumentException e) {
+            loge("Failed to migrate " + xmlFile.getName() + ": " + e);
+            return;
+        }
+        logd("Migrated " + xmlFile.getName() + " to " + binaryFile.getName());
+        mCacheIndex.recordWrite(binaryFile.getName(), packageName, pinned);
+        mCacheIndex.delete(xmlFile.getName());
+    }
+
+    /**
+     * @return the name of the binary config file that replaces the XML config file
+     * {@code xmlFilename}.
+     */
+    private static String getBinaryFilename(@NonNull String xmlFilename) {
+        return xmlFilename.substring(0, xmlFilename.length() - ".xml".length()) + ".bin";
     }
 
     /** Builds a canonical file name for a config file. */
@@ -1162,36 +1553,72 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         int phoneId = SubscriptionManager.getPhoneId(subId);
-        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
-        if (SubscriptionManager.isValidPhoneId(phoneId)) {
-            PersistableBundle config = mConfigFromDefaultApp[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-                if (getCarrierPackageForPhoneId(phoneId) == null) {
-                    retConfig.putBoolean(
-                            CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, true);
-                }
-            }
-            config = mConfigFromCarrierApp[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-                retConfig.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, true);
-            }
-            config = mPersistentOverrideConfigs[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-                retConfig.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, true);
-            }
-            config = mOverrideConfigs[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-            }
+        MergedCarrierConfig merged = SubscriptionManager.isValidPhoneId(phoneId)
+                ? getMergedConfigForPhoneId(phoneId) : getMergedNoSimConfig();
+        // The merged config is shared, so every caller gets a copy it is free to modify. Code in
+        // this process that only reads the config can use getConfigSnapshotForSubId() instead.
+        return merged.copy();
+    }
+
+    /**
+     * @return the typed view of the config of the subscription, or of the no SIM config if the
+     * subscription is not active. Only for callers in the phone process, which are trusted to
+     * read the config, so no permission is checked. The same instance is returned until the
+     * config changes.
+     */
+    @NonNull
+    public CarrierConfigSnapshot getConfigSnapshotForSubId(int subId) {
+        int phoneId = SubscriptionManager.getPhoneId(subId);
+        MergedCarrierConfig merged = SubscriptionManager.isValidPhoneId(phoneId)
+                ? getMergedConfigForPhoneId(phoneId) : getMergedNoSimConfig();
+        return merged.getSnapshot();
+    }
+
+    /**
+     * @return the merged config of the phone, merging its layers again if any of them changed
+     * since the published snapshot was merged.
+     */
+    private MergedCarrierConfig getMergedConfigForPhoneId(int phoneId) {
+        PersistableBundle defaultAppConfig = mConfigFromDefaultApp[phoneId];
+        PersistableBundle carrierAppConfig = mConfigFromCarrierApp[phoneId];
+        final PersistableBundle lastKnownGoodConfig = mLastKnownGoodConfigs[phoneId];
+        final PersistableBundle persistentOverrideConfig = mPersistentOverrideConfigs[phoneId];
+        final PersistableBundle overrideConfig = mOverrideConfigs[phoneId];
+        final long generation = mConfigGeneration.get();
+        final boolean hasCarrierPackage;
+        if (lastKnownGoodConfig != null) {
+            // Until its load completes, the SIM is served the config it had last time in place
+            // of the app configs. Claiming a carrier app keeps it from being marked as applied.
+            defaultAppConfig = lastKnownGoodConfig;
+            carrierAppConfig = null;
+            hasCarrierPackage = true;
         } else {
-            if (mNoSimConfig != null) {
-                retConfig.putAll(mNoSimConfig);
-            }
+            hasCarrierPackage = MergedCarrierConfig.needsCarrierPackage(
+                    defaultAppConfig, carrierAppConfig, persistentOverrideConfig)
+                    && getCarrierPackageForPhoneId(phoneId) != null;
         }
-        return retConfig;
+
+        MergedCarrierConfig merged = mMergedConfigs[phoneId];
+        if (merged == null || !merged.isBuiltFrom(defaultAppConfig, carrierAppConfig,
+                persistentOverrideConfig, overrideConfig, generation)
+                || merged.hasCarrierPackage() != hasCarrierPackage) {
+            merged = MergedCarrierConfig.merge(defaultAppConfig, carrierAppConfig,
+                    persistentOverrideConfig, overrideConfig, hasCarrierPackage, generation);
+            mMergedConfigs[phoneId] = merged;
+        }
+        return merged;
+    }
+
+    private MergedCarrierConfig getMergedNoSimConfig() {
+        final PersistableBundle noSimConfig = mNoSimConfig;
+        final long generation = mConfigGeneration.get();
+        MergedCarrierConfig merged = mMergedNoSimConfig;
+        // The no SIM config is applied over the defaults the same way as an override.
+        if (merged == null || !merged.isBuiltFrom(null, null, null, noSimConfig, generation)) {
+            merged = MergedCarrierConfig.merge(null, null, null, noSimConfig, false, generation);
+            mMergedNoSimConfig = merged;
+        }
+        return merged;
     }
 
     @Override
@@ -1219,8 +1646,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 final int cid = getSpecificCarrierIdForPhoneId(phoneId);
                 String fileName = getFilenameForConfig(mPlatformCarrierConfigPackage,
                         OVERRIDE_PACKAGE_ADDITION, iccid, cid);
-                File fileToDelete = new File(mContext.getFilesDir(), fileName);
-                fileToDelete.delete();
+                mCacheIndex.delete(fileName);
+                mCacheIndex.delete(getBinaryFilename(fileName));
             }
         }
         notifySubscriptionInfoUpdater(phoneId);
@@ -1234,6 +1661,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             currentOverrides[phoneId] = overrides;
         } else {
             currentOverrides[phoneId].putAll(overrides);
+            mConfigGeneration.incrementAndGet();
         }
     }
 
@@ -1291,19 +1719,21 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         return mPlatformCarrierConfigPackage;
     }
 
-    private void unbindIfBound(Context context, CarrierServiceConnection conn,
-            int phoneId) {
-        if (mServiceBound[phoneId]) {
-            mServiceBound[phoneId] = false;
-            context.unbindService(conn);
+    /**
+     * Releases the binding used by a connection, unbinding from the app once no connection uses
+     * it. Releasing a connection more than once has no effect.
+     */
+    private void unbindIfBound(CarrierServiceConnection conn) {
+        if (conn.binding == null) {
+            return;
         }
-    }
-
-    private void unbindIfBoundForNoSimConfig(Context context, CarrierServiceConnection conn,
-            int phoneId) {
-        if (mServiceBoundForNoSimConfig[phoneId]) {
-            mServiceBoundForNoSimConfig[phoneId] = false;
-            context.unbindService(conn);
+        SharedServiceBinding binding = conn.binding;
+        conn.binding = null;
+        if (binding.detach(conn)) {
+            if (mSharedBindings.get(binding.pkgName) == binding) {
+                mSharedBindings.remove(binding.pkgName);
+            }
+            mContext.unbindService(binding);
         }
     }
 
@@ -1348,6 +1778,17 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         printConfig(mNoSimConfig, indentPW, "mNoSimConfig");
+        mFetchTracker.dump(indentPW);
+        indentPW.println("Changed keys at the last broadcast: "
+                + Arrays.toString(mLastChangedKeys));
+        indentPW.println("Config change listeners: " + mConfigChangeListeners.size());
+        indentPW.print("Warm start enabled: " + mWarmStartEnabled + ", serving last known good:");
+        for (int i = 0; i < mLastKnownGoodConfigs.length; i++) {
+            indentPW.print(" " + (mLastKnownGoodConfigs[i] != null));
+        }
+        indentPW.println();
+        indentPW.println("Shared bindings: " + mSharedBindings.keySet());
+        mCacheIndex.dump(indentPW);
         indentPW.println("CarrierConfigLoadingLog=");
         mCarrierConfigLoadingLog.dump(fd, indentPW, args);
 
@@ -1363,6 +1804,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
     }
 
+    /** Prints the timeline of the config loads since boot, see CarrierConfigFetchTracker. */
+    /* package */ void exportLoadTimeline(PrintWriter pw) {
+        mFetchTracker.exportTimeline(pw);
+    }
+
     private void printConfig(PersistableBundle configApp, IndentingPrintWriter indentPW,
             String name) {
         indentPW.increaseIndent();
@@ -1439,7 +1885,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         indentPW.increaseIndent();
         indentPW.println(prefix + " : " + targetPkgName);
         Set<String> dumpedPkgNames = new ArraySet<>(mServiceConnection.length);
-        for (CarrierServiceConnection connection : mServiceConnection) {
+        List<CarrierServiceConnection> connections = new ArrayList<>(
+                mServiceConnection.length + mCarrierServiceConnection.length);
+        Collections.addAll(connections, mServiceConnection);
+        Collections.addAll(connections, mCarrierServiceConnection);
+        for (CarrierServiceConnection connection : connections) {
             if (connection == null || !SubscriptionManager.isValidPhoneId(connection.phoneId)
                     || TextUtils.isEmpty(connection.pkgName)) {
                 continue;
@@ -1453,10 +1903,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             connection.phoneId);
             if (!exactPackageMatch && !carrierPrivilegesMatch) continue;
             // Make sure this service is actually alive before trying to dump it. We don't pay
-            // attention to mServiceBound[connection.phoneId] because typically carrier apps will
-            // request long-lived bindings, and even if we unbind the app, it may still be alive due
-            // to CarrierServiceBindHelper. Pull it out as a reference so even if it gets set to
-            // null within the ServiceConnection during unbinding we can avoid an NPE.
+            // attention to whether the connection is still bound because typically carrier apps
+            // will request long-lived bindings, and even if we unbind the app, it may still be
+            // alive due to CarrierServiceBindHelper. Pull it out as a reference so even if it gets
+            // set to null within the ServiceConnection during unbinding we can avoid an NPE.
             final IBinder service = connection.service;
             if (service == null || !service.isBinderAlive() || !service.pingBinder()) continue;
             // We've got a live service. Last check is just to make sure we don't dump a package
@@ -1509,41 +1959,97 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
     }
 
-    private class CarrierServiceConnection implements ServiceConnection {
+    /** A fetch from a config app, connected through the binding it shares with other fetches. */
+    private class CarrierServiceConnection {
         final int phoneId;
         final String pkgName;
         final int eventId;
+        // The sequence number of the load the fetch belongs to, see CarrierConfigFetchTracker.
+        final int sequence;
         IBinder service;
+        // The binding the fetch uses, or null once it has been released.
+        SharedServiceBinding binding;
 
-        CarrierServiceConnection(int phoneId, String pkgName, int eventId) {
+        CarrierServiceConnection(int phoneId, String pkgName, int eventId, int sequence) {
             this.phoneId = phoneId;
             this.pkgName = pkgName;
             this.eventId = eventId;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A binding to a config app, shared by every fetch from that app until the last of them is
+     * released. Both the callbacks and the fetches run on the main thread.
+     */
+    private class SharedServiceBinding implements ServiceConnection {
+        final String pkgName;
+        final List<CarrierServiceConnection> connections = new ArrayList<>();
+        IBinder service;
+
+        SharedServiceBinding(String pkgName) {
+            this.pkgName = pkgName;
+        }
+
+        /** Adds a fetch, which is told right away if the app is already connected. */
+        void attach(CarrierServiceConnection conn) {
+            conn.binding = this;
+            connections.add(conn);
+            if (service != null) {
+                notifyConnected(conn);
+            }
+        }
+
+        /** Removes a fetch. @return whether no fetch uses the binding anymore. */
+        boolean detach(CarrierServiceConnection conn) {
+            connections.remove(conn);
+            return connections.isEmpty();
+        }
+
+        private void notifyConnected(CarrierServiceConnection conn) {
+            conn.service = service;
+            mHandler.sendMessage(mHandler.obtainMessage(conn.eventId, conn.phoneId, -1, conn));
+        }
+
+        private void onServiceLost() {
+            service = null;
+            for (CarrierServiceConnection conn : connections) {
+                conn.service = null;
+            }
         }
 
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             logd("Connected to config app: " + name.flattenToShortString());
             this.service = service;
-            mHandler.sendMessage(mHandler.obtainMessage(eventId, phoneId, -1, this));
+            for (CarrierServiceConnection conn : connections) {
+                notifyConnected(conn);
+            }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             logd("Disconnected from config app: " + name.flattenToShortString());
-            this.service = null;
+            onServiceLost();
         }
 
         @Override
         public void onBindingDied(ComponentName name) {
             logd("Binding died from config app: " + name.flattenToShortString());
-            this.service = null;
+            onServiceLost();
+            // The binding will not reconnect, so later fetches must bind again.
+            if (mSharedBindings.get(pkgName) == this) {
+                mSharedBindings.remove(pkgName);
+            }
         }
 
         @Override
         public void onNullBinding(ComponentName name) {
             logd("Null binding from config app: " + name.flattenToShortString());
-            this.service = null;
+            onServiceLost();
+            if (mSharedBindings.get(pkgName) == this) {
+                mSharedBindings.remove(pkgName);
+            }
         }
     }
 
@@ -1562,6 +2068,24 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     mHandler.sendMessage(mHandler.obtainMessage(EVENT_SYSTEM_UNLOCKED, null));
                     break;
 
+                case TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED:
+                case TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED: {
+                    int state = intent.getIntExtra(TelephonyManager.EXTRA_SIM_STATE,
+                            TelephonyManager.SIM_STATE_UNKNOWN);
+                    int phoneId = intent.getIntExtra(PhoneConstants.PHONE_KEY,
+                            SubscriptionManager.INVALID_PHONE_INDEX);
+                    // The ICCID is known once the card is present, whether or not it is locked.
+                    if (state != TelephonyManager.SIM_STATE_UNKNOWN
+                            && state != TelephonyManager.SIM_STATE_NOT_READY
+                            && state != TelephonyManager.SIM_STATE_ABSENT
+                            && state != TelephonyManager.SIM_STATE_CARD_IO_ERROR
+                            && state != TelephonyManager.SIM_STATE_CARD_RESTRICTED) {
+                        mHandler.sendMessage(
+                                mHandler.obtainMessage(EVENT_WARM_START, phoneId, -1));
+                    }
+                    break;
+                }
+
                 case Intent.ACTION_PACKAGE_ADDED:
                 case Intent.ACTION_PACKAGE_REMOVED:
                 case Intent.ACTION_PACKAGE_REPLACED:
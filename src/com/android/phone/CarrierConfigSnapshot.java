@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.util.ArraySet;
+
+import java.util.Set;
+
+/**
+ * Typed view of the carrier config keys read while setting up and managing calls.
+ *
+ * The values are resolved once from a merged config, so that call handling code does not look
+ * keys up in a bundle every time it recomputes the capabilities or properties of a connection.
+ * {@link CarrierConfigLoader} builds one snapshot per merged config and hands the same instance
+ * out until the config changes. A snapshot is immutable.
+ *
+ * When adding a key, resolve it in the constructor with the same default value its callers used
+ * with the bundle.
+ */
+public final class CarrierConfigSnapshot {
+    // TelephonyConnection
+    private final Set<String> mFilteredCnapNames;
+    private final boolean mWifiCallsCanBeHdAudio;
+    private final boolean mVideoCallsCanBeHdAudio;
+    private final boolean mGsmCdmaCallsCanBeHdAudio;
+    private final boolean mDisplayHdAudioProperty;
+    private final boolean mAllowHoldInImsCall;
+    private final boolean mSupportAddConferenceParticipants;
+    private final boolean mAllowDeflectImsCall;
+    private final boolean mAllowTransferImsCall;
+    private final boolean mAllowMergingRttCalls;
+    private final boolean mShowOrigDialStringForCdma;
+
+    // TelephonyConnectionService
+    private final boolean mDisableCdmaActivationCode;
+    private final boolean mAllowNonEmergencyCallsInEcm;
+    private final boolean mSupportImsCallForwardingWhileRoaming;
+    private final String[] mCallForwardingBlocksWhileRoaming;
+    private final boolean mAllowHoldVideoCall;
+    private final boolean mAllowHoldCallDuringEmergency;
+    private final Set<String> mSuplDataPlaneOnlyRoamingPlmns;
+    private final int mSuplControlPlaneSupport;
+    private final int mEmergencyExtensionSeconds;
+
+    // ImsConferenceController
+    private final boolean mImsConferenceSizeEnforced;
+    private final int mImsConferenceSizeLimit;
+    private final boolean mLocalDisconnectEmptyImsConference;
+
+    // DisconnectCauseUtil
+    private final int[] mBusyToneDisconnectCauses;
+
+    private CarrierConfigSnapshot(@NonNull PersistableBundle config) {
+        mFilteredCnapNames = toSet(config.getStringArray(
+                CarrierConfigManager.KEY_FILTERED_CNAP_NAMES_STRING_ARRAY));
+        mWifiCallsCanBeHdAudio = config.getBoolean(
+                CarrierConfigManager.KEY_WIFI_CALLS_CAN_BE_HD_AUDIO);
+        mVideoCallsCanBeHdAudio = config.getBoolean(
+                CarrierConfigManager.KEY_VIDEO_CALLS_CAN_BE_HD_AUDIO);
+        mGsmCdmaCallsCanBeHdAudio = config.getBoolean(
+                CarrierConfigManager.KEY_GSM_CDMA_CALLS_CAN_BE_HD_AUDIO);
+        mDisplayHdAudioProperty = config.getBoolean(
+                CarrierConfigManager.KEY_DISPLAY_HD_AUDIO_PROPERTY_BOOL);
+        mAllowHoldInImsCall = config.getBoolean(
+                CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL);
+        mSupportAddConferenceParticipants = config.getBoolean(
+                CarrierConfigManager.KEY_SUPPORT_ADD_CONFERENCE_PARTICIPANTS_BOOL);
+        mAllowDeflectImsCall = config.getBoolean(
+                CarrierConfigManager.KEY_CARRIER_ALLOW_DEFLECT_IMS_CALL_BOOL);
+        mAllowTransferImsCall = config.getBoolean(
+                CarrierConfigManager.KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL);
+        mAllowMergingRttCalls = config.getBoolean(
+                CarrierConfigManager.KEY_ALLOW_MERGING_RTT_CALLS_BOOL);
+        mShowOrigDialStringForCdma = config.getBoolean(
+                CarrierConfigManager.KEY_CONFIG_SHOW_ORIG_DIAL_STRING_FOR_CDMA_BOOL);
+
+        mDisableCdmaActivationCode = config.getBoolean(
+                CarrierConfigManager.KEY_DISABLE_CDMA_ACTIVATION_CODE_BOOL);
+        mAllowNonEmergencyCallsInEcm = config.getBoolean(
+                CarrierConfigManager.KEY_ALLOW_NON_EMERGENCY_CALLS_IN_ECM_BOOL);
+        mSupportImsCallForwardingWhileRoaming = config.getBoolean(
+                CarrierConfigManager.KEY_SUPPORT_IMS_CALL_FORWARDING_WHILE_ROAMING_BOOL, true);
+        mCallForwardingBlocksWhileRoaming = config.getStringArray(
+                CarrierConfigManager.KEY_CALL_FORWARDING_BLOCKS_WHILE_ROAMING_STRING_ARRAY);
+        mAllowHoldVideoCall = config.getBoolean(
+                CarrierConfigManager.KEY_ALLOW_HOLD_VIDEO_CALL_BOOL, true);
+        mAllowHoldCallDuringEmergency = config.getBoolean(
+                CarrierConfigManager.KEY_ALLOW_HOLD_CALL_DURING_EMERGENCY_BOOL, true);
+        mSuplDataPlaneOnlyRoamingPlmns = toSet(config.getStringArray(
+                CarrierConfigManager.Gps.KEY_ES_SUPL_DATA_PLANE_ONLY_ROAMING_PLMN_STRING_ARRAY));
+        mSuplControlPlaneSupport = config.getInt(
+                CarrierConfigManager.Gps.KEY_ES_SUPL_CONTROL_PLANE_SUPPORT_INT,
+                CarrierConfigManager.Gps.SUPL_EMERGENCY_MODE_TYPE_CP_ONLY);
+        mEmergencyExtensionSeconds = parseInt(config.getString(
+                CarrierConfigManager.Gps.KEY_ES_EXTENSION_SEC_STRING, "0"));
+
+        mImsConferenceSizeEnforced = config.getBoolean(
+                CarrierConfigManager.KEY_IS_IMS_CONFERENCE_SIZE_ENFORCED_BOOL);
+        mImsConferenceSizeLimit = config.getInt(
+                CarrierConfigManager.KEY_IMS_CONFERENCE_SIZE_LIMIT_INT);
+        mLocalDisconnectEmptyImsConference = config.getBoolean(
+                CarrierConfigManager.KEY_LOCAL_DISCONNECT_EMPTY_IMS_CONFERENCE_BOOL);
+
+        int[] busyToneCauses = config.getIntArray(
+                CarrierConfigManager.KEY_DISCONNECT_CAUSE_PLAY_BUSYTONE_INT_ARRAY);
+        mBusyToneDisconnectCauses = busyToneCauses != null ? busyToneCauses : new int[0];
+    }
+
+    /**
+     * Resolves the keys of a config. Callers in the phone process should prefer the snapshot
+     * {@link PhoneGlobals#getCarrierConfigSnapshotForSubId} hands out, which is shared until the
+     * config changes.
+     */
+    @NonNull
+    public static CarrierConfigSnapshot from(@NonNull PersistableBundle config) {
+        return new CarrierConfigSnapshot(config);
+    }
+
+    /** @return whether the CNAP name, in any case, is one the carrier wants hidden. */
+    public boolean isFilteredCnapName(@NonNull String cnapName) {
+        return !mFilteredCnapNames.isEmpty()
+                && mFilteredCnapNames.contains(cnapName.toUpperCase());
+    }
+
+    /** @see CarrierConfigManager#KEY_WIFI_CALLS_CAN_BE_HD_AUDIO */
+    public boolean wifiCallsCanBeHdAudio() {
+        return mWifiCallsCanBeHdAudio;
+    }
+
+    /** @see CarrierConfigManager#KEY_VIDEO_CALLS_CAN_BE_HD_AUDIO */
+    public boolean videoCallsCanBeHdAudio() {
+        return mVideoCallsCanBeHdAudio;
+    }
+
+    /** @see CarrierConfigManager#KEY_GSM_CDMA_CALLS_CAN_BE_HD_AUDIO */
+    public boolean gsmCdmaCallsCanBeHdAudio() {
+        return mGsmCdmaCallsCanBeHdAudio;
+    }
+
+    /** @see CarrierConfigManager#KEY_DISPLAY_HD_AUDIO_PROPERTY_BOOL */
+    public boolean displayHdAudioProperty() {
+        return mDisplayHdAudioProperty;
+    }
+
+    /** @see CarrierConfigManager#KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL */
+    public boolean allowHoldInImsCall() {
+        return mAllowHoldInImsCall;
+    }
+
+    /** @see CarrierConfigManager#KEY_SUPPORT_ADD_CONFERENCE_PARTICIPANTS_BOOL */
+    public boolean supportAddConferenceParticipants() {
+        return mSupportAddConferenceParticipants;
+    }
+
+    /** @see CarrierConfigManager#KEY_CARRIER_ALLOW_DEFLECT_IMS_CALL_BOOL */
+    public boolean allowDeflectImsCall() {
+        return mAllowDeflectImsCall;
+    }
+
+    /** @see CarrierConfigManager#KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL */
+    public boolean allowTransferImsCall() {
+        return mAllowTransferImsCall;
+    }
+
+    /** @see CarrierConfigManager#KEY_ALLOW_MERGING_RTT_CALLS_BOOL */
+    public boolean allowMergingRttCalls() {
+        return mAllowMergingRttCalls;
+    }
+
+    /** @see CarrierConfigManager#KEY_CONFIG_SHOW_ORIG_DIAL_STRING_FOR_CDMA_BOOL */
+    public boolean showOrigDialStringForCdma() {
+        return mShowOrigDialStringForCdma;
+    }
+
+    /** @see CarrierConfigManager#KEY_DISABLE_CDMA_ACTIVATION_CODE_BOOL */
+    public boolean disableCdmaActivationCode() {
+        return mDisableCdmaActivationCode;
+    }
+
+    /** @see CarrierConfigManager#KEY_ALLOW_NON_EMERGENCY_CALLS_IN_ECM_BOOL */
+    public boolean allowNonEmergencyCallsInEcm() {
+        return mAllowNonEmergencyCallsInEcm;
+    }
+
+    /** @see CarrierConfigManager#KEY_SUPPORT_IMS_CALL_FORWARDING_WHILE_ROAMING_BOOL */
+    public boolean supportImsCallForwardingWhileRoaming() {
+        return mSupportImsCallForwardingWhileRoaming;
+    }
+
+    /** @return whether the number starts with a prefix blocked while roaming. */
+    public boolean isCallForwardingBlockedWhileRoaming(@NonNull String number) {
+        if (mCallForwardingBlocksWhileRoaming == null) {
+            return false;
+        }
+        for (String prefix : mCallForwardingBlocksWhileRoaming) {
+            if (number.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @see CarrierConfigManager#KEY_ALLOW_HOLD_VIDEO_CALL_BOOL */
+    public boolean allowHoldVideoCall() {
+        return mAllowHoldVideoCall;
+    }
+
+    /** @see CarrierConfigManager#KEY_ALLOW_HOLD_CALL_DURING_EMERGENCY_BOOL */
+    public boolean allowHoldCallDuringEmergency() {
+        return mAllowHoldCallDuringEmergency;
+    }
+
+    /**
+     * @return whether the roaming network is known to only support the SUPL data plane.
+     * @see CarrierConfigManager.Gps#KEY_ES_SUPL_DATA_PLANE_ONLY_ROAMING_PLMN_STRING_ARRAY
+     */
+    public boolean isSuplDataPlaneOnlyRoamingPlmn(@Nullable String plmn) {
+        return plmn != null && mSuplDataPlaneOnlyRoamingPlmns.contains(plmn);
+    }
+
+    /** @see CarrierConfigManager.Gps#KEY_ES_SUPL_CONTROL_PLANE_SUPPORT_INT */
+    public int getSuplControlPlaneSupport() {
+        return mSuplControlPlaneSupport;
+    }
+
+    /**
+     * @return the emergency extension time in seconds, 0 when it is not a valid number.
+     * @see CarrierConfigManager.Gps#KEY_ES_EXTENSION_SEC_STRING
+     */
+    public int getEmergencyExtensionSeconds() {
+        return mEmergencyExtensionSeconds;
+    }
+
+    /** @see CarrierConfigManager#KEY_IS_IMS_CONFERENCE_SIZE_ENFORCED_BOOL */
+    public boolean isImsConferenceSizeEnforced() {
+        return mImsConferenceSizeEnforced;
+    }
+
+    /** @see CarrierConfigManager#KEY_IMS_CONFERENCE_SIZE_LIMIT_INT */
+    public int getImsConferenceSizeLimit() {
+        return mImsConferenceSizeLimit;
+    }
+
+    /** @see CarrierConfigManager#KEY_LOCAL_DISCONNECT_EMPTY_IMS_CONFERENCE_BOOL */
+    public boolean localDisconnectEmptyImsConference() {
+        return mLocalDisconnectEmptyImsConference;
+    }
+
+    /**
+     * @return whether a busy tone is played for the telephony disconnect cause.
+     * @see CarrierConfigManager#KEY_DISCONNECT_CAUSE_PLAY_BUSYTONE_INT_ARRAY
+     */
+    public boolean playsBusyToneFor(int telephonyDisconnectCause) {
+        for (int cause : mBusyToneDisconnectCauses) {
+            if (cause == telephonyDisconnectCause) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> toSet(@Nullable String[] values) {
+        Set<String> set = new ArraySet<>();
+        if (values != null) {
+            for (String value : values) {
+                if (value != null) {
+                    set.add(value);
+                }
+            }
+        }
+        return set;
+    }
+
+    private static int parseInt(@Nullable String value) {
+        try {
+            return value != null ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.UserHandle;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.uicc.UiccCard;
+import com.android.internal.telephony.uicc.UiccController;
+import com.android.internal.telephony.uicc.UiccProfile;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed carrier privilege status, granted by the UICC access rules of each phone, of the
+ * packages installed for the system user.
+ *
+ * The index is maintained on the main thread, like the UICC objects whose rules it evaluates.
+ * When the access rules of a phone are loaded or its card changes, the status of every package is
+ * recomputed for that phone only; when a package is installed, updated or removed, only that
+ * package is recomputed, as part of handling the broadcast. Each change publishes a new immutable
+ * {@link Snapshot}, which binder threads read without locking.
+ *
+ * A phone is only answered from the snapshot if its current UICC profile is the one the snapshot
+ * was built for and its rules were loaded then. Otherwise, for instance while a new card is being
+ * read, the lookups return {@link #STATUS_UNKNOWN} or null and the caller checks the card itself.
+ *
+ * Only the access rules on the UICC are indexed. Rules from carrier config are still checked by
+ * the caller.
+ */
+public class CarrierPrivilegeIndex {
+    private static final String LOG_TAG = "CarrierPrivilegeIndex";
+
+    /** Returned by lookups for a uid, package or phone that is not indexed. */
+    public static final int STATUS_UNKNOWN = Integer.MIN_VALUE;
+
+    private static final int EVENT_ICC_CHANGED = 1;
+    private static final int EVENT_RULES_LOADED = 2;
+
+    private static final int PACKAGE_INFO_FLAGS = PackageManager.MATCH_DISABLED_COMPONENTS
+            | PackageManager.MATCH_DISABLED_UNTIL_USED_COMPONENTS
+            | PackageManager.GET_SIGNING_CERTIFICATES;
+
+    /** Evaluates the UICC access rules of the phones. */
+    @VisibleForTesting
+    public interface RulesChecker {
+        int getPhoneCount();
+        /** @return the current UICC profile of the phone, or null if it has no card. */
+        UiccProfile getProfile(int phoneId);
+        /** @return the carrier privilege status the access rules of the phone grant. */
+        int getCarrierPrivilegeStatus(int phoneId, PackageInfo packageInfo);
+    }
+
+    /** Immutable carrier privilege status of the indexed packages and uids. */
+    public static final class Snapshot {
+        private final int mPhoneCount;
+        // Per phone, the UICC profile the statuses were computed with, or null if it had none.
+        private final UiccProfile[] mProfiles;
+        // Per phone, whether its access rules were loaded when the statuses were computed.
+        private final boolean[] mRulesLoaded;
+        private final Map<String, int[]> mStatusesByPackage;
+        // Per uid, the bitmask of phones whose access rules grant privileges to the uid.
+        private final SparseIntArray mPrivilegedPhonesByUid;
+        private final SparseArray<int[]> mStatusesByUid;
+        private final List<List<String>> mPrivilegedPackagesByPhone;
+
+        private Snapshot(int phoneCount, UiccProfile[] profiles,
+                Map<String, PackageEntry> packages) {
+            mPhoneCount = phoneCount;
+            mProfiles = profiles;
+            mRulesLoaded = new boolean[phoneCount];
+            Map<String, int[]> statusesByPackage = new HashMap<>();
+            mStatusesByUid = new SparseArray<>();
+            mPrivilegedPhonesByUid = new SparseIntArray();
+            List<List<String>> privilegedPackages = new ArrayList<>();
+            for (int i = 0; i < phoneCount; i++) {
+                privilegedPackages.add(new ArrayList<>());
+            }
+            for (Map.Entry<String, PackageEntry> entry : packages.entrySet()) {
+                PackageEntry pkg = entry.getValue();
+                statusesByPackage.put(entry.getKey(), pkg.statuses);
+                int[] uidStatuses = mStatusesByUid.get(pkg.uid);
+                if (uidStatuses == null) {
+                    uidStatuses = new int[phoneCount];
+                    for (int i = 0; i < phoneCount; i++) {
+                        uidStatuses[i] = TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+                    }
+                    mStatusesByUid.put(pkg.uid, uidStatuses);
+                }
+                int privilegedPhones = 0;
+                for (int i = 0; i < phoneCount; i++) {
+                    // As for UiccCarrierPrivilegeRules#getCarrierPrivilegeStatusForUid, a uid
+                    // takes the first status of its packages that is not NO_ACCESS.
+                    if (uidStatuses[i] == TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS) {
+                        uidStatuses[i] = pkg.statuses[i];
+                    }
+                    if (pkg.statuses[i]
+                            != TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED) {
+                        mRulesLoaded[i] = true;
+                    }
+                    if (pkg.statuses[i] == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS) {
+                        privilegedPhones |= 1 << i;
+                        privilegedPackages.get(i).add(entry.getKey());
+                    }
+                }
+                if (privilegedPhones != 0) {
+                    mPrivilegedPhonesByUid.put(pkg.uid,
+                            mPrivilegedPhonesByUid.get(pkg.uid) | privilegedPhones);
+                }
+            }
+            mStatusesByPackage = Collections.unmodifiableMap(statusesByPackage);
+            for (int i = 0; i < phoneCount; i++) {
+                // Same order as the walk over the installed packages this replaces, which went
+                // from the last package to the first.
+                Collections.reverse(privilegedPackages.get(i));
+                privilegedPackages.set(i, Collections.unmodifiableList(privilegedPackages.get(i)));
+            }
+            mPrivilegedPackagesByPhone = Collections.unmodifiableList(privilegedPackages);
+        }
+
+        public boolean isIndexedPhone(int phoneId) {
+            return phoneId >= 0 && phoneId < mPhoneCount;
+        }
+
+        /**
+         * @return whether the statuses of the phone were computed with {@code profile} and with
+         * its access rules loaded, so that they are those the profile would return now.
+         */
+        public boolean isCurrent(int phoneId, UiccProfile profile) {
+            return isIndexedPhone(phoneId) && profile != null && mProfiles[phoneId] == profile
+                    && mRulesLoaded[phoneId];
+        }
+
+        /**
+         * @return the status granted to {@code uid} by the access rules of the phone, or
+         * {@link #STATUS_UNKNOWN} if the uid or phone is not indexed.
+         */
+        public int getStatusForUid(int phoneId, int uid) {
+            int[] statuses = mStatusesByUid.get(uid);
+            if (statuses == null || !isIndexedPhone(phoneId)) return STATUS_UNKNOWN;
+            if ((getPrivilegedPhonesForUid(uid) & (1 << phoneId)) != 0) {
+                return TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS;
+            }
+            return statuses[phoneId];
+        }
+
+        /** @return the bitmask of phones whose access rules grant privileges to {@code uid}. */
+        public int getPrivilegedPhonesForUid(int uid) {
+            return mPrivilegedPhonesByUid.get(uid);
+        }
+
+        /**
+         * @return the status granted to {@code packageName} by the access rules of the phone, or
+         * {@link #STATUS_UNKNOWN} if the package or phone is not indexed.
+         */
+        public int getStatusForPackage(int phoneId, String packageName) {
+            int[] statuses = mStatusesByPackage.get(packageName);
+            if (statuses == null || !isIndexedPhone(phoneId)) return STATUS_UNKNOWN;
+            return statuses[phoneId];
+        }
+
+        public boolean isIndexedPackage(String packageName) {
+            return mStatusesByPackage.containsKey(packageName);
+        }
+
+        /** @return the packages the access rules of the phone grant privileges to. */
+        public List<String> getPackagesWithCarrierPrivileges(int phoneId) {
+            return isIndexedPhone(phoneId)
+                    ? mPrivilegedPackagesByPhone.get(phoneId) : Collections.emptyList();
+        }
+    }
+
+    /** The status of one package on each phone. Owned by the main thread. */
+    private static final class PackageEntry {
+        final int uid;
+        final int[] statuses;
+
+        PackageEntry(int uid, int[] statuses) {
+            this.uid = uid;
+            this.statuses = statuses;
+        }
+    }
+
+    private final PackageManager mPackageManager;
+    private final RulesChecker mRulesChecker;
+    private final Handler mHandler;
+    // Owned by the main thread. In the order of the installed packages.
+    private final Map<String, PackageEntry> mPackages = new LinkedHashMap<>();
+    private final SparseArray<UiccProfile> mRegisteredProfiles = new SparseArray<>();
+    private int mPhoneCount;
+    private UiccProfile[] mProfiles = new UiccProfile[0];
+    private volatile Snapshot mSnapshot;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName == null) return;
+            // Runs on the main thread, so the snapshot is updated before any later event.
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                    && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                removePackage(packageName);
+            } else {
+                recomputePackage(packageName);
+            }
+        }
+    };
+
+    /** Must be created on the main thread. */
+    public CarrierPrivilegeIndex(Context context) {
+        this(context.getPackageManager(), new UiccRulesChecker(), Looper.getMainLooper());
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        // Only packages of the system user are indexed.
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.SYSTEM, filter, null,
+                mHandler);
+        // Notifies right away with the current cards.
+        UiccController.getInstance().registerForIccChanged(mHandler, EVENT_ICC_CHANGED, null);
+    }
+
+    @VisibleForTesting
+    public CarrierPrivilegeIndex(PackageManager packageManager, RulesChecker rulesChecker,
+            Looper looper) {
+        mPackageManager = packageManager;
+        mRulesChecker = rulesChecker;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case EVENT_ICC_CHANGED:
+                        onIccChanged();
+                        break;
+                    case EVENT_RULES_LOADED:
+                        recomputePhone((Integer) ((AsyncResult) msg.obj).userObj);
+                        break;
+                }
+            }
+        };
+    }
+
+    /** @return the published snapshot, or null if the index has not been built yet. */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return the status the access rules of the phone grant to {@code uid}, or
+     * {@link #STATUS_UNKNOWN} if the uid is not indexed or the index is not current for the
+     * phone.
+     */
+    public int getStatusForUid(int phoneId, int uid) {
+        Snapshot snapshot = getCurrentSnapshot(phoneId);
+        return snapshot != null ? snapshot.getStatusForUid(phoneId, uid) : STATUS_UNKNOWN;
+    }
+
+    /**
+     * @return the status the access rules of the phone grant to {@code packageName}, or
+     * {@link #STATUS_UNKNOWN} if the package is not indexed or the index is not current for the
+     * phone.
+     */
+    public int getStatusForPackage(int phoneId, String packageName) {
+        Snapshot snapshot = getCurrentSnapshot(phoneId);
+        return snapshot != null
+                ? snapshot.getStatusForPackage(phoneId, packageName) : STATUS_UNKNOWN;
+    }
+
+    /**
+     * @return the packages the access rules of the phone grant privileges to, or null if the
+     * index is not current for the phone.
+     */
+    public List<String> getPackagesWithCarrierPrivileges(int phoneId) {
+        Snapshot snapshot = getCurrentSnapshot(phoneId);
+        return snapshot != null ? snapshot.getPackagesWithCarrierPrivileges(phoneId) : null;
+    }
+
+    private Snapshot getCurrentSnapshot(int phoneId) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null || !snapshot.isIndexedPhone(phoneId)) return null;
+        return snapshot.isCurrent(phoneId, mRulesChecker.getProfile(phoneId)) ? snapshot : null;
+    }
+
+    private void onIccChanged() {
+        UiccController controller = UiccController.getInstance();
+        for (int i = 0; i < mRulesChecker.getPhoneCount(); i++) {
+            UiccProfile profile = controller.getUiccProfileForPhone(i);
+            UiccProfile registered = mRegisteredProfiles.get(i);
+            if (profile == registered) continue;
+            if (registered != null) {
+                registered.unregisterForCarrierPrivilegeRulesLoaded(mHandler);
+            }
+            mRegisteredProfiles.put(i, profile);
+            if (profile != null) {
+                // Notifies right away if the rules are already loaded.
+                profile.registerForCarrierPrivilegeRulesLoaded(mHandler, EVENT_RULES_LOADED, i);
+            }
+            recomputePhone(i);
+        }
+    }
+
+    /** Recomputes the status of every installed package on one phone. */
+    @VisibleForTesting
+    public void recomputePhone(int phoneId) {
+        if (updatePhoneCount() || mSnapshot == null) {
+            // The phones changed, or nothing was indexed yet, so recompute everything.
+            rebuild();
+            return;
+        }
+        if (phoneId < 0 || phoneId >= mPhoneCount) return;
+        mProfiles[phoneId] = mRulesChecker.getProfile(phoneId);
+        Map<String, PackageEntry> packages = new LinkedHashMap<>();
+        for (PackageInfo pkgInfo : getInstalledPackages()) {
+            PackageEntry old = mPackages.get(pkgInfo.packageName);
+            int[] statuses;
+            if (old != null) {
+                statuses = old.statuses.clone();
+                statuses[phoneId] = getStatus(phoneId, pkgInfo);
+            } else {
+                statuses = getStatuses(pkgInfo);
+            }
+            packages.put(pkgInfo.packageName, new PackageEntry(getUid(pkgInfo), statuses));
+        }
+        mPackages.clear();
+        mPackages.putAll(packages);
+        publish();
+    }
+
+    /** Recomputes the status of one package on every phone. */
+    @VisibleForTesting
+    public void recomputePackage(String packageName) {
+        if (updatePhoneCount() || mSnapshot == null) {
+            rebuild();
+            return;
+        }
+        PackageInfo pkgInfo;
+        try {
+            pkgInfo = mPackageManager.getPackageInfo(packageName, PACKAGE_INFO_FLAGS);
+        } catch (PackageManager.NameNotFoundException e) {
+            removePackage(packageName);
+            return;
+        }
+        mPackages.put(packageName, new PackageEntry(getUid(pkgInfo), getStatuses(pkgInfo)));
+        publish();
+    }
+
+    @VisibleForTesting
+    public void removePackage(String packageName) {
+        if (mPackages.remove(packageName) != null) {
+            publish();
+        }
+    }
+
+    private void rebuild() {
+        mProfiles = new UiccProfile[mPhoneCount];
+        for (int i = 0; i < mPhoneCount; i++) {
+            mProfiles[i] = mRulesChecker.getProfile(i);
+        }
+        mPackages.clear();
+        for (PackageInfo pkgInfo : getInstalledPackages()) {
+            mPackages.put(pkgInfo.packageName,
+                    new PackageEntry(getUid(pkgInfo), getStatuses(pkgInfo)));
+        }
+        publish();
+    }
+
+    /** @return whether the number of phones changed. */
+    private boolean updatePhoneCount() {
+        int phoneCount = mRulesChecker.getPhoneCount();
+        if (phoneCount == mPhoneCount) return false;
+        mPhoneCount = phoneCount;
+        return true;
+    }
+
+    private void publish() {
+        mSnapshot = new Snapshot(mPhoneCount, mProfiles.clone(), mPackages);
+    }
+
+    private List<PackageInfo> getInstalledPackages() {
+        List<PackageInfo> packages = new ArrayList<>();
+        for (PackageInfo pkgInfo : mPackageManager.getInstalledPackagesAsUser(
+                PACKAGE_INFO_FLAGS, UserHandle.SYSTEM.getIdentifier())) {
+            if (pkgInfo != null && pkgInfo.packageName != null) {
+                packages.add(pkgInfo);
+            }
+        }
+        return packages;
+    }
+
+    private int[] getStatuses(PackageInfo pkgInfo) {
+        int[] statuses = new int[mPhoneCount];
+        for (int i = 0; i < mPhoneCount; i++) {
+            statuses[i] = getStatus(i, pkgInfo);
+        }
+        return statuses;
+    }
+
+    private int getStatus(int phoneId, PackageInfo pkgInfo) {
+        return mProfiles[phoneId] != null
+                ? mRulesChecker.getCarrierPrivilegeStatus(phoneId, pkgInfo)
+                : TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
+    }
+
+    private static int getUid(PackageInfo pkgInfo) {
+        return pkgInfo.applicationInfo != null ? pkgInfo.applicationInfo.uid : -1;
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            pw.println("CarrierPrivilegeIndex: not built");
+            return;
+        }
+        pw.println("CarrierPrivilegeIndex: packages=" + snapshot.mStatusesByPackage.size()
+                + " uids=" + snapshot.mStatusesByUid.size());
+        pw.increaseIndent();
+        for (int i = 0; i < snapshot.mPhoneCount; i++) {
+            pw.println("phoneId=" + i + " hasCard=" + (snapshot.mProfiles[i] != null)
+                    + " rulesLoaded=" + snapshot.mRulesLoaded[i]
+                    + " privileged=" + snapshot.getPackagesWithCarrierPrivileges(i));
+        }
+        pw.decreaseIndent();
+    }
+
+    /** Checks the access rules on the UICC of each phone. */
+    private static class UiccRulesChecker implements RulesChecker {
+        @Override
+        public int getPhoneCount() {
+            return TelephonyManager.getDefault().getPhoneCount();
+        }
+
+        @Override
+        public UiccProfile getProfile(int phoneId) {
+            return UiccController.getInstance().getUiccProfileForPhone(phoneId);
+        }
+
+        @Override
+        public int getCarrierPrivilegeStatus(int phoneId, PackageInfo packageInfo) {
+            UiccCard card = UiccController.getInstance().getUiccCard(phoneId);
+            if (card == null) {
+                Log.d(LOG_TAG, "No UICC on phone " + phoneId);
+                return TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
+            }
+            return card.getCarrierPrivilegeStatus(packageInfo);
+        }
+    }
+}
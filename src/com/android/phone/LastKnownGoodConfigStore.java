@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Persists the last config loaded for the SIM in each slot, so that {@link CarrierConfigLoader}
+ * can serve it while the SIM of the same ICCID is being loaded again, for example after a reboot.
+ *
+ * There is one file per slot, in the format of {@link CarrierConfigBinaryFile}, which remembers
+ * the ICCID it was saved for. A config is only restored for the same ICCID. The files are named
+ * like the other cached configs, so they are cleared with them on a system update.
+ */
+/* package */ final class LastKnownGoodConfigStore {
+    private static final String TAG = "LastKnownGoodConfigStore";
+
+    private static final String KEY_ICCID = "__carrier_config_last_known_good_iccid__";
+
+    private final File mDir;
+
+    LastKnownGoodConfigStore(@NonNull File dir) {
+        mDir = dir;
+    }
+
+    /** Replaces the config saved for the slot. */
+    void save(int phoneId, @NonNull String iccid, @NonNull PersistableBundle config)
+            throws IOException {
+        PersistableBundle saved = new PersistableBundle(config);
+        saved.putString(KEY_ICCID, iccid);
+        CarrierConfigBinaryFile.write(getFile(phoneId), saved);
+    }
+
+    /**
+     * @return the config saved for the slot, or null if there is none, it was saved for another
+     * ICCID or it is unreadable.
+     */
+    @Nullable
+    PersistableBundle restore(int phoneId, @NonNull String iccid) {
+        File file = getFile(phoneId);
+        try {
+            CarrierConfigBinaryFile configFile = CarrierConfigBinaryFile.open(file);
+            // Only the ICCID is decoded when the slot holds another SIM.
+            if (!iccid.equals(configFile.get(KEY_ICCID))) {
+                return null;
+            }
+            PersistableBundle config = configFile.readAll();
+            config.remove(KEY_ICCID);
+            return config;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Deleting unreadable config of slot " + phoneId + ": " + e);
+            file.delete();
+            return null;
+        }
+    }
+
+    private File getFile(int phoneId) {
+        return new File(mDir, "carrierconfig-lastknowngood-" + phoneId + ".bin");
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram with fixed, roughly logarithmic buckets. Recording a sample does not
+ * allocate and is safe to do from any thread, so it can be used on binder and handler hot paths.
+ * Percentiles are reported as the upper bound of the bucket that contains them.
+ */
+public final class LatencyHistogram {
+    /** Upper bounds of the buckets in microseconds. Samples above the last bound overflow. */
+    private static final long[] BUCKET_UPPER_BOUNDS_US = {
+            100, 250, 500,
+            1_000, 2_000, 5_000,
+            10_000, 20_000, 50_000,
+            100_000, 200_000, 500_000,
+            1_000_000, 2_000_000, 5_000_000,
+            10_000_000, 30_000_000, 60_000_000 };
+
+    private final AtomicLongArray mCounts =
+            new AtomicLongArray(BUCKET_UPPER_BOUNDS_US.length + 1);
+
+    /** Records a sample measured in microseconds. */
+    public void record(long latencyMicros) {
+        int bucket = 0;
+        while (bucket < BUCKET_UPPER_BOUNDS_US.length
+                && latencyMicros > BUCKET_UPPER_BOUNDS_US[bucket]) {
+            bucket++;
+        }
+        mCounts.incrementAndGet(bucket);
+    }
+
+    /** Records a sample measured in milliseconds. */
+    public void recordMillis(long latencyMillis) {
+        record(latencyMillis * 1000);
+    }
+
+    /** @return the total number of samples recorded. */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile the percentile to compute, between 0 and 100.
+     * @return the upper bound in microseconds of the bucket containing the given percentile,
+     * {@link Long#MAX_VALUE} if it falls in the overflow bucket, or 0 if nothing was recorded.
+     */
+    public long getPercentileMicros(int percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        // Rank of the sample at the given percentile, 1-based.
+        long rank = Math.max(1, (count * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_UPPER_BOUNDS_US.length; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return BUCKET_UPPER_BOUNDS_US[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Clears all recorded samples. */
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    /**
+     * @return a one line summary of the histogram, for example
+     * {@code "n=12 p50<=2.0ms p90<=5.0ms p99<=10.0ms"}.
+     */
+    public String toSummaryString() {
+        return "n=" + getCount()
+                + " p50<=" + formatMicros(getPercentileMicros(50))
+                + " p90<=" + formatMicros(getPercentileMicros(90))
+                + " p99<=" + formatMicros(getPercentileMicros(99));
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros == Long.MAX_VALUE) {
+            return "inf";
+        }
+        return (micros / 1000) + "." + ((micros % 1000) / 100) + "ms";
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.Manifest;
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.location.LocationManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.telephony.LocationAccessPolicy;
+import android.telephony.LocationAccessPolicy.LocationPermissionQuery;
+import android.telephony.LocationAccessPolicy.LocationPermissionResult;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memoizes the permission and target SDK part of {@link LocationAccessPolicy} decisions for a
+ * short time, so that a caller polling service state or cell info does not go through the
+ * permission service and package manager on every call.
+ *
+ * Only decisions allowing access are cached, keyed on the caller (uid, pid, package and feature)
+ * and on the SDK levels the query enforces. Every time a cached decision is used, the location
+ * app-op it was allowed by is noted again, as {@link LocationAccessPolicy} does, so that location
+ * accesses are still attributed to the caller. If the app-op is no longer allowed, the decision is
+ * dropped and the query goes through {@link LocationAccessPolicy}. A cached decision expires after
+ * {@link #DECISION_TTL_MS}, and is dropped earlier when the runtime permissions of its uid change,
+ * when a location app-op of its package changes, when the location mode of any user changes, or
+ * when the foreground user changes, since {@link LocationAccessPolicy} only lets callers of the
+ * foreground user or with cross-user permissions see location.
+ */
+public class LocationPermissionCache {
+    private static final String LOG_TAG = "LocationPermissionCache";
+    private static final int MAX_ENTRIES = 128;
+    @VisibleForTesting
+    public static final long DECISION_TTL_MS = 5 * 1000;
+
+    /** Level of location info a caller may see, for scrubbing location out of results. */
+    public static final int LOCATION_ACCESS_NONE = 0;
+    public static final int LOCATION_ACCESS_COARSE = 1;
+    public static final int LOCATION_ACCESS_FINE = 2;
+
+    // Kinds of cached decision.
+    private static final int KIND_PERMISSION_RESULT = 0;
+    private static final int KIND_ACCESS_LEVEL = 1;
+
+    private static final class Key {
+        final int kind;
+        final int uid;
+        final int pid;
+        final String packageName;
+        final String featureId;
+        final int minSdkForFine;
+        final int minSdkForCoarse;
+
+        Key(int kind, LocationPermissionQuery query, int minSdkForFine, int minSdkForCoarse) {
+            this.kind = kind;
+            this.uid = query.callingUid;
+            this.pid = query.callingPid;
+            this.packageName = query.callingPackage;
+            this.featureId = query.callingFeatureId;
+            this.minSdkForFine = minSdkForFine;
+            this.minSdkForCoarse = minSdkForCoarse;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return kind == that.kind && uid == that.uid && pid == that.pid
+                    && minSdkForFine == that.minSdkForFine
+                    && minSdkForCoarse == that.minSdkForCoarse
+                    && Objects.equals(packageName, that.packageName)
+                    && Objects.equals(featureId, that.featureId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, uid, pid, packageName, featureId, minSdkForFine,
+                    minSdkForCoarse);
+        }
+    }
+
+    private static final class Entry {
+        final Object decision;
+        // The location app-op noted when the decision was made, or null if none was.
+        final String appOp;
+        final long expiryTimeMs;
+
+        Entry(Object decision, String appOp, long expiryTimeMs) {
+            this.decision = decision;
+            this.appOp = appOp;
+            this.expiryTimeMs = expiryTimeMs;
+        }
+    }
+
+    private final Context mContext;
+    private final AppOpsManager mAppOps;
+    private final LruCache<Key, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+    // Incremented on every invalidation, so that a check racing with a change is not cached.
+    private final AtomicLong mGeneration = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    private final BroadcastReceiver mInvalidationReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_USER_SWITCHED.equals(intent.getAction())) {
+                onUserSwitched();
+            } else {
+                onLocationModeChanged();
+            }
+        }
+    };
+
+    public LocationPermissionCache(Context context) {
+        mContext = context;
+        mAppOps = context.getSystemService(AppOpsManager.class);
+
+        AppOpsManager.OnOpChangedListener opListener = this::onAppOpChanged;
+        mAppOps.startWatchingMode(AppOpsManager.OPSTR_FINE_LOCATION, null, opListener);
+        mAppOps.startWatchingMode(AppOpsManager.OPSTR_COARSE_LOCATION, null, opListener);
+
+        context.getPackageManager().addOnPermissionsChangeListener(this::onPermissionsChanged);
+
+        // The location mode is per user, so listen to the changes of every user.
+        IntentFilter filter = new IntentFilter(LocationManager.MODE_CHANGED_ACTION);
+        filter.addAction(Intent.ACTION_USER_SWITCHED);
+        context.registerReceiverAsUser(mInvalidationReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    /**
+     * Same as {@link LocationAccessPolicy#checkLocationPermission}, but reuses a recent decision
+     * allowing access for the same caller and SDK levels when there is one.
+     */
+    public LocationPermissionResult checkLocationPermission(LocationPermissionQuery query) {
+        Key key = new Key(KIND_PERMISSION_RESULT, query, query.minSdkVersionForFine,
+                query.minSdkVersionForCoarse);
+        Object decision = getDecision(key, query.method);
+        if (decision != null) {
+            return (LocationPermissionResult) decision;
+        }
+        final long generation = mGeneration.get();
+        LocationPermissionResult result =
+                LocationAccessPolicy.checkLocationPermission(mContext, query);
+        if (result == LocationPermissionResult.ALLOWED) {
+            putDecision(key, result, getNotedAppOp(query), generation);
+        }
+        return result;
+    }
+
+    /**
+     * Checks both {@code fineQuery} and {@code coarseQuery}, which must be for the same caller,
+     * and caches the combined outcome as a single decision.
+     * @return {@link #LOCATION_ACCESS_FINE} if the fine query is allowed,
+     * {@link #LOCATION_ACCESS_COARSE} if only the coarse query is allowed, or
+     * {@link #LOCATION_ACCESS_NONE} otherwise. Hard and soft denials are not distinguished.
+     */
+    public int getLocationAccessLevel(LocationPermissionQuery fineQuery,
+            LocationPermissionQuery coarseQuery) {
+        Key key = new Key(KIND_ACCESS_LEVEL, fineQuery, fineQuery.minSdkVersionForFine,
+                coarseQuery.minSdkVersionForCoarse);
+        Object decision = getDecision(key, fineQuery.method);
+        if (decision != null) {
+            return (Integer) decision;
+        }
+        final long generation = mGeneration.get();
+        if (LocationAccessPolicy.checkLocationPermission(mContext, fineQuery)
+                == LocationPermissionResult.ALLOWED) {
+            putDecision(key, LOCATION_ACCESS_FINE, getNotedAppOp(fineQuery), generation);
+            return LOCATION_ACCESS_FINE;
+        }
+        if (LocationAccessPolicy.checkLocationPermission(mContext, coarseQuery)
+                == LocationPermissionResult.ALLOWED) {
+            putDecision(key, LOCATION_ACCESS_COARSE, getNotedAppOp(coarseQuery), generation);
+            return LOCATION_ACCESS_COARSE;
+        }
+        return LOCATION_ACCESS_NONE;
+    }
+
+    /**
+     * @return the cached decision for {@code key} after noting its app-op again, or null if there
+     * is none or the app-op is no longer allowed.
+     */
+    private Object getDecision(Key key, String method) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.expiryTimeMs <= SystemClock.elapsedRealtime()) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        if (entry.appOp != null && mAppOps.noteOpNoThrow(entry.appOp, key.uid, key.packageName,
+                key.featureId, method) != AppOpsManager.MODE_ALLOWED) {
+            // The app-op changed before its callback arrived. The query is checked again, which
+            // notes the app-op a second time in this rare case.
+            synchronized (mEntries) {
+                mEntries.remove(key);
+            }
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.decision;
+    }
+
+    private void putDecision(Key key, Object decision, String appOp, long generation) {
+        synchronized (mEntries) {
+            if (generation == mGeneration.get()) {
+                mEntries.put(key, new Entry(decision, appOp,
+                        SystemClock.elapsedRealtime() + DECISION_TTL_MS));
+            }
+        }
+    }
+
+    /**
+     * @return the location app-op {@link LocationAccessPolicy} noted when it allowed
+     * {@code query}, or null if access was allowed without one, for a system caller or because of
+     * the target SDK of the caller.
+     */
+    private String getNotedAppOp(LocationPermissionQuery query) {
+        switch (query.callingUid) {
+            case Process.PHONE_UID:
+            case Process.SYSTEM_UID:
+            case Process.NETWORK_STACK_UID:
+            case Process.ROOT_UID:
+                return null;
+        }
+        if (query.minSdkVersionForFine < Integer.MAX_VALUE
+                && hasPermission(query, Manifest.permission.ACCESS_FINE_LOCATION)) {
+            return AppOpsManager.OPSTR_FINE_LOCATION;
+        }
+        if (query.minSdkVersionForCoarse < Integer.MAX_VALUE
+                && hasPermission(query, Manifest.permission.ACCESS_COARSE_LOCATION)) {
+            return AppOpsManager.OPSTR_COARSE_LOCATION;
+        }
+        return null;
+    }
+
+    private boolean hasPermission(LocationPermissionQuery query, String permission) {
+        return mContext.checkPermission(permission, query.callingPid, query.callingUid)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /** Drops the decisions of {@code uid}, whose runtime permissions changed. */
+    @VisibleForTesting
+    public void onPermissionsChanged(int uid) {
+        synchronized (mEntries) {
+            mGeneration.incrementAndGet();
+            for (Map.Entry<Key, Entry> entry : mEntries.snapshot().entrySet()) {
+                if (entry.getKey().uid == uid) {
+                    mEntries.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /** Drops the decisions of {@code packageName}, one of whose location app-ops changed. */
+    @VisibleForTesting
+    public void onAppOpChanged(String op, String packageName) {
+        synchronized (mEntries) {
+            mGeneration.incrementAndGet();
+            for (Map.Entry<Key, Entry> entry : mEntries.snapshot().entrySet()) {
+                if (packageName == null || packageName.equals(entry.getKey().packageName)) {
+                    mEntries.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /** Drops all decisions, since location was turned on or off for some user. */
+    @VisibleForTesting
+    public void onLocationModeChanged() {
+        Log.d(LOG_TAG, "onLocationModeChanged: clearing cached decisions");
+        clear();
+    }
+
+    /** Drops all decisions, since the foreground user changed. */
+    @VisibleForTesting
+    public void onUserSwitched() {
+        Log.d(LOG_TAG, "onUserSwitched: clearing cached decisions");
+        clear();
+    }
+
+    private void clear() {
+        synchronized (mEntries) {
+            mGeneration.incrementAndGet();
+            mEntries.evictAll();
+        }
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        pw.println("LocationPermissionCache: size=" + mEntries.size() + " hits=" + mHits.get()
+                + " misses=" + mMisses.get());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.telephony.SubscriptionManager;
+
+import com.android.internal.util.IndentingPrintWriter;
+
+/**
+ * Aggregates queue-wait and execution latency of the requests processed by
+ * {@link PhoneInterfaceManager}'s main thread handler, per command code and per phone.
+ *
+ * Queue wait is the time between the request being posted by a binder thread and the main thread
+ * picking it up. Execution is the time between the main thread picking it up and the result being
+ * available, which includes the RIL round-trip for commands that talk to the modem.
+ *
+ * All histograms are allocated up front so that recording on the main thread never allocates.
+ */
+/* package */ class MainThreadRequestStats {
+    // Upper bound (exclusive) of the command codes that are tracked individually. Codes at or
+    // above this are folded into the last slot.
+    private static final int MAX_TRACKED_COMMAND = 128;
+    // Phones are tracked by phone id; index 0 is used for requests not bound to a phone.
+    private static final int MAX_TRACKED_PHONES = 4;
+
+    private final LatencyHistogram[] mQueueWaitByCommand =
+            new LatencyHistogram[MAX_TRACKED_COMMAND];
+    private final LatencyHistogram[] mExecutionByCommand =
+            new LatencyHistogram[MAX_TRACKED_COMMAND];
+    private final LatencyHistogram[] mQueueWaitByPhone =
+            new LatencyHistogram[MAX_TRACKED_PHONES + 1];
+    private final LatencyHistogram[] mExecutionByPhone =
+            new LatencyHistogram[MAX_TRACKED_PHONES + 1];
+
+    MainThreadRequestStats() {
+        for (int i = 0; i < MAX_TRACKED_COMMAND; i++) {
+            mQueueWaitByCommand[i] = new LatencyHistogram();
+            mExecutionByCommand[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i <= MAX_TRACKED_PHONES; i++) {
+            mQueueWaitByPhone[i] = new LatencyHistogram();
+            mExecutionByPhone[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records the time a request spent in the main thread's message queue.
+     * @param phoneId the phone the request applies to, or
+     *        {@link SubscriptionManager#INVALID_PHONE_INDEX} if it is not bound to one.
+     */
+    void recordQueueWait(int command, int phoneId, long latencyMicros) {
+        mQueueWaitByCommand[commandIndex(command)].record(latencyMicros);
+        mQueueWaitByPhone[phoneIndex(phoneId)].record(latencyMicros);
+    }
+
+    /**
+     * Records the time between the main thread picking a request up and the request completing.
+     * @param phoneId the phone the request applies to, or
+     *        {@link SubscriptionManager#INVALID_PHONE_INDEX} if it is not bound to one.
+     */
+    void recordExecution(int command, int phoneId, long latencyMicros) {
+        mExecutionByCommand[commandIndex(command)].record(latencyMicros);
+        mExecutionByPhone[phoneIndex(phoneId)].record(latencyMicros);
+    }
+
+    /** Clears all recorded samples. */
+    void reset() {
+        for (int i = 0; i < MAX_TRACKED_COMMAND; i++) {
+            mQueueWaitByCommand[i].reset();
+            mExecutionByCommand[i].reset();
+        }
+        for (int i = 0; i <= MAX_TRACKED_PHONES; i++) {
+            mQueueWaitByPhone[i].reset();
+            mExecutionByPhone[i].reset();
+        }
+    }
+
+    /** Prints the commands and phones that have recorded samples. */
+    void dump(IndentingPrintWriter pw) {
+        pw.println("Request latency by command:");
+        pw.increaseIndent();
+        for (int i = 0; i < MAX_TRACKED_COMMAND; i++) {
+            if (mQueueWaitByCommand[i].getCount() == 0) continue;
+            pw.println("cmd=" + i + " queue: " + mQueueWaitByCommand[i].toSummaryString()
+                    + " exec: " + mExecutionByCommand[i].toSummaryString());
+        }
+        pw.decreaseIndent();
+        pw.println("Request latency by phone:");
+        pw.increaseIndent();
+        for (int i = 0; i <= MAX_TRACKED_PHONES; i++) {
+            if (mQueueWaitByPhone[i].getCount() == 0) continue;
+            pw.println((i == 0 ? "phone=none" : "phoneId=" + (i - 1))
+                    + " queue: " + mQueueWaitByPhone[i].toSummaryString()
+                    + " exec: " + mExecutionByPhone[i].toSummaryString());
+        }
+        pw.decreaseIndent();
+    }
+
+    private static int commandIndex(int command) {
+        return (command >= 0 && command < MAX_TRACKED_COMMAND) ? command : MAX_TRACKED_COMMAND - 1;
+    }
+
+    private static int phoneIndex(int phoneId) {
+        if (phoneId < 0) {
+            return 0;
+        }
+        return Math.min(phoneId, MAX_TRACKED_PHONES - 1) + 1;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+
+/**
+ * The carrier config of one phone merged from the layers {@link CarrierConfigLoader} keeps,
+ * computed once and shared by every caller until one of the layers changes.
+ *
+ * The layers are applied over the platform defaults in this order: the config from the default
+ * app, the config from the carrier app, the persistent overrides and the overrides. A snapshot
+ * remembers the layer bundles and the generation it was merged from, so that a reader can tell
+ * whether it is still current with a few reference comparisons.
+ *
+ * The merged bundle is never modified after construction. Callers that may modify the config
+ * must take a {@link #copy()}.
+ */
+/* package */ final class MergedCarrierConfig {
+    private final PersistableBundle mDefaultAppConfig;
+    private final PersistableBundle mCarrierAppConfig;
+    private final PersistableBundle mPersistentOverrideConfig;
+    private final PersistableBundle mOverrideConfig;
+    private final boolean mHasCarrierPackage;
+    private final long mGeneration;
+    private final PersistableBundle mMerged;
+    // Resolved on first use, racing readers resolve equal snapshots.
+    private volatile CarrierConfigSnapshot mSnapshot;
+
+    private MergedCarrierConfig(PersistableBundle defaultAppConfig,
+            PersistableBundle carrierAppConfig, PersistableBundle persistentOverrideConfig,
+            PersistableBundle overrideConfig, boolean hasCarrierPackage, long generation,
+            PersistableBundle merged) {
+        mDefaultAppConfig = defaultAppConfig;
+        mCarrierAppConfig = carrierAppConfig;
+        mPersistentOverrideConfig = persistentOverrideConfig;
+        mOverrideConfig = overrideConfig;
+        mHasCarrierPackage = hasCarrierPackage;
+        mGeneration = generation;
+        mMerged = merged;
+    }
+
+    /**
+     * Merges the layers of one phone over the platform defaults.
+     * @param hasCarrierPackage whether the phone has a carrier app providing config. It only
+     *        matters when the default app config is the last layer marking the config as
+     *        applied, see {@link #needsCarrierPackage}.
+     * @param generation the generation of in-place changes to the layers, see
+     *        {@link #isBuiltFrom}.
+     */
+    static MergedCarrierConfig merge(@Nullable PersistableBundle defaultAppConfig,
+            @Nullable PersistableBundle carrierAppConfig,
+            @Nullable PersistableBundle persistentOverrideConfig,
+            @Nullable PersistableBundle overrideConfig, boolean hasCarrierPackage,
+            long generation) {
+        PersistableBundle merged = CarrierConfigManager.getDefaultConfig();
+        if (defaultAppConfig != null) {
+            merged.putAll(defaultAppConfig);
+            if (!hasCarrierPackage) {
+                merged.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, true);
+            }
+        }
+        if (carrierAppConfig != null) {
+            merged.putAll(carrierAppConfig);
+            merged.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, true);
+        }
+        if (persistentOverrideConfig != null) {
+            merged.putAll(persistentOverrideConfig);
+            merged.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, true);
+        }
+        if (overrideConfig != null) {
+            merged.putAll(overrideConfig);
+        }
+        return new MergedCarrierConfig(defaultAppConfig, carrierAppConfig,
+                persistentOverrideConfig, overrideConfig, hasCarrierPackage, generation, merged);
+    }
+
+    /**
+     * @return whether merging these layers depends on whether the phone has a carrier app,
+     * which is only the case when the default app config is present and no later layer marks
+     * the config as applied.
+     */
+    static boolean needsCarrierPackage(@Nullable PersistableBundle defaultAppConfig,
+            @Nullable PersistableBundle carrierAppConfig,
+            @Nullable PersistableBundle persistentOverrideConfig) {
+        return defaultAppConfig != null && carrierAppConfig == null
+                && persistentOverrideConfig == null;
+    }
+
+    /** @return whether this snapshot was merged from exactly these layers. */
+    boolean isBuiltFrom(@Nullable PersistableBundle defaultAppConfig,
+            @Nullable PersistableBundle carrierAppConfig,
+            @Nullable PersistableBundle persistentOverrideConfig,
+            @Nullable PersistableBundle overrideConfig, long generation) {
+        return mDefaultAppConfig == defaultAppConfig && mCarrierAppConfig == carrierAppConfig
+                && mPersistentOverrideConfig == persistentOverrideConfig
+                && mOverrideConfig == overrideConfig && mGeneration == generation;
+    }
+
+    boolean hasCarrierPackage() {
+        return mHasCarrierPackage;
+    }
+
+    /** @return the merged config, which must not be modified. */
+    PersistableBundle get() {
+        return mMerged;
+    }
+
+    /** @return the typed view of the merged config, shared by every caller. */
+    CarrierConfigSnapshot getSnapshot() {
+        CarrierConfigSnapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            snapshot = CarrierConfigSnapshot.from(mMerged);
+            mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return a shallow copy of the merged config, as {@link CarrierConfigManager#getDefaultConfig}
+     * returns of the defaults.
+     */
+    PersistableBundle copy() {
+        return new PersistableBundle(mMerged);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches facts about an installed package that cannot change without the package being
+ * reinstalled or updated, such as its target SDK, so that binder calls made at a high rate do not
+ * query PackageManager every time. Entries are keyed by uid and package name, and are dropped
+ * when the package is added, replaced, changed or removed for any user.
+ */
+public class PackageInfoCache {
+    private static final String LOG_TAG = "PackageInfoCache";
+    private static final int MAX_ENTRIES = 256;
+
+    /** The cached facts about one package install. */
+    private static final class Entry {
+        final String packageName;
+        final int targetSdkVersion;
+
+        Entry(String packageName, int targetSdkVersion) {
+            this.packageName = packageName;
+            this.targetSdkVersion = targetSdkVersion;
+        }
+    }
+
+    private final PackageManager mPackageManager;
+    private final LruCache<String, Entry> mEntries = new LruCache<>(MAX_ENTRIES);
+    // Incremented on every invalidation, so that a lookup racing with a package change does not
+    // cache a stale result.
+    private final AtomicLong mGeneration = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName != null) {
+                invalidatePackage(packageName);
+            }
+        }
+    };
+
+    public PackageInfoCache(Context context) {
+        this(context.getPackageManager());
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null, null);
+    }
+
+    @VisibleForTesting
+    public PackageInfoCache(PackageManager packageManager) {
+        mPackageManager = packageManager;
+    }
+
+    /**
+     * @return the target SDK of {@code packageName} as installed for the user of {@code uid}, or
+     * {@link Integer#MAX_VALUE} if the package cannot be found.
+     */
+    public int getTargetSdk(String packageName, int uid) {
+        final String key = uid + ":" + packageName;
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            mHits.incrementAndGet();
+            return entry.targetSdkVersion;
+        }
+        mMisses.incrementAndGet();
+
+        final long generation = mGeneration.get();
+        try {
+            final ApplicationInfo ai = mPackageManager.getApplicationInfoAsUser(
+                    packageName, 0, UserHandle.getUserHandleForUid(uid));
+            if (ai == null) return Integer.MAX_VALUE;
+            entry = new Entry(packageName, ai.targetSdkVersion);
+        } catch (PackageManager.NameNotFoundException unexpected) {
+            Log.e(LOG_TAG, "Failed to get package info for pkg=" + packageName + ", uid=" + uid);
+            return Integer.MAX_VALUE;
+        }
+        synchronized (mEntries) {
+            if (generation == mGeneration.get()) {
+                mEntries.put(key, entry);
+            }
+        }
+        return entry.targetSdkVersion;
+    }
+
+    /** Drops the cached entries of {@code packageName} for all users. */
+    @VisibleForTesting
+    public void invalidatePackage(String packageName) {
+        synchronized (mEntries) {
+            mGeneration.incrementAndGet();
+            for (Map.Entry<String, Entry> entry : mEntries.snapshot().entrySet()) {
+                if (packageName.equals(entry.getValue().packageName)) {
+                    mEntries.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    @VisibleForTesting
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        pw.println("PackageInfoCache: size=" + mEntries.size() + " hits=" + mHits.get()
+                + " misses=" + mMisses.get());
+    }
+}
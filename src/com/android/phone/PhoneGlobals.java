@@ -17,6 +17,7 @@
 package com.android.phone;
 
 import android.annotation.IntDef;
+import android.annotation.Nullable;
 import android.app.Activity;
 import android.app.KeyguardManager;
 import android.app.ProgressDialog;
@@ -80,6 +81,8 @@ import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * Global state for the telephony subsystem when running in the primary
@@ -500,6 +503,28 @@ public class PhoneGlobals extends ContextWrapper {
                 getAttributionTag());
     }
 
+    /**
+     * @return the typed view of the carrier config of the subscription, see
+     * {@link CarrierConfigLoader#getConfigSnapshotForSubId}.
+     */
+    public CarrierConfigSnapshot getCarrierConfigSnapshotForSubId(int subId) {
+        return configLoader.getConfigSnapshotForSubId(subId);
+    }
+
+    /**
+     * Registers a listener of carrier config changes that is only called when one of the given
+     * keys may have changed, see {@link CarrierConfigLoader#registerConfigChangeListener}.
+     */
+    public void registerCarrierConfigChangeListener(@Nullable Set<String> keys,
+            Executor executor, CarrierConfigLoader.ConfigChangeListener listener) {
+        configLoader.registerConfigChangeListener(keys, executor, listener);
+    }
+
+    public void unregisterCarrierConfigChangeListener(
+            CarrierConfigLoader.ConfigChangeListener listener) {
+        configLoader.unregisterConfigChangeListener(listener);
+    }
+
     private void registerSettingsObserver() {
         mSettingsObserver.unobserve();
         String dataRoamingSetting = Settings.Global.DATA_ROAMING;
@@ -714,7 +739,8 @@ public class PhoneGlobals extends ContextWrapper {
                 updateLimitedSimFunctionForDualSim();
                 int subId = intent.getIntExtra(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX,
                         SubscriptionManager.INVALID_SUBSCRIPTION_ID);
-                if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                if (SubscriptionManager.isValidSubscriptionId(subId)
+                        && CarrierConfigDiff.mayHaveChanged(intent)) {
                     mHandler.sendMessage(mHandler.obtainMessage(EVENT_CARRIER_CONFIG_CHANGED,
                             new Integer(subId)));
                 }
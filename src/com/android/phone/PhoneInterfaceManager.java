@@ -33,7 +33,6 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.ComponentInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -54,6 +53,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceSpecificException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.WorkSource;
@@ -176,6 +176,7 @@ import com.android.internal.telephony.uicc.UiccSlot;
 import com.android.internal.telephony.util.LocaleUtils;
 import com.android.internal.telephony.util.VoicemailNotificationSettingsUtil;
 import com.android.internal.util.HexDump;
+import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.settings.PickSmsSubscriptionActivity;
 import com.android.phone.vvm.PhoneAccountHandleConverter;
 import com.android.phone.vvm.RemoteVvmTaskManager;
@@ -193,8 +194,12 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
@@ -299,6 +304,14 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int SELECT_P2 = 0;
     private static final int SELECT_P3 = 0x10;
 
+    // Result of a phone in sendRequestToPhones() that did not complete before the deadline.
+    private static final Object PHONE_REQUEST_TIMED_OUT = new Object();
+
+    // Deadline of a command whose requester waits until the main thread completes it.
+    private static final long NO_REQUEST_TIMEOUT = 0;
+    // Deadline of the read commands listed in getRequestTimeoutMillis().
+    private static final long READ_REQUEST_TIMEOUT_MS = 30 * 1000;
+
     /** The singleton instance. */
     private static PhoneInterfaceManager sInstance;
 
@@ -312,6 +325,22 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private SharedPreferences mTelephonySharedPreferences;
     private PhoneConfigurationManager mPhoneConfigurationManager;
 
+    // Number of binder threads currently blocked in sendRequest(), keyed by CMD_* code.
+    private final ConcurrentHashMap<Integer, AtomicInteger> mBlockedRequestCounts =
+            new ConcurrentHashMap<>();
+    // Number of sendRequest() calls that hit their deadline since boot, keyed by CMD_* code.
+    private final ConcurrentHashMap<Integer, AtomicInteger> mTimedOutRequestCounts =
+            new ConcurrentHashMap<>();
+    // Number of sendRequest() calls served by an identical in-flight read, keyed by CMD_* code.
+    private final ConcurrentHashMap<Integer, AtomicInteger> mCoalescedRequestCounts =
+            new ConcurrentHashMap<>();
+    // Idempotent read requests currently in flight. Guarded by itself.
+    private final HashMap<InFlightReadKey, MainThreadRequest> mInFlightReads = new HashMap<>();
+    private final MainThreadRequestStats mRequestStats = new MainThreadRequestStats();
+    private PackageInfoCache mPackageInfoCache;
+    private LocationPermissionCache mLocationPermissionCache;
+    private CarrierPrivilegeIndex mCarrierPrivilegeIndex;
+
     /** User Activity */
     private AtomicBoolean mNotifyUserActivity;
     private static final int USER_ACTIVITY_NOTIFICATION_DELAY = 200;
@@ -371,8 +400,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
+     * A request object for use with {@link MainThreadHandler}. Requesters should
+     * {@link #await(long)} on the request after sending. The main thread completes the request
+     * once the result has been set. A request that is not completed before its deadline, if its
+     * command has one, is cancelled, and any result produced for it afterwards is dropped.
      */
     private static final class MainThreadRequest {
         /** The argument to use for the request */
@@ -388,6 +419,16 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         public WorkSource workSource;
 
+        // Bookkeeping for MainThreadRequestStats. Timestamps are elapsed realtime in micros.
+        int command;
+        int phoneId = SubscriptionManager.INVALID_PHONE_INDEX;
+        long queuedTimeMicros;
+        long dequeuedTimeMicros;
+
+        // Guarded by this.
+        private boolean mIsCompleted;
+        private boolean mIsCancelled;
+
         public MainThreadRequest(Object argument) {
             this.argument = argument;
         }
@@ -407,6 +448,100 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             }
             this.workSource = workSource;
         }
+
+        /**
+         * Marks the request as completed and wakes up the waiting requester. Has no effect if
+         * the requester already gave up on the request.
+         */
+        synchronized void complete() {
+            if (mIsCancelled) {
+                return;
+            }
+            mIsCompleted = true;
+            notifyAll();
+        }
+
+        /**
+         * Cancels the request if it has not completed yet.
+         * @return true if the request was cancelled, false if it had already completed.
+         */
+        synchronized boolean cancel() {
+            if (!mIsCompleted) {
+                mIsCancelled = true;
+                // Release any other requesters sharing this request.
+                notifyAll();
+            }
+            return mIsCancelled;
+        }
+
+        synchronized boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * Blocks until the request is completed or cancelled, or {@code timeoutMillis} has
+         * elapsed. A {@code timeoutMillis} of {@link #NO_REQUEST_TIMEOUT} waits without a
+         * deadline. An interrupt does not end the wait early, but the interrupt status of the
+         * thread is restored before returning.
+         * @return true if the request completed, false if it was cancelled or the deadline
+         * passed first.
+         */
+        synchronized boolean await(long timeoutMillis) {
+            final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+            boolean interrupted = false;
+            while (!mIsCompleted && !mIsCancelled) {
+                long remaining = 0;
+                if (timeoutMillis != NO_REQUEST_TIMEOUT) {
+                    remaining = deadline - SystemClock.elapsedRealtime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return mIsCompleted;
+        }
+    }
+
+    /**
+     * Identifies an idempotent read request, so that concurrent callers issuing the same command
+     * with the same argument for the same subscription or phone share one {@link MainThreadRequest}.
+     */
+    private static final class InFlightReadKey {
+        private final int mCommand;
+        private final Object mArgument;
+        private final int mSubId;
+        private final Phone mPhone;
+
+        InFlightReadKey(int command, Object argument, Integer subId, Phone phone) {
+            mCommand = command;
+            mArgument = argument;
+            mSubId = subId != null ? subId : SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+            mPhone = phone;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof InFlightReadKey)) return false;
+            InFlightReadKey that = (InFlightReadKey) o;
+            return mCommand == that.mCommand
+                    && mSubId == that.mSubId
+                    && mPhone == that.mPhone
+                    && Objects.equals(mArgument, that.mArgument);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCommand, mArgument, mSubId, mPhone);
+        }
     }
 
     private static final class IncomingThirdPartyCallArgs {
@@ -444,6 +579,10 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             IccAPDUArgument iccArgument;
             final Phone defaultPhone = getDefaultPhone();
 
+            if (msg.obj instanceof MainThreadRequest) {
+                onRequestDequeued((MainThreadRequest) msg.obj);
+            }
+
             switch (msg.what) {
                 case CMD_HANDLE_USSD_REQUEST: {
                     request = (MainThreadRequest) msg.obj;
@@ -1272,9 +1411,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     // If a timeout occurs, the response will be null
                     request.result = (ar.exception == null && ar.result != null)
                             ? ar.result : new ArrayList<CellInfo>();
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 case CMD_REQUEST_CELL_INFO_UPDATE:
                     request = (MainThreadRequest) msg.obj;
@@ -1302,6 +1439,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     } catch (RemoteException re) {
                         Log.w(LOG_TAG, "Discarded CellInfo due to Callback RemoteException");
                     }
+                    notifyRequester(request);
                     break;
                 case CMD_GET_CELL_LOCATION:
                     request = (MainThreadRequest) msg.obj;
@@ -1320,9 +1458,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                                 ? new CellIdentityCdma() : new CellIdentityGsm();
                     }
 
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 case CMD_MODEM_REBOOT:
                     request = (MainThreadRequest) msg.obj;
@@ -1502,9 +1638,22 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
 
         private void notifyRequester(MainThreadRequest request) {
-            synchronized (request) {
-                request.notifyAll();
+            if (request.dequeuedTimeMicros != 0) {
+                mRequestStats.recordExecution(request.command, request.phoneId,
+                        elapsedRealtimeMicros() - request.dequeuedTimeMicros);
             }
+            request.complete();
+        }
+
+        private void onRequestDequeued(MainThreadRequest request) {
+            request.dequeuedTimeMicros = elapsedRealtimeMicros();
+            if (request.phone != null) {
+                request.phoneId = request.phone.getPhoneId();
+            } else if (SubscriptionManager.isValidSubscriptionId(request.subId)) {
+                request.phoneId = mSubscriptionController.getPhoneId(request.subId);
+            }
+            mRequestStats.recordQueueWait(request.command, request.phoneId,
+                    request.dequeuedTimeMicros - request.queuedTimeMicros);
         }
 
         private void handleNullReturnEvent(Message msg, String command) {
@@ -1583,31 +1732,144 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             throw new RuntimeException("This method will deadlock if called from the main thread.");
         }
 
-        MainThreadRequest request = null;
         if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID && phone != null) {
             throw new IllegalArgumentException("subId and phone cannot both be specified!");
-        } else if (phone != null) {
-            request = new MainThreadRequest(argument, phone, workSource);
+        }
+
+        // Idempotent reads attach to an identical request that is already in flight, if any.
+        final InFlightReadKey key = isIdempotentRead(command)
+                ? new InFlightReadKey(command, argument, subId, phone) : null;
+        MainThreadRequest request = null;
+        boolean isLeader = true;
+        if (key != null) {
+            synchronized (mInFlightReads) {
+                request = mInFlightReads.get(key);
+                if (request != null && !request.isCancelled()) {
+                    isLeader = false;
+                    getRequestCounter(mCoalescedRequestCounts, command).incrementAndGet();
+                } else {
+                    request = createMainThreadRequest(argument, subId, phone, workSource);
+                    mInFlightReads.put(key, request);
+                }
+            }
         } else {
-            request = new MainThreadRequest(argument, subId, workSource);
+            request = createMainThreadRequest(argument, subId, phone, workSource);
         }
 
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
+        if (isLeader) {
+            postRequest(command, request);
+        }
 
-        // Wait for the request to complete
-        synchronized (request) {
-            while (request.result == null) {
-                try {
-                    request.wait();
-                } catch (InterruptedException e) {
-                    // Do nothing, go back and wait until the request is complete
+        // Wait for the request to complete. Commands with a deadline give up once it passes and
+        // return the same result the main thread produces when the modem reports an error.
+        final long timeoutMillis = getRequestTimeoutMillis(command);
+        final AtomicInteger blocked = getRequestCounter(mBlockedRequestCounts, command);
+        blocked.incrementAndGet();
+        try {
+            if (!request.await(timeoutMillis) && request.cancel()) {
+                // Drop the command if the main thread has not picked it up yet.
+                mMainThreadHandler.removeMessages(command, request);
+                getRequestCounter(mTimedOutRequestCounts, command).incrementAndGet();
+                loge("sendRequest: command " + command + " timed out after " + timeoutMillis
+                        + "ms");
+                return getTimedOutResult(command);
+            }
+        } finally {
+            blocked.decrementAndGet();
+            if (isLeader && key != null) {
+                synchronized (mInFlightReads) {
+                    mInFlightReads.remove(key, request);
                 }
             }
         }
         return request.result;
     }
 
+    private static MainThreadRequest createMainThreadRequest(
+            Object argument, Integer subId, Phone phone, WorkSource workSource) {
+        if (phone != null) {
+            return new MainThreadRequest(argument, phone, workSource);
+        } else {
+            return new MainThreadRequest(argument, subId, workSource);
+        }
+    }
+
+    /**
+     * @return true if {@code command} only reads state, so that concurrent identical requests
+     * can share a single round-trip to the modem and the same result.
+     */
+    private static boolean isIdempotentRead(int command) {
+        switch (command) {
+            case CMD_GET_PREFERRED_NETWORK_TYPE:
+            case CMD_GET_NETWORK_SELECTION_MODE:
+            case CMD_GET_CALL_WAITING:
+            case CMD_GET_CDMA_ROAMING_MODE:
+            case CMD_GET_ALLOWED_CARRIERS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the maximum time a binder thread may block in {@link #sendRequest} for
+     * {@code command}, or {@link #NO_REQUEST_TIMEOUT} to wait until the main thread completes it.
+     *
+     * Only reads whose failure result is already part of their ITelephony contract have a
+     * deadline; see {@link #getTimedOutResult}. Everything else, including every command that
+     * changes modem or SIM state and may still take effect after its requester gave up, waits
+     * without one.
+     */
+    private static long getRequestTimeoutMillis(int command) {
+        switch (command) {
+            case CMD_NV_READ_ITEM:
+            case CMD_GET_PREFERRED_NETWORK_TYPE:
+            case CMD_GET_CALL_FORWARDING:
+            case CMD_GET_CALL_WAITING:
+            case CMD_GET_ALLOWED_CARRIERS:
+            case CMD_GET_FORBIDDEN_PLMNS:
+            case CMD_GET_NETWORK_SELECTION_MODE:
+            case CMD_GET_CDMA_ROAMING_MODE:
+                return READ_REQUEST_TIMEOUT_MS;
+            default:
+                return NO_REQUEST_TIMEOUT;
+        }
+    }
+
+    /**
+     * @return the result {@link #sendRequest} returns for {@code command} when it passes its
+     * deadline, which is the result {@link MainThreadHandler} produces for the same command when
+     * the modem or SIM reports an error.
+     */
+    private static Object getTimedOutResult(int command) {
+        switch (command) {
+            case CMD_NV_READ_ITEM:
+                return "";
+            case CMD_GET_PREFERRED_NETWORK_TYPE:
+                return null;
+            case CMD_GET_CALL_FORWARDING:
+                return new CallForwardingInfo(CallForwardingInfo.STATUS_UNKNOWN_ERROR,
+                        0 /* reason */, null /* number */, 0 /* timeout */);
+            case CMD_GET_CALL_WAITING:
+                return TelephonyManager.CALL_WAITING_STATUS_UNKNOWN_ERROR;
+            case CMD_GET_ALLOWED_CARRIERS:
+                return new IllegalStateException("Failed to get carrier restrictions");
+            case CMD_GET_FORBIDDEN_PLMNS:
+                return new IllegalArgumentException("Failed to retrieve Forbidden Plmns");
+            case CMD_GET_NETWORK_SELECTION_MODE:
+                return TelephonyManager.NETWORK_SELECTION_MODE_UNKNOWN;
+            case CMD_GET_CDMA_ROAMING_MODE:
+                return TelephonyManager.CDMA_ROAMING_MODE_RADIO_DEFAULT;
+            default:
+                throw new IllegalArgumentException("Command " + command + " has no deadline");
+        }
+    }
+
+    private static AtomicInteger getRequestCounter(
+            ConcurrentHashMap<Integer, AtomicInteger> counters, int command) {
+        return counters.computeIfAbsent(command, k -> new AtomicInteger());
+    }
+
     /**
      * Asynchronous ("fire and forget") version of sendRequest():
      * Posts the specified command to be executed on the main thread, and
@@ -1633,10 +1895,76 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private void sendRequestAsync(
             int command, Object argument, Phone phone, WorkSource workSource) {
         MainThreadRequest request = new MainThreadRequest(argument, phone, workSource);
+        postRequest(command, request);
+    }
+
+    /**
+     * Posts {@code command} to each of {@code phones} at once and waits for all of them to
+     * complete, so that the total latency is that of the slowest phone rather than the sum over
+     * all phones. If {@code command} has a deadline, it is shared by all phones; otherwise this
+     * blocks until every phone completed, like {@link #sendRequest} does for a single phone.
+     * @return the result for each phone, in the same order as {@code phones}. The result of a
+     * phone that did not complete before the deadline is {@link #PHONE_REQUEST_TIMED_OUT}, so
+     * callers must decide for themselves whether a partial result is acceptable.
+     */
+    private Object[] sendRequestToPhones(
+            int command, Object argument, Phone[] phones, WorkSource workSource) {
+        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
+            throw new RuntimeException("This method will deadlock if called from the main thread.");
+        }
+
+        final MainThreadRequest[] requests = new MainThreadRequest[phones.length];
+        for (int i = 0; i < phones.length; i++) {
+            requests[i] = new MainThreadRequest(argument, phones[i], workSource);
+            postRequest(command, requests[i]);
+        }
+
+        final long timeoutMillis = getRequestTimeoutMillis(command);
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        final Object[] results = new Object[phones.length];
+        final AtomicInteger blocked = getRequestCounter(mBlockedRequestCounts, command);
+        blocked.incrementAndGet();
+        try {
+            for (int i = 0; i < phones.length; i++) {
+                long remaining = timeoutMillis == NO_REQUEST_TIMEOUT ? NO_REQUEST_TIMEOUT
+                        : Math.max(1, deadline - SystemClock.elapsedRealtime());
+                if (!requests[i].await(remaining) && requests[i].cancel()) {
+                    mMainThreadHandler.removeMessages(command, requests[i]);
+                    getRequestCounter(mTimedOutRequestCounts, command).incrementAndGet();
+                    loge("sendRequestToPhones: command " + command + " timed out after "
+                            + timeoutMillis + "ms on phone " + phones[i].getPhoneId());
+                    results[i] = PHONE_REQUEST_TIMED_OUT;
+                } else {
+                    results[i] = requests[i].result;
+                }
+            }
+        } finally {
+            blocked.decrementAndGet();
+        }
+        return results;
+    }
+
+    private void postRequest(int command, MainThreadRequest request) {
+        request.command = command;
+        request.queuedTimeMicros = elapsedRealtimeMicros();
         Message msg = mMainThreadHandler.obtainMessage(command, request);
         msg.sendToTarget();
     }
 
+    private static long elapsedRealtimeMicros() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    /** Prints the main thread request latency histograms. */
+    /* package */ void dumpRequestStats(IndentingPrintWriter pw) {
+        mRequestStats.dump(pw);
+    }
+
+    /** Clears the main thread request latency histograms. */
+    /* package */ void resetRequestStats() {
+        mRequestStats.reset();
+    }
+
     /**
      * Initialize the singleton PhoneInterfaceManager instance.
      * This is only done once, at startup, from PhoneApp.onCreate().
@@ -1666,6 +1994,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         mNetworkScanRequestTracker = new NetworkScanRequestTracker();
         mPhoneConfigurationManager = PhoneConfigurationManager.getInstance();
         mNotifyUserActivity = new AtomicBoolean(false);
+        mPackageInfoCache = new PackageInfoCache(mApp);
+        mLocationPermissionCache = new LocationPermissionCache(mApp);
+        mCarrierPrivilegeIndex = new CarrierPrivilegeIndex(mApp);
 
         publish();
     }
@@ -2278,7 +2609,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 .checkPackage(Binder.getCallingUid(), callingPackage);
 
         LocationAccessPolicy.LocationPermissionResult locationResult =
-                LocationAccessPolicy.checkLocationPermission(mApp,
+                mLocationPermissionCache.checkLocationPermission(
                         new LocationAccessPolicy.LocationPermissionQuery.Builder()
                                 .setCallingPackage(callingPackage)
                                 .setCallingFeatureId(callingFeatureId)
@@ -2382,15 +2713,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * @return target SDK if the package is found or INT_MAX.
      */
     private int getTargetSdk(String packageName) {
-        try {
-            final ApplicationInfo ai = mApp.getPackageManager().getApplicationInfoAsUser(
-                    packageName, 0, UserHandle.getUserHandleForUid(Binder.getCallingUid()));
-            if (ai != null) return ai.targetSdkVersion;
-        } catch (PackageManager.NameNotFoundException unexpected) {
-            loge("Failed to get package info for pkg="
-                    + packageName + ", uid=" + Binder.getCallingUid());
-        }
-        return Integer.MAX_VALUE;
+        return mPackageInfoCache.getTargetSdk(packageName, Binder.getCallingUid());
     }
 
     @Override
@@ -2425,10 +2748,36 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     private List<CellInfo> getCachedCellInfo() {
+        Phone[] phones = PhoneFactory.getPhones();
+        Object[] infos = new Object[phones.length];
+        for (int i = 0; i < phones.length; i++) {
+            infos[i] = phones[i].getAllCellInfo();
+        }
+        return mergeCellInfo(phones, infos);
+    }
+
+    /**
+     * Concatenates the per-phone cell info lists in {@code infos}, in phone order, skipping
+     * phones that have no cell info.
+     *
+     * A phone whose request timed out contributes no cell info, exactly like a phone whose modem
+     * reported an error, and the cell info of the other phones is still returned. The ids of
+     * such phones are logged so that a partial list can be told apart from an empty one.
+     */
+    private List<CellInfo> mergeCellInfo(Phone[] phones, Object[] infos) {
         List<CellInfo> cellInfos = new ArrayList<CellInfo>();
-        for (Phone phone : PhoneFactory.getPhones()) {
-            List<CellInfo> info = phone.getAllCellInfo();
-            if (info != null) cellInfos.addAll(info);
+        List<Integer> timedOutPhoneIds = new ArrayList<>();
+        for (int i = 0; i < infos.length; i++) {
+            if (infos[i] == PHONE_REQUEST_TIMED_OUT) {
+                timedOutPhoneIds.add(phones[i].getPhoneId());
+            } else if (infos[i] != null) {
+                cellInfos.addAll((List<CellInfo>) infos[i]);
+            }
+        }
+        if (!timedOutPhoneIds.isEmpty()) {
+            loge("getAllCellInfo: timed out on phones " + timedOutPhoneIds + ", returning "
+                    + cellInfos.size() + " cell infos from the other "
+                    + (phones.length - timedOutPhoneIds.size()) + " phones");
         }
         return cellInfos;
     }
@@ -2439,7 +2788,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 .checkPackage(Binder.getCallingUid(), callingPackage);
 
         LocationAccessPolicy.LocationPermissionResult locationResult =
-                LocationAccessPolicy.checkLocationPermission(mApp,
+                mLocationPermissionCache.checkLocationPermission(
                         new LocationAccessPolicy.LocationPermissionQuery.Builder()
                                 .setCallingPackage(callingPackage)
                                 .setCallingFeatureId(callingFeatureId)
@@ -2465,13 +2814,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         WorkSource workSource = getWorkSource(Binder.getCallingUid());
         final long identity = Binder.clearCallingIdentity();
         try {
-            List<CellInfo> cellInfos = new ArrayList<CellInfo>();
-            for (Phone phone : PhoneFactory.getPhones()) {
-                final List<CellInfo> info = (List<CellInfo>) sendRequest(
-                        CMD_GET_ALL_CELL_INFO, null, phone, workSource);
-                if (info != null) cellInfos.addAll(info);
-            }
-            return cellInfos;
+            // Query all phones concurrently. CMD_GET_ALL_CELL_INFO has no deadline, so like the
+            // sequential queries this replaces, this blocks until every phone has answered.
+            final Phone[] phones = PhoneFactory.getPhones();
+            return mergeCellInfo(phones,
+                    sendRequestToPhones(CMD_GET_ALL_CELL_INFO, null, phones, workSource));
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -5904,9 +6251,12 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             loge("getCarrierPrivilegeStatusForUid: No UICC");
             return TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED;
         }
-        return getCarrierPrivilegeStatusFromCarrierConfigRules(
-                profile.getCarrierPrivilegeStatusForUid(
-                        phone.getContext().getPackageManager(), uid), uid, phone);
+        int privilegeFromSim = mCarrierPrivilegeIndex.getStatusForUid(phone.getPhoneId(), uid);
+        if (privilegeFromSim == CarrierPrivilegeIndex.STATUS_UNKNOWN) {
+            privilegeFromSim = profile.getCarrierPrivilegeStatusForUid(
+                    phone.getContext().getPackageManager(), uid);
+        }
+        return getCarrierPrivilegeStatusFromCarrierConfigRules(privilegeFromSim, uid, phone);
     }
 
     @Override
@@ -5938,9 +6288,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
               continue;
             }
 
+            int privilegeFromSim = mCarrierPrivilegeIndex.getStatusForPackage(i, pkgName);
+            if (privilegeFromSim == CarrierPrivilegeIndex.STATUS_UNKNOWN) {
+                privilegeFromSim =
+                        card.getCarrierPrivilegeStatus(mApp.getPackageManager(), pkgName);
+            }
             result = getCarrierPrivilegeStatusFromCarrierConfigRules(
-                card.getCarrierPrivilegeStatus(mApp.getPackageManager(), pkgName),
-                getPhone(i), pkgName);
+                privilegeFromSim, getPhone(i), pkgName);
             if (result == TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS) {
                 break;
             }
@@ -5971,7 +6325,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         UiccCard card = UiccController.getInstance().getUiccCard(phoneId);
         // has UICC in that slot.
         if (card != null) {
-            if (card.hasCarrierPrivilegeRules()) {
+            List<String> indexedPackages =
+                    mCarrierPrivilegeIndex.getPackagesWithCarrierPrivileges(phoneId);
+            if (indexedPackages != null) {
+                privilegedPackages.addAll(indexedPackages);
+            } else if (card.hasCarrierPrivilegeRules()) {
                 if (packages == null) {
                     // Only check packages in user 0 for now
                     packages = pm.getInstalledPackagesAsUser(
@@ -6795,34 +7153,31 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return null;
         }
 
-        LocationAccessPolicy.LocationPermissionResult fineLocationResult =
-                LocationAccessPolicy.checkLocationPermission(mApp,
-                        new LocationAccessPolicy.LocationPermissionQuery.Builder()
-                                .setCallingPackage(callingPackage)
-                                .setCallingFeatureId(callingFeatureId)
-                                .setCallingPid(Binder.getCallingPid())
-                                .setCallingUid(Binder.getCallingUid())
-                                .setMethod("getServiceStateForSubscriber")
-                                .setLogAsInfo(true)
-                                .setMinSdkVersionForFine(Build.VERSION_CODES.Q)
-                                .build());
-
-        LocationAccessPolicy.LocationPermissionResult coarseLocationResult =
-                LocationAccessPolicy.checkLocationPermission(mApp,
-                        new LocationAccessPolicy.LocationPermissionQuery.Builder()
-                                .setCallingPackage(callingPackage)
-                                .setCallingFeatureId(callingFeatureId)
-                                .setCallingPid(Binder.getCallingPid())
-                                .setCallingUid(Binder.getCallingUid())
-                                .setMethod("getServiceStateForSubscriber")
-                                .setLogAsInfo(true)
-                                .setMinSdkVersionForCoarse(Build.VERSION_CODES.Q)
-                                .build());
         // We don't care about hard or soft here -- all we need to know is how much info to scrub.
+        // Both the fine and the coarse check are served by a single cached decision.
+        int locationAccessLevel = mLocationPermissionCache.getLocationAccessLevel(
+                new LocationAccessPolicy.LocationPermissionQuery.Builder()
+                        .setCallingPackage(callingPackage)
+                        .setCallingFeatureId(callingFeatureId)
+                        .setCallingPid(Binder.getCallingPid())
+                        .setCallingUid(Binder.getCallingUid())
+                        .setMethod("getServiceStateForSubscriber")
+                        .setLogAsInfo(true)
+                        .setMinSdkVersionForFine(Build.VERSION_CODES.Q)
+                        .build(),
+                new LocationAccessPolicy.LocationPermissionQuery.Builder()
+                        .setCallingPackage(callingPackage)
+                        .setCallingFeatureId(callingFeatureId)
+                        .setCallingPid(Binder.getCallingPid())
+                        .setCallingUid(Binder.getCallingUid())
+                        .setMethod("getServiceStateForSubscriber")
+                        .setLogAsInfo(true)
+                        .setMinSdkVersionForCoarse(Build.VERSION_CODES.Q)
+                        .build());
         boolean hasFinePermission =
-                fineLocationResult == LocationAccessPolicy.LocationPermissionResult.ALLOWED;
+                locationAccessLevel == LocationPermissionCache.LOCATION_ACCESS_FINE;
         boolean hasCoarsePermission =
-                coarseLocationResult == LocationAccessPolicy.LocationPermissionResult.ALLOWED;
+                locationAccessLevel == LocationPermissionCache.LOCATION_ACCESS_COARSE;
 
         final long identity = Binder.clearCallingIdentity();
         try {
@@ -7284,6 +7639,43 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return;
         }
         DumpsysHandler.dump(mApp, fd, writer, args);
+        dumpMainThreadRequests(writer);
+    }
+
+    private void dumpMainThreadRequests(PrintWriter printWriter) {
+        IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
+        pw.println("------- PhoneInterfaceManager -------");
+        pw.increaseIndent();
+        pw.println("Blocked requests by command:");
+        pw.increaseIndent();
+        for (Map.Entry<Integer, AtomicInteger> entry : new TreeMap<>(mBlockedRequestCounts)
+                .entrySet()) {
+            int blocked = entry.getValue().get();
+            if (blocked > 0) {
+                pw.println("cmd=" + entry.getKey() + " blocked=" + blocked);
+            }
+        }
+        pw.decreaseIndent();
+        pw.println("Timed out requests by command:");
+        pw.increaseIndent();
+        for (Map.Entry<Integer, AtomicInteger> entry : new TreeMap<>(mTimedOutRequestCounts)
+                .entrySet()) {
+            pw.println("cmd=" + entry.getKey() + " timedOut=" + entry.getValue().get());
+        }
+        pw.decreaseIndent();
+        pw.println("Coalesced requests by command:");
+        pw.increaseIndent();
+        for (Map.Entry<Integer, AtomicInteger> entry : new TreeMap<>(mCoalescedRequestCounts)
+                .entrySet()) {
+            pw.println("cmd=" + entry.getKey() + " coalesced=" + entry.getValue().get());
+        }
+        pw.decreaseIndent();
+        mRequestStats.dump(pw);
+        mPackageInfoCache.dump(pw);
+        mLocationPermissionCache.dump(pw);
+        mCarrierPrivilegeIndex.dump(pw);
+        pw.decreaseIndent();
+        pw.println("------- End PhoneInterfaceManager -------");
     }
 
     @Override
@@ -34,6 +34,8 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.emergency.EmergencyNumberTracker;
 import com.android.internal.telephony.util.TelephonyUtils;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.services.telephony.CallSetupTracer;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -64,6 +66,9 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
     private static final String DATA_TEST_MODE = "data";
     private static final String DATA_ENABLE = "enable";
     private static final String DATA_DISABLE = "disable";
+    private static final String REQUEST_STATS_SUBCOMMAND = "request-stats";
+    private static final String REQUEST_STATS_RESET = "reset";
+    private static final String CALL_SETUP_SUBCOMMAND = "call-setup";
 
     private static final String IMS_SET_CARRIER_SERVICE = "set-ims-service";
     private static final String IMS_GET_CARRIER_SERVICE = "get-ims-service";
@@ -80,6 +85,7 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
     private static final String CC_GET_VALUE = "get-value";
     private static final String CC_SET_VALUE = "set-value";
     private static final String CC_CLEAR_VALUES = "clear-values";
+    private static final String CC_LOAD_TIMELINE = "load-timeline";
 
     // Take advantage of existing methods that already contain permissions checks when possible.
     private final ITelephony mInterface;
@@ -163,6 +169,10 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
                 return handleDataTestModeCommand();
             case END_BLOCK_SUPPRESSION:
                 return handleEndBlockSuppressionCommand();
+            case REQUEST_STATS_SUBCOMMAND:
+                return handleRequestStatsCommand();
+            case CALL_SETUP_SUBCOMMAND:
+                return handleCallSetupCommand();
             default: {
                 return handleDefaultCommands(cmd);
             }
@@ -185,11 +195,17 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         pw.println("    Data Test Mode Commands.");
         pw.println("  cc");
         pw.println("    Carrier Config Commands.");
+        pw.println("  request-stats");
+        pw.println("    Main Thread Request Latency Commands.");
+        pw.println("  call-setup");
+        pw.println("    Call Setup Latency Commands.");
         onHelpIms();
         onHelpEmergencyNumber();
         onHelpEndBlockSupperssion();
         onHelpDataTestMode();
         onHelpCc();
+        onHelpRequestStats();
+        onHelpCallSetup();
     }
 
     private void onHelpIms() {
@@ -288,6 +304,29 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         pw.println("    Options are:");
         pw.println("      -s: The SIM slot ID to clear carrier config values for. If no option");
         pw.println("          is specified, it will choose the default voice SIM slot.");
+        pw.println("  cc load-timeline");
+        pw.println("    Print the steps of the recent carrier config loads of all slots, then the");
+        pw.println("    latency percentiles of each step across the loads since boot, as comma");
+        pw.println("    separated values.");
+    }
+
+    private void onHelpRequestStats() {
+        PrintWriter pw = getOutPrintWriter();
+        pw.println("Main Thread Request Latency Commands:");
+        pw.println("  request-stats");
+        pw.println("    Print queue-wait and execution latency percentiles of the requests");
+        pw.println("    handled by the phone process main thread, per command and per phone.");
+        pw.println("  request-stats reset");
+        pw.println("    Clear the recorded request latencies.");
+    }
+
+    private void onHelpCallSetup() {
+        PrintWriter pw = getOutPrintWriter();
+        pw.println("Call Setup Latency Commands:");
+        pw.println("  call-setup");
+        pw.println("    Print the time from the request to each setup phase of the recent");
+        pw.println("    outgoing calls, then the latency percentiles of each phase across the");
+        pw.println("    calls since boot, as comma separated values.");
     }
 
     private int handleImsCommand() {
@@ -803,6 +842,10 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
             case CC_CLEAR_VALUES: {
                 return handleCcClearValues();
             }
+            case CC_LOAD_TIMELINE: {
+                PhoneGlobals.getInstance().configLoader.exportLoadTimeline(getOutPrintWriter());
+                return 0;
+            }
             default: {
                 getErrPrintWriter().println("cc: Unknown argument: " + arg);
             }
@@ -1207,6 +1250,34 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         return bundle;
     }
 
+    private int handleRequestStatsCommand() {
+        if (!checkShellUid()) {
+            return -1;
+        }
+
+        PhoneInterfaceManager phoneMgr = PhoneGlobals.getInstance().phoneMgr;
+        String arg = getNextArg();
+        if (arg == null) {
+            phoneMgr.dumpRequestStats(new IndentingPrintWriter(getOutPrintWriter(), "  "));
+            return 0;
+        }
+        if (REQUEST_STATS_RESET.equals(arg)) {
+            phoneMgr.resetRequestStats();
+            return 0;
+        }
+        getErrPrintWriter().println("request-stats: Unknown argument: " + arg);
+        return -1;
+    }
+
+    private int handleCallSetupCommand() {
+        if (!checkShellUid()) {
+            return -1;
+        }
+
+        CallSetupTracer.getInstance().exportTraces(getOutPrintWriter());
+        return 0;
+    }
+
     private int handleEndBlockSuppressionCommand() {
         if (!checkShellUid()) {
             return -1;
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.phone.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.function.LongSupplier;
+
+/**
+ * Traces the setup of outgoing calls, from the request of Telecom to the disconnection of the
+ * call, so that slow call setup can be attributed to powering on the radio, switching the default
+ * data subscription, placing the call or the network.
+ *
+ * A {@link Trace} is started when {@link TelephonyConnectionService} receives the request and is
+ * kept by the {@link TelephonyConnection} of the call, which marks the phases it goes through.
+ * When the call disconnects, the trace is kept in a fixed size list of recent traces, and the
+ * time from the request to each phase is recorded in a histogram per phase across the calls since
+ * boot. Thread safe.
+ */
+public final class CallSetupTracer {
+    /** {@link TelephonyConnectionService} received the request. */
+    static final int PHASE_REQUEST = 0;
+    /** The radio was powered on for the call. */
+    static final int PHASE_RADIO_READY = 1;
+    /** The default data subscription was switched to the phone of the emergency call. */
+    static final int PHASE_DDS_SWITCHED = 2;
+    /** The call was dialed on the phone. */
+    static final int PHASE_DIAL_ISSUED = 3;
+    static final int PHASE_DIALING = 4;
+    static final int PHASE_ALERTING = 5;
+    static final int PHASE_ACTIVE = 6;
+    static final int PHASE_DISCONNECTED = 7;
+    private static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {"request", "radio_ready", "dds_switched",
+            "dial_issued", "dialing", "alerting", "active", "disconnected"};
+
+    @VisibleForTesting
+    static final int CAPACITY = 32;
+
+    private static final CallSetupTracer sInstance =
+            new CallSetupTracer(SystemClock::elapsedRealtime);
+
+    /**
+     * The setup of a call. A phase is only marked the first time the call reaches it, and nothing
+     * is marked once the call disconnected.
+     */
+    final class Trace {
+        private final int mSequence;
+        private boolean mIsEmergency;
+        // Time each phase was reached, or -1 if it was not.
+        private final long[] mPhaseMillis = new long[PHASE_COUNT];
+        private int mDisconnectCause;
+        private boolean mIsFinished;
+
+        private Trace(int sequence, long requestMillis) {
+            mSequence = sequence;
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                mPhaseMillis[phase] = -1;
+            }
+            mPhaseMillis[PHASE_REQUEST] = requestMillis;
+        }
+
+        /** Marks that the call reached a phase. */
+        void mark(int phase) {
+            synchronized (CallSetupTracer.this) {
+                if (!mIsFinished && mPhaseMillis[phase] < 0) {
+                    mPhaseMillis[phase] = mClock.getAsLong();
+                }
+            }
+        }
+
+        /**
+         * Marks that the call disconnected and keeps the trace with the recent ones.
+         * @param disconnectCause the {@link android.telecom.DisconnectCause} code of the call.
+         * @param isEmergency whether the call was an emergency call.
+         */
+        void finish(int disconnectCause, boolean isEmergency) {
+            synchronized (CallSetupTracer.this) {
+                if (mIsFinished) {
+                    return;
+                }
+                mark(PHASE_DISCONNECTED);
+                mDisconnectCause = disconnectCause;
+                mIsEmergency = isEmergency;
+                mIsFinished = true;
+                onFinished(this);
+            }
+        }
+
+        private long getMillisSinceRequest(int phase) {
+            return mPhaseMillis[phase] < 0 ? -1 : mPhaseMillis[phase] - mPhaseMillis[PHASE_REQUEST];
+        }
+    }
+
+    private final LongSupplier mClock;
+    private final Trace[] mRecent = new Trace[CAPACITY];
+    private int mRecentNext;
+    private int mRecentSize;
+    private int mNextSequence;
+    // Time from the request to each phase, indexed by phase.
+    private final LatencyHistogram[] mPhaseLatency = new LatencyHistogram[PHASE_COUNT];
+
+    @VisibleForTesting
+    CallSetupTracer(LongSupplier clock) {
+        mClock = clock;
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            mPhaseLatency[phase] = new LatencyHistogram();
+        }
+    }
+
+    public static CallSetupTracer getInstance() {
+        return sInstance;
+    }
+
+    /** Starts tracing a call whose request was just received. */
+    synchronized Trace start() {
+        return new Trace(mNextSequence++, mClock.getAsLong());
+    }
+
+    private void onFinished(Trace trace) {
+        mRecent[mRecentNext] = trace;
+        mRecentNext = (mRecentNext + 1) % CAPACITY;
+        mRecentSize = Math.min(mRecentSize + 1, CAPACITY);
+        for (int phase = PHASE_REQUEST + 1; phase < PHASE_COUNT; phase++) {
+            long millis = trace.getMillisSinceRequest(phase);
+            if (millis >= 0) {
+                mPhaseLatency[phase].recordMillis(millis);
+            }
+        }
+    }
+
+    /** Prints the time from the request to each phase across the calls since boot. */
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("Call setup (time since request):");
+        pw.increaseIndent();
+        for (int phase = PHASE_REQUEST + 1; phase < PHASE_COUNT; phase++) {
+            pw.println(PHASE_NAMES[phase] + ": " + mPhaseLatency[phase].toSummaryString());
+        }
+        pw.decreaseIndent();
+    }
+
+    /**
+     * Prints the recent traces, oldest first, with the time from the request to each phase, then
+     * the percentiles of those times across the calls since boot, as comma separated values.
+     */
+    public synchronized void exportTraces(PrintWriter pw) {
+        StringBuilder header = new StringBuilder("type,sequence,emergency,disconnect_cause");
+        for (int phase = PHASE_REQUEST + 1; phase < PHASE_COUNT; phase++) {
+            header.append(',').append(PHASE_NAMES[phase]).append("_ms");
+        }
+        pw.println(header);
+        for (int i = 0; i < mRecentSize; i++) {
+            Trace trace = mRecent[(mRecentNext - mRecentSize + i + CAPACITY) % CAPACITY];
+            StringBuilder line = new StringBuilder("call,").append(trace.mSequence).append(',')
+                    .append(trace.mIsEmergency).append(',').append(trace.mDisconnectCause);
+            for (int phase = PHASE_REQUEST + 1; phase < PHASE_COUNT; phase++) {
+                long millis = trace.getMillisSinceRequest(phase);
+                line.append(',');
+                if (millis >= 0) {
+                    line.append(millis);
+                }
+            }
+            pw.println(line);
+        }
+        pw.println("type,phase,count,p50_ms,p90_ms,p99_ms");
+        for (int phase = PHASE_REQUEST + 1; phase < PHASE_COUNT; phase++) {
+            LatencyHistogram histogram = mPhaseLatency[phase];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            pw.println("latency," + PHASE_NAMES[phase] + "," + histogram.getCount() + ","
+                    + formatPercentile(histogram, 50) + ","
+                    + formatPercentile(histogram, 90) + ","
+                    + formatPercentile(histogram, 99));
+        }
+    }
+
+    private static String formatPercentile(LatencyHistogram histogram, int percentile) {
+        long micros = histogram.getPercentileMicros(percentile);
+        return micros == Long.MAX_VALUE ? "inf" : Long.toString(micros / 1000);
+    }
+}
@@ -18,15 +18,14 @@ package com.android.services.telephony;
 
 import android.content.Context;
 import android.media.ToneGenerator;
-import android.os.PersistableBundle;
 import android.provider.Settings;
 import android.telecom.DisconnectCause;
-import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 
 import com.android.internal.telephony.CallFailCause;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
+import com.android.phone.CarrierConfigSnapshot;
 import com.android.phone.ImsUtil;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.common.R;
@@ -831,18 +830,12 @@ public class DisconnectCauseUtil {
      */
     private static int toTelecomDisconnectCauseTone(int telephonyDisconnectCause, int phoneId) {
         Phone phone = PhoneFactory.getPhone(phoneId);
-        PersistableBundle config;
-        if (phone != null) {
-            config = PhoneGlobals.getInstance().getCarrierConfigForSubId(phone.getSubId());
-        } else {
-            config = PhoneGlobals.getInstance().getCarrierConfig();
-        }
-        int[] busyToneArray = config.getIntArray(
-                CarrierConfigManager.KEY_DISCONNECT_CAUSE_PLAY_BUSYTONE_INT_ARRAY);
-        for (int busyTone : busyToneArray) {
-            if (busyTone == telephonyDisconnectCause) {
-                return ToneGenerator.TONE_SUP_BUSY;
-            }
+        int subId = phone != null ? phone.getSubId()
+                : SubscriptionManager.getDefaultSubscriptionId();
+        CarrierConfigSnapshot config =
+                PhoneGlobals.getInstance().getCarrierConfigSnapshotForSubId(subId);
+        if (config.playsBusyToneFor(telephonyDisconnectCause)) {
+            return ToneGenerator.TONE_SUP_BUSY;
         }
         switch (telephonyDisconnectCause) {
             case android.telephony.DisconnectCause.CONGESTION:
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.annotation.Nullable;
+import android.telephony.RadioAccessFamily;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.telephony.Phone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Ranks the SIM slots for an emergency call when none of them is in service, in the order
+ * {@link TelephonyConnectionService#getFirstPhoneForEmergencyCall} uses.
+ *
+ * The state of each slot is updated when the service state, radio capability or SIM state of the
+ * slot changes, and the slots are ranked again then, so that placing an emergency call only reads
+ * the latest {@link Ranking}. Thread safe.
+ */
+/* package */ final class EmergencySlotRanking {
+    /**
+     * Keeps track of the status of a SIM slot.
+     */
+    static class SlotStatus {
+        public int slotId;
+        // RAT capabilities
+        public int capabilities;
+        // By default, we will assume that the slots are not locked.
+        public boolean isLocked = false;
+        // Is the emergency number associated with the slot
+        public boolean hasDialedEmergencyNumber = false;
+        //SimState
+        public int simState;
+
+        public SlotStatus(int slotId, int capabilities) {
+            this.slotId = slotId;
+            this.capabilities = capabilities;
+        }
+    }
+
+    /** The state of a slot with a phone, as of the last change of the slot. */
+    static final class Slot {
+        final Phone phone;
+        final boolean hasIccCard;
+        final SlotStatus status;
+
+        Slot(int slotId, Phone phone, int radioAccessFamily, int simState, boolean hasIccCard) {
+            this.phone = phone;
+            this.hasIccCard = hasIccCard;
+            status = new SlotStatus(slotId, radioAccessFamily);
+            status.simState = simState;
+            status.isLocked = isLocked(simState);
+        }
+    }
+
+    /** The slots ranked as of the last change of any of them. Immutable. */
+    static final class Ranking {
+        private final Slot[] mSlots;
+        private final Slot[] mRankedSlots;
+        private final int mDefaultPhoneId;
+
+        private Ranking(Slot[] slots, Slot[] rankedSlots, int defaultPhoneId) {
+            mSlots = slots;
+            mRankedSlots = rankedSlots;
+            mDefaultPhoneId = defaultPhoneId;
+        }
+
+        int getSlotCount() {
+            return mSlots.length;
+        }
+
+        /** @return the slot, or null if it has no phone. */
+        @Nullable
+        Slot getSlot(int slotId) {
+            return mSlots[slotId];
+        }
+
+        /**
+         * @return the slots with a phone, the least suited to an emergency call first, ignoring
+         * whether the number dialed is an emergency number of the slot.
+         */
+        Slot[] getRankedSlots() {
+            return mRankedSlots;
+        }
+
+        /** @return the id of the default phone when the slots were ranked. */
+        int getDefaultPhoneId() {
+            return mDefaultPhoneId;
+        }
+    }
+
+    private Slot[] mSlots = new Slot[0];
+    private int mDefaultPhoneId;
+    private volatile Ranking mRanking;
+
+    /** Forgets the state of every slot, for example when the number of slots changes. */
+    synchronized void reset(int slotCount, int defaultPhoneId) {
+        mSlots = new Slot[slotCount];
+        mDefaultPhoneId = defaultPhoneId;
+        rank();
+    }
+
+    /** Replaces the state of a slot and ranks the slots again. */
+    synchronized void update(int slotId, @Nullable Slot slot) {
+        if (slotId < 0 || slotId >= mSlots.length) {
+            return;
+        }
+        mSlots[slotId] = slot;
+        rank();
+    }
+
+    /** Forgets the state of every slot, once it is no longer updated. */
+    synchronized void clear() {
+        mSlots = new Slot[0];
+        mRanking = null;
+    }
+
+    /** @return the latest ranking, or null before {@link #reset} or after {@link #clear}. */
+    @Nullable
+    Ranking getRanking() {
+        return mRanking;
+    }
+
+    private void rank() {
+        List<Slot> rankedSlots = new ArrayList<>(mSlots.length);
+        int firstOccupiedSlotId = SubscriptionManager.INVALID_PHONE_INDEX;
+        for (Slot slot : mSlots) {
+            if (slot == null) {
+                continue;
+            }
+            rankedSlots.add(slot);
+            if (firstOccupiedSlotId == SubscriptionManager.INVALID_PHONE_INDEX
+                    && slot.hasIccCard) {
+                firstOccupiedSlotId = slot.status.slotId;
+            }
+        }
+        Comparator<SlotStatus> comparator = comparator(firstOccupiedSlotId, mDefaultPhoneId);
+        rankedSlots.sort((o1, o2) -> comparator.compare(o1.status, o2.status));
+        mRanking = new Ranking(Arrays.copyOf(mSlots, mSlots.length),
+                rankedSlots.toArray(new Slot[rankedSlots.size()]), mDefaultPhoneId);
+    }
+
+    static boolean isLocked(int simState) {
+        return simState == TelephonyManager.SIM_STATE_PIN_REQUIRED
+                || simState == TelephonyManager.SIM_STATE_PUK_REQUIRED;
+    }
+
+    /**
+     * @return the order of slots for an emergency call, the most suited last. Sorting is stable,
+     * so of slots ranked the same the last one is used.
+     * @param firstOccupiedSlotId the first slot with a SIM card, or
+     * {@link SubscriptionManager#INVALID_PHONE_INDEX} if there is none.
+     * @param defaultPhoneId the id of the default phone.
+     */
+    static Comparator<SlotStatus> comparator(int firstOccupiedSlotId, int defaultPhoneId) {
+        return (o1, o2) -> {
+            if (!o1.hasDialedEmergencyNumber && o2.hasDialedEmergencyNumber) {
+                return -1;
+            }
+            if (o1.hasDialedEmergencyNumber && !o2.hasDialedEmergencyNumber) {
+                return 1;
+            }
+            // Sort by non-absent SIM.
+            if (o1.simState == TelephonyManager.SIM_STATE_ABSENT
+                    && o2.simState != TelephonyManager.SIM_STATE_ABSENT) {
+                return -1;
+            }
+            if (o2.simState == TelephonyManager.SIM_STATE_ABSENT
+                    && o1.simState != TelephonyManager.SIM_STATE_ABSENT) {
+                return 1;
+            }
+            // First start by seeing if either of the phone slots are locked. If they
+            // are, then sort by non-locked SIM first. If they are both locked, sort
+            // by capability instead.
+            if (o1.isLocked && !o2.isLocked) {
+                return -1;
+            }
+            if (o2.isLocked && !o1.isLocked) {
+                return 1;
+            }
+            // sort by number of RadioAccessFamily Capabilities.
+            int compare = RadioAccessFamily.compare(o1.capabilities, o2.capabilities);
+            if (compare == 0) {
+                if (firstOccupiedSlotId != SubscriptionManager.INVALID_PHONE_INDEX) {
+                    // If the RAF capability is the same, choose based on whether or
+                    // not any of the slots are occupied with a SIM card (if both
+                    // are, always choose the first).
+                    if (o1.slotId == firstOccupiedSlotId) {
+                        return 1;
+                    } else if (o2.slotId == firstOccupiedSlotId) {
+                        return -1;
+                    }
+                } else {
+                    // No slots have SIMs detected in them, so weight the default
+                    // Phone Id greater than the others.
+                    if (o1.slotId == defaultPhoneId) {
+                        return 1;
+                    } else if (o2.slotId == defaultPhoneId) {
+                        return -1;
+                    }
+                }
+            }
+            return compare;
+        };
+    }
+}
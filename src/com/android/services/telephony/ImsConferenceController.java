@@ -16,20 +16,19 @@
 
 package com.android.services.telephony;
 
-import android.content.Context;
-import android.os.PersistableBundle;
+import android.annotation.Nullable;
 import android.telecom.Conference;
 import android.telecom.Conferenceable;
 import android.telecom.Connection;
 import android.telecom.ConnectionService;
 import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccountHandle;
-import android.telephony.CarrierConfigManager;
 
 import com.android.telephony.Rlog;
 
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
+import com.android.phone.CarrierConfigSnapshot;
 import com.android.phone.PhoneUtils;
 
 import java.util.ArrayList;
@@ -429,7 +428,7 @@ public class ImsConferenceController {
             // base GSM or CDMA phone, not on the ImsPhone itself).
             phoneAccountHandle =
                     PhoneUtils.makePstnPhoneAccountHandle(imsPhone.getDefaultPhone());
-            carrierConfig = getCarrierConfig(imsPhone);
+            carrierConfig = getCarrierConfig(connection.getCarrierConfigSnapshot());
         }
 
         ImsConference conference = new ImsConference(mTelecomAccountRegistry, mConnectionService,
@@ -455,32 +454,23 @@ public class ImsConferenceController {
         recalculateConferenceable();
     }
 
-    public static ImsConference.CarrierConfiguration getCarrierConfig(Phone phone) {
+    /**
+     * @param snapshot the carrier config of the conference host's phone, null if there is no
+     *        phone.
+     */
+    public static ImsConference.CarrierConfiguration getCarrierConfig(
+            @Nullable CarrierConfigSnapshot snapshot) {
         ImsConference.CarrierConfiguration.Builder config =
                 new ImsConference.CarrierConfiguration.Builder();
-        if (phone == null) {
+        if (snapshot == null) {
             return config.build();
         }
 
-        CarrierConfigManager cfgManager = (CarrierConfigManager)
-                phone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-        if (cfgManager != null) {
-            PersistableBundle bundle = cfgManager.getConfigForSubId(phone.getSubId());
-            boolean isMaximumConferenceSizeEnforced = bundle.getBoolean(
-                    CarrierConfigManager.KEY_IS_IMS_CONFERENCE_SIZE_ENFORCED_BOOL);
-            int maximumConferenceSize = bundle.getInt(
-                    CarrierConfigManager.KEY_IMS_CONFERENCE_SIZE_LIMIT_INT);
-            boolean isHoldAllowed = bundle.getBoolean(
-                    CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL);
-            boolean shouldLocalDisconnectOnEmptyConference = bundle.getBoolean(
-                    CarrierConfigManager.KEY_LOCAL_DISCONNECT_EMPTY_IMS_CONFERENCE_BOOL);
-
-            config.setIsMaximumConferenceSizeEnforced(isMaximumConferenceSizeEnforced)
-                    .setMaximumConferenceSize(maximumConferenceSize)
-                    .setIsHoldAllowed(isHoldAllowed)
-                    .setShouldLocalDisconnectEmptyConference(
-                            shouldLocalDisconnectOnEmptyConference);
-        }
+        config.setIsMaximumConferenceSizeEnforced(snapshot.isImsConferenceSizeEnforced())
+                .setMaximumConferenceSize(snapshot.getImsConferenceSizeLimit())
+                .setIsHoldAllowed(snapshot.allowHoldInImsCall())
+                .setShouldLocalDisconnectEmptyConference(
+                        snapshot.localDisconnectEmptyImsConference());
         return config.build();
     }
 }
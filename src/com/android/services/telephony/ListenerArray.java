@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import android.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * A set of listeners which is copied when a listener is added or removed, so that notifying the
+ * listeners iterates over an array without allocating.
+ *
+ * A notification iterates over the array returned by {@link #array()}, so a listener added or
+ * removed while the listeners are notified takes effect from the next notification. Listeners
+ * are compared with {@link Object#equals(Object)}, and adding a listener twice has no effect.
+ * Thread safe.
+ *
+ * @param <T> The type of the listeners.
+ */
+/* package */ final class ListenerArray<T> {
+    private volatile T[] mListeners;
+
+    /**
+     * @param empty An empty array of the listener type.
+     */
+    ListenerArray(@NonNull T[] empty) {
+        mListeners = empty;
+    }
+
+    /**
+     * Adds a listener.
+     * @return whether the listener was added, which is not the case if it already was.
+     */
+    synchronized boolean add(@NonNull T listener) {
+        T[] listeners = mListeners;
+        if (indexOf(listeners, listener) >= 0) {
+            return false;
+        }
+        T[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        mListeners = added;
+        return true;
+    }
+
+    /**
+     * Removes a listener.
+     * @return whether the listener was removed, which is not the case if it was not added.
+     */
+    synchronized boolean remove(@NonNull T listener) {
+        T[] listeners = mListeners;
+        int index = indexOf(listeners, listener);
+        if (index < 0) {
+            return false;
+        }
+        T[] removed = Arrays.copyOf(listeners, listeners.length - 1);
+        System.arraycopy(listeners, index + 1, removed, index, listeners.length - index - 1);
+        mListeners = removed;
+        return true;
+    }
+
+    /**
+     * @return the listeners to notify. The array must not be modified.
+     */
+    @NonNull
+    T[] array() {
+        return mListeners;
+    }
+
+    private static <T> int indexOf(T[] listeners, T listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
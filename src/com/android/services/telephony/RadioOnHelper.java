@@ -22,8 +22,8 @@ import android.os.UserHandle;
 import android.provider.Settings;
 import android.telephony.TelephonyManager;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.Phone;
-import com.android.internal.telephony.PhoneFactory;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -34,17 +34,38 @@ import java.util.List;
  * trying to dial an emergency number while the radio is off (i.e. the device is in airplane mode)
  * or a normal number while the radio is off (because of the device is on Bluetooth), by turning the
  * radio back on, waiting for it to come up, and then retrying the call.
+ *
+ * By default, the call is retried once the radio of every Phone is ready or gave up. When
+ * {@link #FIRST_READY_RADIO_ON_ENABLED} is set, the radios are powered on together for an
+ * emergency call and the call is retried as soon as one of them is ready, on that Phone.
  */
 public class RadioOnHelper implements RadioOnStateListener.Callback {
 
+    /**
+     * Experiment flag to retry an emergency call on the first Phone whose radio is ready instead
+     * of waiting for the radio of every Phone, default value is false. Read when a call first
+     * needs a radio powered on.
+     */
+    public static final String FIRST_READY_RADIO_ON_ENABLED = "first_ready_radio_on_enabled";
+
     private final Context mContext;
+    private final TelephonyConnectionService.PhoneFactoryProxy mPhoneFactoryProxy;
+    private final boolean mIsFirstReadyEnabled;
     private RadioOnStateListener.Callback mCallback;
     private List<RadioOnStateListener> mListeners;
     private List<RadioOnStateListener> mInProgressListeners;
     private boolean mIsRadioOnCallingEnabled;
+    // Whether the current request completes on the first Phone whose radio is ready.
+    private boolean mCompleteOnFirstReady;
 
-    public RadioOnHelper(Context context) {
+    /**
+     * @param isFirstReadyEnabled the value of {@link #FIRST_READY_RADIO_ON_ENABLED}.
+     */
+    public RadioOnHelper(Context context, boolean isFirstReadyEnabled,
+            TelephonyConnectionService.PhoneFactoryProxy phoneFactoryProxy) {
         mContext = context;
+        mIsFirstReadyEnabled = isFirstReadyEnabled;
+        mPhoneFactoryProxy = phoneFactoryProxy;
         mInProgressListeners = new ArrayList<>(2);
     }
 
@@ -73,6 +94,11 @@ public class RadioOnHelper implements RadioOnStateListener.Callback {
      * - Retry if we've gone a significant amount of time without any response from the radio.
      * - Finally, clean up any leftover state.
      *
+     * The callback is completed with a null listener once every radio is ready or gave up, or,
+     * for an emergency call when {@link #FIRST_READY_RADIO_ON_ENABLED} is set, with the listener
+     * of the first Phone whose radio is ready. {@link RadioOnStateListener#getPhone()} is that
+     * Phone for the duration of the callback.
+     *
      * This method is safe to call from any thread, since it simply posts a message to the
      * RadioOnHelper's handler (thus ensuring that the rest of the sequence is entirely
      * serialized, and runs on the main looper.)
@@ -83,8 +109,9 @@ public class RadioOnHelper implements RadioOnStateListener.Callback {
         mCallback = callback;
         mInProgressListeners.clear();
         mIsRadioOnCallingEnabled = false;
+        mCompleteOnFirstReady = mIsFirstReadyEnabled && forEmergencyCall;
         for (int i = 0; i < TelephonyManager.from(mContext).getActiveModemCount(); i++) {
-            Phone phone = PhoneFactory.getPhone(i);
+            Phone phone = mPhoneFactoryProxy.getPhone(i);
             if (phone == null) {
                 continue;
             }
@@ -104,15 +131,14 @@ public class RadioOnHelper implements RadioOnStateListener.Callback {
 
         // If airplane mode is on, we turn it off the same way that the Settings activity turns it
         // off.
-        if (Settings.Global.getInt(mContext.getContentResolver(),
-                Settings.Global.AIRPLANE_MODE_ON, 0) > 0) {
+        if (isAirplaneModeOn()) {
             Log.d(this, "==> Turning off airplane mode for emergency call.");
 
             // Change the system setting
             Settings.Global.putInt(mContext.getContentResolver(),
                     Settings.Global.AIRPLANE_MODE_ON, 0);
 
-            for (Phone phone : PhoneFactory.getPhones()) {
+            for (Phone phone : mPhoneFactoryProxy.getPhones()) {
                 Log.d(this, "powerOnRadio, enabling Radio");
                 phone.setRadioPower(true, forEmergencyCall, phone == phoneForEmergencyCall, false);
             }
@@ -124,15 +150,43 @@ public class RadioOnHelper implements RadioOnStateListener.Callback {
             Intent intent = new Intent(Intent.ACTION_AIRPLANE_MODE_CHANGED);
             intent.putExtra("state", false);
             mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
+        } else if (mCompleteOnFirstReady) {
+            // Otherwise the listeners only power on a radio which is off after their first retry
+            // timeout. Power them on now, so that every radio can be the first one ready.
+            for (Phone phone : mPhoneFactoryProxy.getPhones()) {
+                if (!phone.isRadioOn()) {
+                    Log.d(this, "powerOnRadio, enabling Radio of Phone " + phone.getPhoneId());
+                    phone.setRadioPower(true, forEmergencyCall, phone == phoneForEmergencyCall,
+                            false);
+                }
+            }
         }
     }
 
+    @VisibleForTesting
+    public boolean isAirplaneModeOn() {
+        return Settings.Global.getInt(mContext.getContentResolver(),
+                Settings.Global.AIRPLANE_MODE_ON, 0) > 0;
+    }
+
     /**
      * This method is called from multiple Listeners on the Main Looper.
      * Synchronization is not necessary.
      */
     @Override
     public void onComplete(RadioOnStateListener listener, boolean isRadioReady) {
+        if (mCompleteOnFirstReady && isRadioReady && mCallback != null) {
+            RadioOnStateListener.Callback callback = mCallback;
+            mCallback = null;
+            mInProgressListeners.remove(listener);
+            // Stop waiting for the other radios, they report back here with no callback to notify.
+            for (RadioOnStateListener other : new ArrayList<>(mInProgressListeners)) {
+                other.cleanup();
+            }
+            mInProgressListeners.clear();
+            callback.onComplete(listener, true);
+            return;
+        }
         mIsRadioOnCallingEnabled |= isRadioReady;
         mInProgressListeners.remove(listener);
         if (mCallback != null && mInProgressListeners.isEmpty()) {
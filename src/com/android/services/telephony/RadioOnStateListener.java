@@ -346,6 +346,13 @@ public class RadioOnStateListener {
         }
     }
 
+    /**
+     * @return the Phone whose radio is waited for, or null if no sequence is in progress.
+     */
+    public Phone getPhone() {
+        return mPhone;
+    }
+
     @VisibleForTesting
     public Handler getHandler() {
         return mHandler;
@@ -62,6 +62,7 @@ import com.android.internal.telephony.ExponentialBackoff;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.SubscriptionController;
+import com.android.phone.CarrierConfigLoader;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
 import com.android.phone.R;
@@ -1034,16 +1035,18 @@ public class TelecomAccountRegistry {
                 // Any time the user changes, re-register the accounts.
                 tearDownAccounts();
                 setupAccounts();
-            } else if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(
-                    intent.getAction())) {
-                Log.i(this, "Carrier-config changed, checking for phone account updates.");
-                int subId = intent.getIntExtra(SubscriptionManager.EXTRA_SUBSCRIPTION_INDEX,
-                        SubscriptionManager.INVALID_SUBSCRIPTION_ID);
-                handleCarrierConfigChange(subId);
             }
         }
     };
 
+    // Only called when the config actually changed, so that a rebroadcast of the same config does
+    // not re-register the phone accounts.
+    private final CarrierConfigLoader.ConfigChangeListener mCarrierConfigChangeListener =
+            (phoneId, subId, changedKeys) -> {
+                Log.i(this, "Carrier-config changed, checking for phone account updates.");
+                handleCarrierConfigChange(subId);
+            };
+
     private BroadcastReceiver mLocaleChangeReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -1353,8 +1356,9 @@ public class TelecomAccountRegistry {
         // use is not the primary user we disable video calling.
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_USER_SWITCHED);
-        filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
         mContext.registerReceiver(mReceiver, filter);
+        PhoneGlobals.getInstance().registerCarrierConfigChangeListener(null /* keys */,
+                mContext.getMainExecutor(), mCarrierConfigChangeListener);
 
         //We also need to listen for locale changes
         //(e.g. system language changed -> SIM card name changed)
@@ -24,10 +24,7 @@ import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
 import android.telephony.ServiceState;
 
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Base class for the various Telephony {@link Conference} implementations ({@link CdmaConference},
@@ -62,8 +59,8 @@ public class TelephonyConferenceBase extends Conference {
         public void onDestroyed(Conference conference) {}
     }
 
-    private final Set<TelephonyConferenceListener> mListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<>(8, 0.9f, 1));
+    private final ListenerArray<TelephonyConferenceListener> mListeners =
+            new ListenerArray<>(new TelephonyConferenceListener[0]);
 
     /**
      * Adds a listener to this conference.
@@ -231,7 +228,7 @@ public class TelephonyConferenceBase extends Conference {
      * @param connection The conference.
      */
     private void notifyConferenceMembershipChanged(@NonNull Connection connection) {
-        for (TelephonyConferenceListener listener : mListeners) {
+        for (TelephonyConferenceListener listener : mListeners.array()) {
             listener.onConferenceMembershipChanged(connection);
         }
     }
@@ -240,14 +237,14 @@ public class TelephonyConferenceBase extends Conference {
      * Notifies {@link TelephonyConferenceListener}s of a conference being destroyed
      */
     private void notifyDestroyed() {
-        for (TelephonyConferenceListener listener : mListeners) {
+        for (TelephonyConferenceListener listener : mListeners.array()) {
             listener.onDestroyed(this);
         }
     }
 
     private void notifyStateChanged(int oldState, int newState) {
         if (oldState != newState) {
-            for (TelephonyConferenceListener listener : mListeners) {
+            for (TelephonyConferenceListener listener : mListeners.array()) {
                 listener.onStateChanged(this, oldState, newState);
             }
         }
@@ -27,6 +27,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.PersistableBundle;
 import android.telecom.CallAudioState;
 import android.telecom.Conference;
@@ -66,6 +67,8 @@ import com.android.internal.telephony.imsphone.ImsPhone;
 import com.android.internal.telephony.imsphone.ImsPhoneCall;
 import com.android.internal.telephony.imsphone.ImsPhoneCallTracker;
 import com.android.internal.telephony.imsphone.ImsPhoneConnection;
+import com.android.phone.CarrierConfigLoader;
+import com.android.phone.CarrierConfigSnapshot;
 import com.android.phone.ImsUtil;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
@@ -73,14 +76,12 @@ import com.android.phone.R;
 import com.android.telephony.Rlog;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class for CDMA and GSM connections.
@@ -117,6 +118,96 @@ abstract class TelephonyConnection extends Connection implements Holdable {
     private static final int MSG_REDIAL_CONNECTION_CHANGED = 20;
     private static final int MSG_REJECT = 21;
 
+    // Inputs of the capabilities and properties of the connection. Changing an input only
+    // recomputes the groups of bits derived from it, see updateConnectionCapabilities.
+    // The original connection, and whether it ever was an IMS connection.
+    private static final int INPUT_ORIGINAL_CONNECTION = 1 << 0;
+    // The state of the call, and whether it is treated as an emergency call.
+    private static final int INPUT_STATE = 1 << 1;
+    private static final int INPUT_VIDEO_STATE = 1 << 2;
+    // The capabilities of the original connection, TTY and video pause support.
+    private static final int INPUT_ORIGINAL_CAPABILITIES = 1 << 3;
+    // Whether the call is multiparty and whether the network supports conferencing it.
+    private static final int INPUT_CONFERENCE = 1 << 4;
+    // The states of the other calls and conferences.
+    private static final int INPUT_OTHER_CALLS = 1 << 5;
+    private static final int INPUT_CARRIER_CONFIG = 1 << 6;
+    private static final int INPUT_RADIO_TECH = 1 << 7;
+    private static final int INPUT_RTT = 1 << 8;
+    private static final int INPUT_AUDIO_QUALITY = 1 << 9;
+    // Voice privacy, assisted dialing, network identified emergency and adhoc conference.
+    private static final int INPUT_PROPERTY_FLAGS = 1 << 10;
+    // Whether another connection hosts an IMS conference on the device.
+    private static final int INPUT_HOSTED_CONFERENCES = 1 << 11;
+    private static final int INPUT_ALL = (1 << 12) - 1;
+
+    // Groups of capabilities that are recomputed together, in addition to the capabilities of
+    // buildConnectionCapabilities(), which are always rebuilt.
+    private static final int CAPABILITY_GROUP_VIDEO = 0;
+    private static final int CAPABILITY_GROUP_CONFERENCE_TERMINATION = 1;
+    private static final int CAPABILITY_GROUP_DEFLECT = 2;
+    private static final int CAPABILITY_GROUP_ADD_PARTICIPANT = 3;
+    private static final int CAPABILITY_GROUP_TRANSFER = 4;
+    private static final int CAPABILITY_GROUP_COUNT = 5;
+    // Indexed by group, the inputs of the group and the capabilities it sets or clears.
+    private static final int[] CAPABILITY_GROUP_INPUTS = {
+            INPUT_ORIGINAL_CAPABILITIES,
+            INPUT_ORIGINAL_CONNECTION,
+            INPUT_ORIGINAL_CONNECTION | INPUT_STATE | INPUT_OTHER_CALLS | INPUT_CARRIER_CONFIG,
+            INPUT_ORIGINAL_CONNECTION | INPUT_STATE | INPUT_CONFERENCE | INPUT_OTHER_CALLS
+                    | INPUT_CARRIER_CONFIG | INPUT_HOSTED_CONFERENCES,
+            INPUT_ORIGINAL_CONNECTION | INPUT_STATE | INPUT_CONFERENCE | INPUT_OTHER_CALLS
+                    | INPUT_CARRIER_CONFIG};
+    private static final int[] CAPABILITY_GROUP_MASKS = {
+            Connection.CAPABILITY_CANNOT_DOWNGRADE_VIDEO_TO_AUDIO
+                    | Connection.CAPABILITY_SUPPORTS_VT_REMOTE_BIDIRECTIONAL
+                    | Connection.CAPABILITY_SUPPORTS_VT_LOCAL_BIDIRECTIONAL
+                    | Connection.CAPABILITY_CAN_PAUSE_VIDEO
+                    | Connection.CAPABILITY_CAN_PULL_CALL,
+            // Only ever added to the capabilities of buildConnectionCapabilities().
+            0,
+            Connection.CAPABILITY_SUPPORT_DEFLECT,
+            Connection.CAPABILITY_ADD_PARTICIPANT,
+            Connection.CAPABILITY_TRANSFER | Connection.CAPABILITY_TRANSFER_CONSULTATIVE};
+
+    // Groups of properties, in addition to those of buildConnectionProperties().
+    private static final int PROPERTY_GROUP_HIGH_DEF_AUDIO = 0;
+    private static final int PROPERTY_GROUP_FLAGS = 1;
+    private static final int PROPERTY_GROUP_RTT = 2;
+    private static final int PROPERTY_GROUP_COUNT = 3;
+    private static final int[] PROPERTY_GROUP_INPUTS = {
+            INPUT_ORIGINAL_CONNECTION | INPUT_VIDEO_STATE | INPUT_CARRIER_CONFIG
+                    | INPUT_RADIO_TECH | INPUT_AUDIO_QUALITY,
+            INPUT_ORIGINAL_CAPABILITIES | INPUT_RADIO_TECH | INPUT_PROPERTY_FLAGS,
+            INPUT_ORIGINAL_CONNECTION | INPUT_RTT};
+    private static final int[] PROPERTY_GROUP_MASKS = {
+            Connection.PROPERTY_HIGH_DEF_AUDIO,
+            Connection.PROPERTY_WIFI
+                    | Connection.PROPERTY_IS_EXTERNAL_CALL
+                    | Connection.PROPERTY_HAS_CDMA_VOICE_PRIVACY
+                    | Connection.PROPERTY_ASSISTED_DIALING
+                    | Connection.PROPERTY_NETWORK_IDENTIFIED_EMERGENCY_CALL
+                    | Connection.PROPERTY_IS_ADHOC_CONFERENCE,
+            Connection.PROPERTY_IS_RTT};
+
+    // Across all connections, how many groups of bits were recomputed or reused, and how many
+    // updates changed the capabilities or properties pushed to Telecom.
+    private static final AtomicLong sBitGroupsRecomputed = new AtomicLong();
+    private static final AtomicLong sBitGroupsReused = new AtomicLong();
+    private static final AtomicLong sBitUpdatesPushed = new AtomicLong();
+    private static final AtomicLong sBitUpdatesUnchanged = new AtomicLong();
+
+    // Across all connections, the extras updates sent to Telecom, how many keys they added,
+    // changed or removed, and how many unchanged keys they left out.
+    private static final AtomicLong sExtrasUpdates = new AtomicLong();
+    private static final AtomicLong sExtrasKeysSent = new AtomicLong();
+    private static final AtomicLong sExtrasKeysSkipped = new AtomicLong();
+    // Only one update in EXTRAS_SIZE_SAMPLE_INTERVAL is marshalled to measure the size of the
+    // keys it left out, from which the bytes avoided by all updates are estimated.
+    private static final int EXTRAS_SIZE_SAMPLE_INTERVAL = 64;
+    private static final AtomicLong sSampledExtrasKeysSkipped = new AtomicLong();
+    private static final AtomicLong sSampledExtrasBytesAvoided = new AtomicLong();
+
     private List<Uri> mParticipants;
     private boolean mIsAdhocConferenceCall;
 
@@ -154,6 +245,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
                                             + " with " + connection.toString());
                             setOriginalConnection(connection);
                             mWasImsConnection = false;
+                            updateConnectionCapabilities();
                         }
                     } else {
                         Log.w(TelephonyConnection.this,
@@ -648,6 +740,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
 
         @Override
         public void onRttModifyResponseReceived(int status) {
+            invalidateInputs(INPUT_RTT);
             updateConnectionProperties();
             refreshConferenceSupported();
             if (status == RttModifyStatus.SESSION_MODIFY_REQUEST_SUCCESS) {
@@ -669,6 +762,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
             if (mOriginalConnection != null) {
                 // if mOriginalConnection is null, the properties will get set when
                 // mOriginalConnection gets set.
+                invalidateInputs(INPUT_RTT);
                 updateConnectionProperties();
                 refreshConferenceSupported();
             }
@@ -677,6 +771,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
 
         @Override
         public void onRttTerminated() {
+            invalidateInputs(INPUT_RTT);
             updateConnectionProperties();
             refreshConferenceSupported();
             sendRttSessionRemotelyTerminated();
@@ -798,8 +893,43 @@ abstract class TelephonyConnection extends Connection implements Holdable {
     /**
      * Listeners to our TelephonyConnection specific callbacks
      */
-    private final Set<TelephonyConnectionListener> mTelephonyListeners = Collections.newSetFromMap(
-            new ConcurrentHashMap<TelephonyConnectionListener, Boolean>(8, 0.9f, 1));
+    private final ListenerArray<TelephonyConnectionListener> mTelephonyListeners =
+            new ListenerArray<>(new TelephonyConnectionListener[0]);
+
+    /**
+     * The carrier config of {@link #mCarrierConfigSubId}, captured when the original connection is
+     * set and kept until the subscription of the phone or its config changes, since capabilities
+     * and properties are recomputed from it on every state change.
+     */
+    private CarrierConfigSnapshot mCarrierConfigSnapshot;
+    private int mCarrierConfigSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    private boolean mIsRegisteredForCarrierConfigChanges;
+
+    private final CarrierConfigLoader.ConfigChangeListener mCarrierConfigChangeListener =
+            (phoneId, subId, changedKeys) -> onCarrierConfigChanged(subId);
+
+    /**
+     * The setup trace of an outgoing call, finished when the connection is closed, or null.
+     */
+    private CallSetupTracer.Trace mCallSetupTrace;
+
+    /**
+     * The inputs that changed since the capabilities, and since the properties, were last
+     * computed, and the groups of bits computed from the inputs, see INPUT_ORIGINAL_CONNECTION.
+     */
+    private int mDirtyCapabilityInputs = INPUT_ALL;
+    private int mDirtyPropertyInputs = INPUT_ALL;
+    private final int[] mCapabilityGroups = new int[CAPABILITY_GROUP_COUNT];
+    private final int[] mPropertyGroups = new int[PROPERTY_GROUP_COUNT];
+    // The inputs that are not set through this class, as of the last update.
+    private com.android.internal.telephony.Connection mLastInputOriginalConnection;
+    private boolean mLastInputWasImsConnection;
+    private int mLastInputState = STATE_INITIALIZING;
+    private Call.State mLastInputConnectionState;
+    private boolean mLastInputTreatAsEmergencyCall;
+    private int mLastInputVideoState;
+    private CarrierConfigSnapshot mLastInputCarrierConfig;
+    private int mBitGroupsRecomputed;
 
     protected TelephonyConnection(com.android.internal.telephony.Connection originalConnection,
             String callId, @android.telecom.Call.Details.CallDirection int callDirection) {
@@ -1219,27 +1349,60 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         return callCapabilities;
     }
 
+    /**
+     * Updates the capabilities of the connection. The capabilities of
+     * {@link #buildConnectionCapabilities()} are rebuilt, the others are only recomputed when an
+     * input they depend on has changed.
+     */
     protected final void updateConnectionCapabilities() {
         int newCapabilities = buildConnectionCapabilities();
 
-        newCapabilities = applyOriginalConnectionCapabilities(newCapabilities);
-        newCapabilities = changeBitmask(newCapabilities, CAPABILITY_CAN_PAUSE_VIDEO,
-                mIsVideoPauseSupported && isVideoCapable());
-        newCapabilities = changeBitmask(newCapabilities, CAPABILITY_CAN_PULL_CALL,
-                isExternalConnection() && isPullable());
-        newCapabilities = applyConferenceTerminationCapabilities(newCapabilities);
-        newCapabilities = changeBitmask(newCapabilities, CAPABILITY_SUPPORT_DEFLECT,
-                isImsConnection() && canDeflectImsCalls());
-
-        newCapabilities = applyAddParticipantCapabilities(newCapabilities);
-        newCapabilities = changeBitmask(newCapabilities, CAPABILITY_TRANSFER_CONSULTATIVE,
-                isImsConnection() && canConsultativeTransfer());
-        newCapabilities = changeBitmask(newCapabilities, CAPABILITY_TRANSFER,
-                isImsConnection() && canTransferToNumber());
+        checkForChangedInputs();
+        for (int group = 0; group < CAPABILITY_GROUP_COUNT; group++) {
+            if ((mDirtyCapabilityInputs & CAPABILITY_GROUP_INPUTS[group]) != 0) {
+                mCapabilityGroups[group] = computeCapabilityGroup(group);
+                mBitGroupsRecomputed++;
+                sBitGroupsRecomputed.incrementAndGet();
+            } else {
+                sBitGroupsReused.incrementAndGet();
+            }
+            newCapabilities = (newCapabilities & ~CAPABILITY_GROUP_MASKS[group])
+                    | mCapabilityGroups[group];
+        }
+        mDirtyCapabilityInputs = 0;
 
         if (getConnectionCapabilities() != newCapabilities) {
+            sBitUpdatesPushed.incrementAndGet();
             setConnectionCapabilities(newCapabilities);
             notifyConnectionCapabilitiesChanged(newCapabilities);
+        } else {
+            sBitUpdatesUnchanged.incrementAndGet();
+        }
+    }
+
+    private int computeCapabilityGroup(int group) {
+        int capabilities = 0;
+        switch (group) {
+            case CAPABILITY_GROUP_VIDEO:
+                capabilities = applyOriginalConnectionCapabilities(capabilities);
+                capabilities = changeBitmask(capabilities, CAPABILITY_CAN_PAUSE_VIDEO,
+                        mIsVideoPauseSupported && isVideoCapable());
+                return changeBitmask(capabilities, CAPABILITY_CAN_PULL_CALL,
+                        isExternalConnection() && isPullable());
+            case CAPABILITY_GROUP_CONFERENCE_TERMINATION:
+                return applyConferenceTerminationCapabilities(capabilities);
+            case CAPABILITY_GROUP_DEFLECT:
+                return changeBitmask(capabilities, CAPABILITY_SUPPORT_DEFLECT,
+                        isImsConnection() && canDeflectImsCalls());
+            case CAPABILITY_GROUP_ADD_PARTICIPANT:
+                return applyAddParticipantCapabilities(capabilities);
+            case CAPABILITY_GROUP_TRANSFER:
+                capabilities = changeBitmask(capabilities, CAPABILITY_TRANSFER_CONSULTATIVE,
+                        isImsConnection() && canConsultativeTransfer());
+                return changeBitmask(capabilities, CAPABILITY_TRANSFER,
+                        isImsConnection() && canTransferToNumber());
+            default:
+                return capabilities;
         }
     }
 
@@ -1257,29 +1420,155 @@ abstract class TelephonyConnection extends Connection implements Holdable {
     }
 
     /**
-     * Updates the properties of the connection.
+     * Updates the properties of the connection. As for the capabilities, only the properties
+     * depending on an input that changed are recomputed.
      */
     protected final void updateConnectionProperties() {
         int newProperties = buildConnectionProperties();
 
-        newProperties = changeBitmask(newProperties, PROPERTY_HIGH_DEF_AUDIO,
+        checkForChangedInputs();
+        for (int group = 0; group < PROPERTY_GROUP_COUNT; group++) {
+            if ((mDirtyPropertyInputs & PROPERTY_GROUP_INPUTS[group]) != 0) {
+                mPropertyGroups[group] = computePropertyGroup(group);
+                mBitGroupsRecomputed++;
+                sBitGroupsRecomputed.incrementAndGet();
+            } else {
+                sBitGroupsReused.incrementAndGet();
+            }
+            newProperties = (newProperties & ~PROPERTY_GROUP_MASKS[group])
+                    | mPropertyGroups[group];
+        }
+        mDirtyPropertyInputs = 0;
+
+        if (getConnectionProperties() != newProperties) {
+            sBitUpdatesPushed.incrementAndGet();
+            setTelephonyConnectionProperties(newProperties);
+        } else {
+            sBitUpdatesUnchanged.incrementAndGet();
+        }
+    }
+
+    private int computePropertyGroup(int group) {
+        int properties = 0;
+        switch (group) {
+            case PROPERTY_GROUP_HIGH_DEF_AUDIO:
+                return changeBitmask(properties, PROPERTY_HIGH_DEF_AUDIO,
+                        hasHighDefAudioProperty());
+            case PROPERTY_GROUP_FLAGS:
+                properties = changeBitmask(properties, PROPERTY_WIFI, isWifi());
+                properties = changeBitmask(properties, PROPERTY_IS_EXTERNAL_CALL,
+                        isExternalConnection());
+                properties = changeBitmask(properties, PROPERTY_HAS_CDMA_VOICE_PRIVACY,
+                        mIsCdmaVoicePrivacyEnabled);
+                properties = changeBitmask(properties, PROPERTY_ASSISTED_DIALING,
+                        mIsUsingAssistedDialing);
+                properties = changeBitmask(properties, PROPERTY_NETWORK_IDENTIFIED_EMERGENCY_CALL,
+                        isNetworkIdentifiedEmergencyCall());
+                return changeBitmask(properties, PROPERTY_IS_ADHOC_CONFERENCE,
+                        isAdhocConferenceCall());
+            case PROPERTY_GROUP_RTT:
+                return changeBitmask(properties, PROPERTY_IS_RTT, isRtt());
+            default:
+                return properties;
+        }
+    }
+
+    /** Marks inputs of the capabilities and properties as changed. */
+    private void invalidateInputs(int inputs) {
+        mDirtyCapabilityInputs |= inputs;
+        mDirtyPropertyInputs |= inputs;
+    }
+
+    /**
+     * Marks the inputs that can change without this class being told as changed, if they differ
+     * from the last update.
+     */
+    private void checkForChangedInputs() {
+        if (mLastInputOriginalConnection != mOriginalConnection
+                || mLastInputWasImsConnection != mWasImsConnection) {
+            mLastInputOriginalConnection = mOriginalConnection;
+            mLastInputWasImsConnection = mWasImsConnection;
+            invalidateInputs(INPUT_ORIGINAL_CONNECTION);
+        }
+        if (mLastInputState != getState() || mLastInputConnectionState != mConnectionState
+                || mLastInputTreatAsEmergencyCall != mTreatAsEmergencyCall) {
+            mLastInputState = getState();
+            mLastInputConnectionState = mConnectionState;
+            mLastInputTreatAsEmergencyCall = mTreatAsEmergencyCall;
+            invalidateInputs(INPUT_STATE);
+        }
+        if (mLastInputVideoState != getVideoState()) {
+            mLastInputVideoState = getVideoState();
+            invalidateInputs(INPUT_VIDEO_STATE);
+        }
+        CarrierConfigSnapshot carrierConfig = getCarrierConfigSnapshot();
+        if (mLastInputCarrierConfig != carrierConfig) {
+            mLastInputCarrierConfig = carrierConfig;
+            invalidateInputs(INPUT_CARRIER_CONFIG);
+        }
+    }
+
+    /** @return how many groups of capabilities and properties this connection recomputed. */
+    @VisibleForTesting
+    public int getBitGroupsRecomputed() {
+        return mBitGroupsRecomputed;
+    }
+
+    /**
+     * @return the capabilities rebuilt from all of their inputs, without reusing any group of
+     * bits, which the incremental {@link #updateConnectionCapabilities()} must agree with.
+     */
+    @VisibleForTesting
+    int rebuildConnectionCapabilities() {
+        int capabilities = buildConnectionCapabilities();
+        capabilities = applyOriginalConnectionCapabilities(capabilities);
+        capabilities = changeBitmask(capabilities, CAPABILITY_CAN_PAUSE_VIDEO,
+                mIsVideoPauseSupported && isVideoCapable());
+        capabilities = changeBitmask(capabilities, CAPABILITY_CAN_PULL_CALL,
+                isExternalConnection() && isPullable());
+        capabilities = applyConferenceTerminationCapabilities(capabilities);
+        capabilities = changeBitmask(capabilities, CAPABILITY_SUPPORT_DEFLECT,
+                isImsConnection() && canDeflectImsCalls());
+        capabilities = applyAddParticipantCapabilities(capabilities);
+        capabilities = changeBitmask(capabilities, CAPABILITY_TRANSFER_CONSULTATIVE,
+                isImsConnection() && canConsultativeTransfer());
+        return changeBitmask(capabilities, CAPABILITY_TRANSFER,
+                isImsConnection() && canTransferToNumber());
+    }
+
+    /**
+     * @return the properties rebuilt from all of their inputs, which the incremental
+     * {@link #updateConnectionProperties()} must agree with.
+     */
+    @VisibleForTesting
+    int rebuildConnectionProperties() {
+        int properties = buildConnectionProperties();
+        properties = changeBitmask(properties, PROPERTY_HIGH_DEF_AUDIO,
                 hasHighDefAudioProperty());
-        newProperties = changeBitmask(newProperties, PROPERTY_WIFI, isWifi());
-        newProperties = changeBitmask(newProperties, PROPERTY_IS_EXTERNAL_CALL,
+        properties = changeBitmask(properties, PROPERTY_WIFI, isWifi());
+        properties = changeBitmask(properties, PROPERTY_IS_EXTERNAL_CALL,
                 isExternalConnection());
-        newProperties = changeBitmask(newProperties, PROPERTY_HAS_CDMA_VOICE_PRIVACY,
+        properties = changeBitmask(properties, PROPERTY_HAS_CDMA_VOICE_PRIVACY,
                 mIsCdmaVoicePrivacyEnabled);
-        newProperties = changeBitmask(newProperties, PROPERTY_ASSISTED_DIALING,
+        properties = changeBitmask(properties, PROPERTY_ASSISTED_DIALING,
                 mIsUsingAssistedDialing);
-        newProperties = changeBitmask(newProperties, PROPERTY_IS_RTT, isRtt());
-        newProperties = changeBitmask(newProperties, PROPERTY_NETWORK_IDENTIFIED_EMERGENCY_CALL,
+        properties = changeBitmask(properties, PROPERTY_IS_RTT, isRtt());
+        properties = changeBitmask(properties, PROPERTY_NETWORK_IDENTIFIED_EMERGENCY_CALL,
                 isNetworkIdentifiedEmergencyCall());
-        newProperties = changeBitmask(newProperties, PROPERTY_IS_ADHOC_CONFERENCE,
+        return changeBitmask(properties, PROPERTY_IS_ADHOC_CONFERENCE,
                 isAdhocConferenceCall());
+    }
 
-        if (getConnectionProperties() != newProperties) {
-            setTelephonyConnectionProperties(newProperties);
-        }
+    /**
+     * @return a one line summary of how many groups of capabilities and properties were
+     * recomputed or reused, and how many updates changed what Telecom is told, for all
+     * connections since the process started.
+     */
+    static String getCapabilityUpdateStats() {
+        return "groups recomputed=" + sBitGroupsRecomputed.get()
+                + " reused=" + sBitGroupsReused.get()
+                + ", updates pushed=" + sBitUpdatesPushed.get()
+                + " unchanged=" + sBitUpdatesUnchanged.get();
     }
 
     public void setTelephonyConnectionProperties(int newProperties) {
@@ -1345,6 +1634,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         clearOriginalConnection();
         mOriginalConnectionExtras.clear();
         mOriginalConnection = originalConnection;
+        invalidateInputs(INPUT_ALL);
         mOriginalConnection.setTelecomCallId(getTelecomCallId());
         getPhone().registerForPreciseCallStateChanged(
                 mHandler, MSG_PRECISE_CALL_STATE_CHANGED, null);
@@ -1357,6 +1647,13 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         getPhone().registerForOnHoldTone(mHandler, MSG_ON_HOLD_TONE, null);
         getPhone().registerForInCallVoicePrivacyOn(mHandler, MSG_CDMA_VOICE_PRIVACY_ON, null);
         getPhone().registerForInCallVoicePrivacyOff(mHandler, MSG_CDMA_VOICE_PRIVACY_OFF, null);
+        if (!mIsRegisteredForCarrierConfigChanges) {
+            registerCarrierConfigChangeListener(mCarrierConfigChangeListener);
+            mIsRegisteredForCarrierConfigChanges = true;
+        }
+        // The phone may have changed, for example on a redial.
+        mCarrierConfigSnapshot = null;
+        getCarrierConfigSnapshot();
         mOriginalConnection.addPostDialListener(mPostDialListener);
         mOriginalConnection.addListener(mOriginalConnectionListener);
 
@@ -1425,21 +1722,10 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         if (cnapName == null) {
             return null;
         }
-        PersistableBundle carrierConfig = getCarrierConfig();
-        String[] filteredCnapNames = null;
-        if (carrierConfig != null) {
-            filteredCnapNames = carrierConfig.getStringArray(
-                    CarrierConfigManager.KEY_FILTERED_CNAP_NAMES_STRING_ARRAY);
-        }
-        if (filteredCnapNames != null) {
-            long cnapNameMatches = Arrays.asList(filteredCnapNames)
-                    .stream()
-                    .filter(filteredCnapName -> filteredCnapName.equals(cnapName.toUpperCase()))
-                    .count();
-            if (cnapNameMatches > 0) {
-                Log.i(this, "filterCnapName: Filtered CNAP Name: " + cnapName);
-                return "";
-            }
+        CarrierConfigSnapshot carrierConfig = getCarrierConfigSnapshot();
+        if (carrierConfig != null && carrierConfig.isFilteredCnapName(cnapName)) {
+            Log.i(this, "filterCnapName: Filtered CNAP Name: " + cnapName);
+            return "";
         }
         return cnapName;
     }
@@ -1595,15 +1881,11 @@ abstract class TelephonyConnection extends Connection implements Holdable {
 
         boolean isVideoCall = VideoProfile.isVideo(getVideoState());
 
-        PersistableBundle b = getCarrierConfig();
-        boolean canWifiCallsBeHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_WIFI_CALLS_CAN_BE_HD_AUDIO);
-        boolean canVideoCallsBeHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_VIDEO_CALLS_CAN_BE_HD_AUDIO);
-        boolean canGsmCdmaCallsBeHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_GSM_CDMA_CALLS_CAN_BE_HD_AUDIO);
-        boolean shouldDisplayHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_DISPLAY_HD_AUDIO_PROPERTY_BOOL);
+        CarrierConfigSnapshot b = getCarrierConfigSnapshot();
+        boolean canWifiCallsBeHdAudio = b != null && b.wifiCallsCanBeHdAudio();
+        boolean canVideoCallsBeHdAudio = b != null && b.videoCallsCanBeHdAudio();
+        boolean canGsmCdmaCallsBeHdAudio = b != null && b.gsmCdmaCallsCanBeHdAudio();
+        boolean shouldDisplayHdAudio = b != null && b.displayHdAudioProperty();
 
         if (!shouldDisplayHdAudio) {
             return false;
@@ -1654,18 +1936,27 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      */
     public void setIsAdhocConferenceCall(boolean isAdhocConferenceCall) {
         mIsAdhocConferenceCall = isAdhocConferenceCall;
+        invalidateInputs(INPUT_PROPERTY_FLAGS);
         updateConnectionProperties();
     }
 
     private boolean canHoldImsCalls() {
-        PersistableBundle b = getCarrierConfig();
+        CarrierConfigSnapshot b = getCarrierConfigSnapshot();
         // Return true if the CarrierConfig is unavailable
-        return (!doesDeviceRespectHoldCarrierConfig() || b == null ||
-                b.getBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL)) &&
+        return (!doesDeviceRespectHoldCarrierConfig() || b == null || b.allowHoldInImsCall()) &&
                 ((mOriginalConnection != null && mOriginalConnection.shouldAllowHoldingVideoCall())
                 || !VideoProfile.isVideo(getVideoState()));
     }
 
+    /**
+     * Called when a conference was added to or removed from the connection service, which may
+     * change whether a conference is hosted on the device.
+     */
+    void onHostedConferencesChanged() {
+        invalidateInputs(INPUT_HOSTED_CONFERENCES);
+        updateConnectionCapabilities();
+    }
+
     private boolean isConferenceHosted() {
         boolean isHosted = false;
         if (getTelephonyConnectionService() != null) {
@@ -1691,8 +1982,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
             return false;
         }
 
-        if (!getCarrierConfig()
-                .getBoolean(CarrierConfigManager.KEY_SUPPORT_ADD_CONFERENCE_PARTICIPANTS_BOOL)) {
+        if (!getCarrierConfigSnapshot().supportAddConferenceParticipants()) {
             return false;
         }
 
@@ -1744,22 +2034,63 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         return PhoneGlobals.getInstance().getCarrierConfigForSubId(phone.getSubId());
     }
 
+    /**
+     * @return the typed view of the carrier config of the phone's subscription, which is kept
+     * until the subscription or its config changes, or null if there is no phone.
+     */
+    public CarrierConfigSnapshot getCarrierConfigSnapshot() {
+        Phone phone = getPhone();
+        if (phone == null) {
+            return null;
+        }
+        int subId = phone.getSubId();
+        if (mCarrierConfigSnapshot == null || subId != mCarrierConfigSubId) {
+            mCarrierConfigSnapshot = loadCarrierConfigSnapshot(subId);
+            mCarrierConfigSubId = subId;
+        }
+        return mCarrierConfigSnapshot;
+    }
+
+    /** @return the current carrier config of the subscription. */
+    @VisibleForTesting
+    protected CarrierConfigSnapshot loadCarrierConfigSnapshot(int subId) {
+        return PhoneGlobals.getInstance().getCarrierConfigSnapshotForSubId(subId);
+    }
+
+    @VisibleForTesting
+    protected void registerCarrierConfigChangeListener(
+            CarrierConfigLoader.ConfigChangeListener listener) {
+        PhoneGlobals.getInstance().registerCarrierConfigChangeListener(null /* keys */,
+                mHandler::post, listener);
+    }
+
+    @VisibleForTesting
+    protected void unregisterCarrierConfigChangeListener(
+            CarrierConfigLoader.ConfigChangeListener listener) {
+        PhoneGlobals.getInstance().unregisterCarrierConfigChangeListener(listener);
+    }
+
+    private void onCarrierConfigChanged(int subId) {
+        if (subId == mCarrierConfigSubId) {
+            Log.d(this, "onCarrierConfigChanged: refreshing config of subId " + subId);
+            mCarrierConfigSnapshot = null;
+        }
+    }
+
     private boolean canDeflectImsCalls() {
-        PersistableBundle b = getCarrierConfig();
+        CarrierConfigSnapshot b = getCarrierConfigSnapshot();
         // Return false if the CarrierConfig is unavailable
         if (b != null) {
-            return b.getBoolean(
-                    CarrierConfigManager.KEY_CARRIER_ALLOW_DEFLECT_IMS_CALL_BOOL) &&
-                    isValidRingingCall();
+            return b.allowDeflectImsCall() && isValidRingingCall();
         }
         return false;
     }
 
     private boolean isCallTransferSupported() {
-        PersistableBundle b = getCarrierConfig();
+        CarrierConfigSnapshot b = getCarrierConfigSnapshot();
         // Return false if the CarrierConfig is unavailable
         if (b != null) {
-            return b.getBoolean(CarrierConfigManager.KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL);
+            return b.allowTransferImsCall();
         }
         return false;
     }
@@ -2014,41 +2345,62 @@ abstract class TelephonyConnection extends Connection implements Holdable {
     protected void updateExtras(Bundle extras) {
         if (mOriginalConnection != null) {
             if (extras != null) {
-                // Check if extras have changed and need updating.
-                if (!areBundlesEqual(mOriginalConnectionExtras, extras)) {
-                    if (Log.DEBUG) {
-                        Log.d(TelephonyConnection.this, "Updating extras:");
-                        for (String key : extras.keySet()) {
-                            Object value = extras.get(key);
-                            if (value instanceof String) {
-                                Log.d(this, "updateExtras Key=" + Rlog.pii(LOG_TAG, key)
-                                        + " value=" + Rlog.pii(LOG_TAG, value));
-                            }
-                        }
+                // Remap any string extras that have a remapping defined.
+                Bundle newExtras = new Bundle(extras);
+                for (String key : extras.keySet()) {
+                    if (sExtrasMap.containsKey(key)) {
+                        newExtras.putString(sExtrasMap.get(key), extras.getString(key));
+                        newExtras.remove(key);
                     }
-                    mOriginalConnectionExtras.clear();
-
-                    mOriginalConnectionExtras.putAll(extras);
+                }
 
-                    // Remap any string extras that have a remapping defined.
-                    for (String key : mOriginalConnectionExtras.keySet()) {
-                        if (sExtrasMap.containsKey(key)) {
-                            String newKey = sExtrasMap.get(key);
-                            mOriginalConnectionExtras.putString(newKey, extras.getString(key));
-                            mOriginalConnectionExtras.remove(key);
-                        }
+                // Only the extras that were added, changed or removed are sent to Telecom.
+                Bundle changedExtras = new Bundle(newExtras);
+                for (String key : newExtras.keySet()) {
+                    if (mOriginalConnectionExtras.containsKey(key) && Objects.deepEquals(
+                            mOriginalConnectionExtras.get(key), newExtras.get(key))) {
+                        changedExtras.remove(key);
                     }
-
-                    // Ensure extras are propagated to Telecom.
-                    putTelephonyExtras(mOriginalConnectionExtras);
-                    // If extras contain Conference support information,
-                    // then ensure capabilities are updated.
-                    if (mOriginalConnectionExtras.containsKey(
-                            ImsCallProfile.EXTRA_CONFERENCE_AVAIL)) {
-                        updateConnectionCapabilities();
+                }
+                List<String> removedKeys = new ArrayList<>();
+                for (String key : mOriginalConnectionExtras.keySet()) {
+                    if (!newExtras.containsKey(key)) {
+                        removedKeys.add(key);
                     }
-                } else {
+                }
+                if (changedExtras.isEmpty() && removedKeys.isEmpty()) {
                     Log.d(this, "Extras update not required");
+                    return;
+                }
+                if (Log.DEBUG) {
+                    Log.d(TelephonyConnection.this, "Updating extras:");
+                    for (String key : changedExtras.keySet()) {
+                        Object value = changedExtras.get(key);
+                        if (value instanceof String) {
+                            Log.d(this, "updateExtras Key=" + Rlog.pii(LOG_TAG, key)
+                                    + " value=" + Rlog.pii(LOG_TAG, value));
+                        }
+                    }
+                }
+                boolean conferenceAvailChanged =
+                        changedExtras.containsKey(ImsCallProfile.EXTRA_CONFERENCE_AVAIL)
+                        || removedKeys.contains(ImsCallProfile.EXTRA_CONFERENCE_AVAIL);
+                recordExtrasUpdate(newExtras, changedExtras, removedKeys.size());
+                mOriginalConnectionExtras.clear();
+                mOriginalConnectionExtras.putAll(newExtras);
+
+                // Ensure extras are propagated to Telecom.
+                if (!changedExtras.isEmpty()) {
+                    putTelephonyExtras(changedExtras);
+                }
+                if (!removedKeys.isEmpty()) {
+                    removeTelephonyExtras(removedKeys);
+                }
+                // If Conference support information changed, then ensure capabilities are
+                // updated.
+                if (conferenceAvailChanged) {
+                    invalidateInputs(INPUT_CONFERENCE);
+                    updateConnectionCapabilities();
                 }
             } else {
                 Log.d(this, "updateExtras extras: " + Rlog.pii(LOG_TAG, extras));
@@ -2056,25 +2408,49 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         }
     }
 
-    private static boolean areBundlesEqual(Bundle extras, Bundle newExtras) {
-        if (extras == null || newExtras == null) {
-            return extras == newExtras;
+    /**
+     * Counts the extras an update sent to Telecom, and the unchanged extras it left out. The size
+     * of the unchanged extras is only measured for a sample of the updates, so that marshalling
+     * the bundles does not cost more than what sending fewer extras saves.
+     */
+    private static void recordExtrasUpdate(Bundle newExtras, Bundle changedExtras,
+            int removedKeys) {
+        long update = sExtrasUpdates.incrementAndGet();
+        sExtrasKeysSent.addAndGet(changedExtras.size() + removedKeys);
+        int unchangedKeys = newExtras.size() - changedExtras.size();
+        if (unchangedKeys > 0) {
+            sExtrasKeysSkipped.addAndGet(unchangedKeys);
+            if (update % EXTRAS_SIZE_SAMPLE_INTERVAL == 1) {
+                sSampledExtrasKeysSkipped.addAndGet(unchangedKeys);
+                sSampledExtrasBytesAvoided.addAndGet(Math.max(0,
+                        getParcelledSize(newExtras) - getParcelledSize(changedExtras)));
+            }
         }
+    }
 
-        if (extras.size() != newExtras.size()) {
-            return false;
+    private static int getParcelledSize(Bundle bundle) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            bundle.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
         }
+    }
 
-        for(String key : extras.keySet()) {
-            if (key != null) {
-                final Object value = extras.get(key);
-                final Object newValue = newExtras.get(key);
-                if (!Objects.equals(value, newValue)) {
-                    return false;
-                }
-            }
-        }
-        return true;
+    /**
+     * @return a one line summary of the extras updates sent to Telecom for all connections since
+     * the process started, with the bytes avoided estimated from the sampled updates.
+     */
+    static String getExtrasUpdateStats() {
+        long keysSkipped = sExtrasKeysSkipped.get();
+        long sampledKeysSkipped = sSampledExtrasKeysSkipped.get();
+        long bytesAvoided = sampledKeysSkipped == 0 ? 0
+                : sSampledExtrasBytesAvoided.get() * keysSkipped / sampledKeysSkipped;
+        return "updates=" + sExtrasUpdates.get()
+                + " keys sent=" + sExtrasKeysSent.get()
+                + " skipped=" + keysSkipped
+                + " bytes avoided~=" + bytesAvoided;
     }
 
     void setStateOverride(Call.State state) {
@@ -2108,6 +2484,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
 
         if (mConnectionState != newState) {
             mConnectionState = newState;
+            markCallSetupPhase(newState);
             switch (newState) {
                 case IDLE:
                     break;
@@ -2170,12 +2547,32 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         }
     }
 
+    private void markCallSetupPhase(Call.State state) {
+        if (mCallSetupTrace == null) {
+            return;
+        }
+        switch (state) {
+            case DIALING:
+                mCallSetupTrace.mark(CallSetupTracer.PHASE_DIALING);
+                break;
+            case ALERTING:
+                mCallSetupTrace.mark(CallSetupTracer.PHASE_ALERTING);
+                break;
+            case ACTIVE:
+                mCallSetupTrace.mark(CallSetupTracer.PHASE_ACTIVE);
+                break;
+        }
+    }
+
     void updateState() {
         if (mOriginalConnection == null) {
             return;
         }
 
         updateStateInternal();
+        // The precise call state changes of the phone also report the other calls and the
+        // conferences they host changing.
+        invalidateInputs(INPUT_OTHER_CALLS | INPUT_HOSTED_CONFERENCES);
         updateStatusHints();
         updateConnectionCapabilities();
         updateConnectionProperties();
@@ -2195,6 +2592,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
 
         if (mIsMultiParty != mOriginalConnection.isMultiparty()) {
             mIsMultiParty = mOriginalConnection.isMultiparty();
+            invalidateInputs(INPUT_CONFERENCE);
 
             if (mIsMultiParty) {
                 notifyConferenceStarted();
@@ -2257,6 +2655,17 @@ abstract class TelephonyConnection extends Connection implements Holdable {
     public void close() {
         Log.v(this, "close");
         clearOriginalConnection();
+        if (mIsRegisteredForCarrierConfigChanges) {
+            unregisterCarrierConfigChangeListener(mCarrierConfigChangeListener);
+            mIsRegisteredForCarrierConfigChanges = false;
+        }
+        if (mCallSetupTrace != null) {
+            android.telecom.DisconnectCause cause = getDisconnectCause();
+            mCallSetupTrace.finish(cause == null
+                    ? android.telecom.DisconnectCause.UNKNOWN : cause.getCode(),
+                    shouldTreatAsEmergencyCall());
+            mCallSetupTrace = null;
+        }
         destroy();
         if (mTelephonyConnectionService != null) {
             removeTelephonyConnectionListener(
@@ -2324,6 +2733,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
     private void setCdmaVoicePrivacy(boolean isEnabled) {
         if(mIsCdmaVoicePrivacyEnabled != isEnabled) {
             mIsCdmaVoicePrivacyEnabled = isEnabled;
+            invalidateInputs(INPUT_PROPERTY_FLAGS);
             updateConnectionProperties();
         }
     }
@@ -2356,6 +2766,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      */
     public void setOriginalConnectionCapabilities(int connectionCapabilities) {
         mOriginalConnectionCapabilities = connectionCapabilities;
+        invalidateInputs(INPUT_ORIGINAL_CAPABILITIES);
         updateConnectionCapabilities();
         updateConnectionProperties();
     }
@@ -2410,6 +2821,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
                 + "isNetworkIdentifiedEmergencyCall=%b", getTelecomCallId(),
                 isNetworkIdentifiedEmergencyCall);
         mIsNetworkIdentifiedEmergencyCall = isNetworkIdentifiedEmergencyCall;
+        invalidateInputs(INPUT_PROPERTY_FLAGS);
         updateConnectionProperties();
     }
 
@@ -2437,6 +2849,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
     public void setAudioQuality(int audioQuality) {
         mHasHighDefAudio = audioQuality ==
                 com.android.internal.telephony.Connection.AUDIO_QUALITY_HIGH_DEFINITION;
+        invalidateInputs(INPUT_AUDIO_QUALITY);
         updateConnectionProperties();
     }
 
@@ -2470,6 +2883,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      */
     public void setVideoPauseSupported(boolean isVideoPauseSupported) {
         mIsVideoPauseSupported = isVideoPauseSupported;
+        invalidateInputs(INPUT_ORIGINAL_CAPABILITIES);
     }
 
     /**
@@ -2531,6 +2945,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      */
     public void setTtyEnabled(boolean isTtyEnabled) {
         mIsTtyEnabled = isTtyEnabled;
+        invalidateInputs(INPUT_ORIGINAL_CAPABILITIES);
         updateConnectionCapabilities();
     }
 
@@ -2579,6 +2994,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
 
     void setIsUsingAssistedDialing(Boolean isUsingAssistedDialing) {
         mIsUsingAssistedDialing = isUsingAssistedDialing;
+        invalidateInputs(INPUT_PROPERTY_FLAGS);
         updateConnectionProperties();
     }
 
@@ -2666,18 +3082,30 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         return mIsHoldable;
     }
 
+    /**
+     * Sets the trace of the setup of this outgoing call, which marks the states the call reaches
+     * until it is closed.
+     */
+    void setCallSetupTrace(CallSetupTracer.Trace trace) {
+        mCallSetupTrace = trace;
+    }
+
+    CallSetupTracer.Trace getCallSetupTrace() {
+        return mCallSetupTrace;
+    }
+
     /**
      * Fire a callback to the various listeners for when the original connection is
      * set in this {@link TelephonyConnection}
      */
     private final void fireOnOriginalConnectionConfigured() {
-        for (TelephonyConnectionListener l : mTelephonyListeners) {
+        for (TelephonyConnectionListener l : mTelephonyListeners.array()) {
             l.onOriginalConnectionConfigured(this);
         }
     }
 
     private final void fireOnOriginalConnectionRetryDial(boolean isPermanentFailure) {
-        for (TelephonyConnectionListener l : mTelephonyListeners) {
+        for (TelephonyConnectionListener l : mTelephonyListeners.array()) {
             l.onOriginalConnectionRetry(this, isPermanentFailure);
         }
     }
@@ -2715,8 +3143,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         if (isIms) {
             isVoWifiEnabled = ImsUtil.isWfcEnabled(phone.getContext(), phone.getPhoneId());
         }
-        boolean isRttMergeSupported = getCarrierConfig()
-                .getBoolean(CarrierConfigManager.KEY_ALLOW_MERGING_RTT_CALLS_BOOL);
+        boolean isRttMergeSupported = getCarrierConfigSnapshot().allowMergingRttCalls();
         PhoneAccountHandle phoneAccountHandle = isIms ? PhoneUtils
                 .makePstnPhoneAccountHandle(phone.getDefaultPhone())
                 : PhoneUtils.makePstnPhoneAccountHandle(phone);
@@ -2786,10 +3213,9 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         Phone phone = getPhone();
         if (phone != null && (phone.getPhoneType() == TelephonyManager.PHONE_TYPE_CDMA)
                 && !mOriginalConnection.isIncoming()) {
-            PersistableBundle pb = getCarrierConfig();
+            CarrierConfigSnapshot pb = getCarrierConfigSnapshot();
             if (pb != null) {
-                showOrigDialString = pb.getBoolean(CarrierConfigManager
-                        .KEY_CONFIG_SHOW_ORIG_DIAL_STRING_FOR_CDMA_BOOL);
+                showOrigDialString = pb.showOrigDialStringForCdma();
                 Log.d(this, "showOrigDialString: " + showOrigDialString);
             }
         }
@@ -3010,6 +3436,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
         extras.putInt(TelecomManager.EXTRA_CALL_NETWORK_TYPE,
                 ServiceState.rilRadioTechnologyToNetworkType(vrat));
         putExtras(extras);
+        invalidateInputs(INPUT_RADIO_TECH);
         // Propagates the call radio technology to its parent {@link android.telecom.Conference}
         // This action only covers non-IMS CS conference calls.
         // For IMS PS call conference call, it can be updated via its host connection
@@ -3049,7 +3476,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      */
     private void updateConferenceParticipants(
             @NonNull List<ConferenceParticipant> conferenceParticipants) {
-        for (TelephonyConnectionListener l : mTelephonyListeners) {
+        for (TelephonyConnectionListener l : mTelephonyListeners.array()) {
             l.onConferenceParticipantsChanged(this, conferenceParticipants);
         }
     }
@@ -3059,7 +3486,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * operation has started.
      */
     protected void notifyConferenceStarted() {
-        for (TelephonyConnectionListener l : mTelephonyListeners) {
+        for (TelephonyConnectionListener l : mTelephonyListeners.array()) {
             l.onConferenceStarted();
         }
     }
@@ -3071,7 +3498,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      *      conference call, {@code false} otherwise.
      */
     private void notifyConferenceSupportedChanged(boolean isConferenceSupported) {
-        for (TelephonyConnectionListener l : mTelephonyListeners) {
+        for (TelephonyConnectionListener l : mTelephonyListeners.array()) {
             l.onConferenceSupportedChanged(this, isConferenceSupported);
         }
     }
@@ -3081,7 +3508,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param newCapabilities the new capabilities.
      */
     private void notifyConnectionCapabilitiesChanged(int newCapabilities) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onConnectionCapabilitiesChanged(this, newCapabilities);
         }
     }
@@ -3091,7 +3518,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param newProperties the new properties.
      */
     private void notifyConnectionPropertiesChanged(int newProperties) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onConnectionPropertiesChanged(this, newProperties);
         }
     }
@@ -3100,7 +3527,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * Notifies {@link TelephonyConnectionListener}s when a connection is destroyed.
      */
     private void notifyDestroyed() {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onDestroyed(this);
         }
     }
@@ -3110,7 +3537,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param cause The disconnect cause.
      */
     private void notifyDisconnected(android.telecom.DisconnectCause cause) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onDisconnected(this, cause);
         }
     }
@@ -3120,7 +3547,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param newState The new state.
      */
     private void notifyStateChanged(int newState) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onStateChanged(this, newState);
         }
     }
@@ -3131,7 +3558,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param extras Any extras.
      */
     private void notifyTelephonyConnectionEvent(String event, Bundle extras) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onConnectionEvent(this, event, extras);
         }
     }
@@ -3141,7 +3568,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param extras The new extras.
      */
     private void notifyPutExtras(Bundle extras) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onExtrasChanged(this, extras);
         }
     }
@@ -3151,7 +3578,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param keys The removed keys.
      */
     private void notifyRemoveExtras(List<String> keys) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onExtrasRemoved(this, keys);
         }
     }
@@ -3165,7 +3592,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      *                   {@link VideoProfile#STATE_RX_ENABLED}.
      */
     private void notifyVideoStateChanged(int videoState) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onVideoStateChanged(this, videoState);
         }
     }
@@ -3175,7 +3602,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param ringback Whether the ringback tone is to be played
      */
     private void notifyRingbackRequested(boolean ringback) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onRingbackRequested(this, ringback);
         }
     }
@@ -3186,7 +3613,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param videoProvider The new video provider.
      */
     private void notifyVideoProviderChanged(VideoProvider videoProvider) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onVideoProviderChanged(this, videoProvider);
         }
     }
@@ -3197,7 +3624,7 @@ abstract class TelephonyConnection extends Connection implements Holdable {
      * @param statusHints The new status hints.
      */
     private void notifyStatusHintsChanged(StatusHints statusHints) {
-        for (TelephonyConnectionListener listener : mTelephonyListeners) {
+        for (TelephonyConnectionListener listener : mTelephonyListeners.array()) {
             listener.onStatusHintsChanged(this, statusHints);
         }
     }
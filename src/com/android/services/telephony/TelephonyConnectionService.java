@@ -24,10 +24,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
+import android.os.AsyncResult;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Message;
+import android.provider.DeviceConfig;
 import android.telecom.Conference;
 import android.telecom.Connection;
 import android.telecom.ConnectionRequest;
@@ -39,7 +42,6 @@ import android.telecom.TelecomManager;
 import android.telecom.VideoProfile;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
-import android.telephony.RadioAccessFamily;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
@@ -62,10 +64,15 @@ import com.android.internal.telephony.SubscriptionController;
 import com.android.internal.telephony.imsphone.ImsExternalCallTracker;
 import com.android.internal.telephony.imsphone.ImsPhone;
 import com.android.internal.telephony.imsphone.ImsPhoneConnection;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.phone.CarrierConfigSnapshot;
 import com.android.phone.MMIDialogActivity;
+import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
 import com.android.phone.R;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -167,25 +174,40 @@ public class TelephonyConnectionService extends ConnectionService {
     private HandlerThread mHandlerThread;
     private DeviceState mDeviceState = new DeviceState();
 
-    /**
-     * Keeps track of the status of a SIM slot.
-     */
-    private static class SlotStatus {
-        public int slotId;
-        // RAT capabilities
-        public int capabilities;
-        // By default, we will assume that the slots are not locked.
-        public boolean isLocked = false;
-        // Is the emergency number associated with the slot
-        public boolean hasDialedEmergencyNumber = false;
-        //SimState
-        public int simState;
+    private static final int MSG_EMERGENCY_SLOT_CHANGED = 1;
+    private final EmergencySlotRanking mEmergencySlotRanking = new EmergencySlotRanking();
+    // The phones registered for changes of their slot, indexed by slot.
+    private Phone[] mEmergencySlotPhones = new Phone[0];
 
-        public SlotStatus(int slotId, int capabilities) {
-            this.slotId = slotId;
-            this.capabilities = capabilities;
+    // Updates the ranking of a slot whose service state or radio capability changed.
+    private final Handler mEmergencySlotHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_EMERGENCY_SLOT_CHANGED) {
+                updateEmergencySlot((int) ((AsyncResult) msg.obj).userObj);
+            }
         }
-    }
+    };
+
+    private final BroadcastReceiver mSimStateBroadcastReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED.equals(intent.getAction())) {
+                stopEmergencySlotRanking();
+                startEmergencySlotRanking();
+                return;
+            }
+            int slotId = intent.getIntExtra(SubscriptionManager.EXTRA_SLOT_INDEX,
+                    SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+            if (slotId == SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+                for (int i = 0; i < mEmergencySlotPhones.length; i++) {
+                    updateEmergencySlot(i);
+                }
+            } else {
+                updateEmergencySlot(slotId);
+            }
+        }
+    };
 
     /**
      * SubscriptionManager dependencies for testing.
@@ -350,6 +372,21 @@ public class TelephonyConnectionService extends ConnectionService {
         }
     };
 
+    /**
+     * Carrier config dependencies for testing.
+     */
+    @VisibleForTesting
+    public interface CarrierConfigProxy {
+        CarrierConfigSnapshot getCarrierConfigSnapshotForSubId(int subId);
+    }
+
+    private CarrierConfigProxy mCarrierConfigProxy = new CarrierConfigProxy() {
+        @Override
+        public CarrierConfigSnapshot getCarrierConfigSnapshotForSubId(int subId) {
+            return PhoneGlobals.getInstance().getCarrierConfigSnapshotForSubId(subId);
+        }
+    };
+
     /**
      * Factory for Handler creation in order to remove flakiness during t esting.
      */
@@ -461,6 +498,14 @@ public class TelephonyConnectionService extends ConnectionService {
         mPhoneUtilsProxy = proxy;
     }
 
+    /**
+     * Overrides carrier config dependencies for testing.
+     */
+    @VisibleForTesting
+    public void setCarrierConfigProxy(CarrierConfigProxy proxy) {
+        mCarrierConfigProxy = proxy;
+    }
+
     /**
      * Override Handler creation factory for testing.
      */
@@ -524,15 +569,37 @@ public class TelephonyConnectionService extends ConnectionService {
         mHandlerThread.start();
         Looper looper = mHandlerThread.getLooper();
         mDdsSwitchHandler = mHandlerFactory.createHandler(looper);
+
+        IntentFilter simStateFilter = new IntentFilter(
+                TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        simStateFilter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        simStateFilter.addAction(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED);
+        registerReceiver(mSimStateBroadcastReceiver, simStateFilter);
+        startEmergencySlotRanking();
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
         unregisterReceiver(mTtyBroadcastReceiver);
+        unregisterReceiver(mSimStateBroadcastReceiver);
+        stopEmergencySlotRanking();
         mHandlerThread.quitSafely();
         return super.onUnbind(intent);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("TelephonyConnectionService:");
+        writer.println("  Capability and property updates: "
+                + TelephonyConnection.getCapabilityUpdateStats());
+        writer.println("  Extras updates: " + TelephonyConnection.getExtrasUpdateStats());
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        pw.increaseIndent();
+        CallSetupTracer.getInstance().dump(pw);
+        pw.decreaseIndent();
+        pw.flush();
+    }
+
     private Conference placeOutgoingConference(ConnectionRequest request,
             Connection resultConnection, Phone phone) {
         if (resultConnection instanceof TelephonyConnection) {
@@ -584,7 +651,7 @@ public class TelephonyConnectionService extends ConnectionService {
         ImsConference conference = new ImsConference(TelecomAccountRegistry.getInstance(this),
                 mTelephonyConnectionServiceProxy, connection,
                 phoneAccountHandle, () -> true,
-                ImsConferenceController.getCarrierConfig(connection.getPhone()));
+                ImsConferenceController.getCarrierConfig(connection.getCarrierConfigSnapshot()));
         mImsConferenceController.addConference(conference);
         conference.setVideoState(connection,
                 connection.getVideoState());
@@ -670,6 +737,7 @@ public class TelephonyConnectionService extends ConnectionService {
             PhoneAccountHandle connectionManagerPhoneAccount,
             final ConnectionRequest request) {
         Log.i(this, "onCreateOutgoingConnection, request: " + request);
+        final CallSetupTracer.Trace setupTrace = CallSetupTracer.getInstance().start();
 
         Uri handle = request.getAddress();
         boolean isAdhocConference = request.isAdhocConferenceCall();
@@ -732,15 +800,7 @@ public class TelephonyConnectionService extends ConnectionService {
                 // Obtain the configuration for the outgoing phone's SIM. If the outgoing number
                 // matches the *228 regex pattern, fail the call. This number is used for OTASP, and
                 // when dialed could lock LTE SIMs to 3G if not prohibited..
-                boolean disableActivation = false;
-                CarrierConfigManager cfgManager = (CarrierConfigManager)
-                        phone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-                if (cfgManager != null) {
-                    disableActivation = cfgManager.getConfigForSubId(phone.getSubId())
-                            .getBoolean(CarrierConfigManager.KEY_DISABLE_CDMA_ACTIVATION_CODE_BOOL);
-                }
-
-                if (disableActivation) {
+                if (getCarrierConfigSnapshot(phone).disableCdmaActivationCode()) {
                     return Connection.createFailedConnection(
                             mDisconnectCauseFactory.toTelecomDisconnectCause(
                                     android.telephony.DisconnectCause
@@ -792,14 +852,31 @@ public class TelephonyConnectionService extends ConnectionService {
             final int originalPhoneType = phone.getPhoneType();
             final Connection resultConnection = getTelephonyConnection(request, numberToDial,
                     isEmergencyNumber, resultHandle, phone);
+            setCallSetupTrace(resultConnection, setupTrace);
             if (mRadioOnHelper == null) {
-                mRadioOnHelper = new RadioOnHelper(this);
+                mRadioOnHelper = new RadioOnHelper(this,
+                        DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_TELEPHONY,
+                                RadioOnHelper.FIRST_READY_RADIO_ON_ENABLED, false),
+                        mPhoneFactoryProxy);
             }
             mRadioOnHelper.triggerRadioOnAndListen(new RadioOnStateListener.Callback() {
                 @Override
                 public void onComplete(RadioOnStateListener listener, boolean isRadioReady) {
+                    // The listener is only set when the call is retried on the first Phone whose
+                    // radio is ready. Keep the Phone chosen for the call if it is ready too.
+                    Phone readyPhone = phone;
+                    if (listener != null && listener.getPhone() != null
+                            && !isOkToCall(phone, phone.getServiceState().getState())) {
+                        readyPhone = listener.getPhone();
+                        Log.i(this, "onComplete, using first ready Phone Id: "
+                                + readyPhone.getPhoneId());
+                        if (readyPhone != phone
+                                && resultConnection instanceof TelephonyConnection) {
+                            updatePhoneAccount((TelephonyConnection) resultConnection, readyPhone);
+                        }
+                    }
                     handleOnComplete(isRadioReady, isEmergencyNumber, resultConnection, request,
-                            numberToDial, resultHandle, originalPhoneType, phone);
+                            numberToDial, resultHandle, originalPhoneType, readyPhone);
                 }
 
                 @Override
@@ -847,6 +924,7 @@ public class TelephonyConnectionService extends ConnectionService {
             if (!isEmergencyNumber) {
                 final Connection resultConnection = getTelephonyConnection(request, numberToDial,
                         false, handle, phone);
+                setCallSetupTrace(resultConnection, setupTrace);
                 if (isAdhocConference) {
                     if (resultConnection instanceof TelephonyConnection) {
                         TelephonyConnection conn = (TelephonyConnection)resultConnection;
@@ -859,12 +937,14 @@ public class TelephonyConnectionService extends ConnectionService {
             } else {
                 final Connection resultConnection = getTelephonyConnection(request, numberToDial,
                         true, handle, phone);
+                setCallSetupTrace(resultConnection, setupTrace);
                 mDdsSwitchHandler.post(new Runnable() {
                     @Override
                     public void run() {
                         boolean result = delayDialForDdsSwitch(phone);
                         Log.i(this,
                                 "onCreateOutgoingConn - delayDialForDdsSwitch result = " + result);
+                        markCallSetupPhase(resultConnection, CallSetupTracer.PHASE_DDS_SWITCHED);
                         placeOutgoingConnection(request, resultConnection, phone);
                     }
                 });
@@ -887,6 +967,21 @@ public class TelephonyConnectionService extends ConnectionService {
         return resultConnection;
     }
 
+    private static void setCallSetupTrace(Connection connection, CallSetupTracer.Trace trace) {
+        if (connection instanceof TelephonyConnection) {
+            ((TelephonyConnection) connection).setCallSetupTrace(trace);
+        }
+    }
+
+    private static void markCallSetupPhase(Connection connection, int phase) {
+        if (connection instanceof TelephonyConnection) {
+            CallSetupTracer.Trace trace = ((TelephonyConnection) connection).getCallSetupTrace();
+            if (trace != null) {
+                trace.mark(phase);
+            }
+        }
+    }
+
     private boolean isEmergencyNumberTestNumber(String number) {
         number = PhoneNumberUtils.stripSeparators(number);
         Map<Integer, List<EmergencyNumber>> list =
@@ -935,6 +1030,7 @@ public class TelephonyConnectionService extends ConnectionService {
             return;
         }
         if (isRadioReady) {
+            markCallSetupPhase(originalConnection, CallSetupTracer.PHASE_RADIO_READY);
             if (!isEmergencyNumber) {
                 adjustAndPlaceOutgoingConnection(phone, originalConnection, request, numberToDial,
                         handle, originalPhoneType, false);
@@ -944,6 +1040,7 @@ public class TelephonyConnectionService extends ConnectionService {
                     public void run() {
                         boolean result = delayDialForDdsSwitch(phone);
                         Log.i(this, "handleOnComplete - delayDialForDdsSwitch result = " + result);
+                        markCallSetupPhase(originalConnection, CallSetupTracer.PHASE_DDS_SWITCHED);
                         adjustAndPlaceOutgoingConnection(phone, originalConnection, request,
                                 numberToDial, handle, originalPhoneType, true);
                     }
@@ -967,6 +1064,12 @@ public class TelephonyConnectionService extends ConnectionService {
         if (phone.getPhoneType() != originalPhoneType) {
             Connection repConnection = getTelephonyConnection(request, numberToDial,
                     isEmergencyNumber, handle, phone);
+            // The replacement carries on with the setup of the old connection.
+            if (connectionToEvaluate instanceof TelephonyConnection) {
+                TelephonyConnection oldConnection = (TelephonyConnection) connectionToEvaluate;
+                setCallSetupTrace(repConnection, oldConnection.getCallSetupTrace());
+                oldConnection.setCallSetupTrace(null);
+            }
             // If there was a failure, the resulting connection will not be a TelephonyConnection,
             // so don't place the call, just return!
             if (repConnection instanceof TelephonyConnection) {
@@ -1063,15 +1166,7 @@ public class TelephonyConnectionService extends ConnectionService {
         // If we're dialing a non-emergency number and the phone is in ECM mode, reject the call if
         // carrier configuration specifies that we cannot make non-emergency calls in ECM mode.
         if (!isEmergencyNumber && phone.isInEcm()) {
-            boolean allowNonEmergencyCalls = true;
-            CarrierConfigManager cfgManager = (CarrierConfigManager)
-                    phone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-            if (cfgManager != null) {
-                allowNonEmergencyCalls = cfgManager.getConfigForSubId(phone.getSubId())
-                        .getBoolean(CarrierConfigManager.KEY_ALLOW_NON_EMERGENCY_CALLS_IN_ECM_BOOL);
-            }
-
-            if (!allowNonEmergencyCalls) {
+            if (!getCarrierConfigSnapshot(phone).allowNonEmergencyCallsInEcm()) {
                 return Connection.createFailedConnection(
                         mDisconnectCauseFactory.toTelecomDisconnectCause(
                                 android.telephony.DisconnectCause.CDMA_NOT_EMERGENCY,
@@ -1525,6 +1620,9 @@ public class TelephonyConnectionService extends ConnectionService {
         if (conference instanceof Holdable) {
             mHoldTracker.addHoldable(conference.getPhoneAccountHandle(), (Holdable) conference);
         }
+        if (conference instanceof ImsConference) {
+            notifyHostedConferencesChanged();
+        }
     }
 
     @Override
@@ -1532,6 +1630,18 @@ public class TelephonyConnectionService extends ConnectionService {
         if (conference instanceof Holdable) {
             mHoldTracker.removeHoldable(conference.getPhoneAccountHandle(), (Holdable) conference);
         }
+        if (conference instanceof ImsConference) {
+            notifyHostedConferencesChanged();
+        }
+    }
+
+    /** Tells the connections that an IMS conference they may be added to came or went. */
+    private void notifyHostedConferencesChanged() {
+        for (Connection connection : getAllConnections()) {
+            if (connection instanceof TelephonyConnection) {
+                ((TelephonyConnection) connection).onHostedConferencesChanged();
+            }
+        }
     }
 
     private boolean isExternalConnection(Connection connection) {
@@ -1543,29 +1653,11 @@ public class TelephonyConnectionService extends ConnectionService {
         if (phone == null || TextUtils.isEmpty(number) || !phone.getServiceState().getRoaming()) {
             return false;
         }
-        boolean allowPrefixIms = true;
-        String[] blockPrefixes = null;
-        CarrierConfigManager cfgManager = (CarrierConfigManager)
-                phone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-        if (cfgManager != null) {
-            allowPrefixIms = cfgManager.getConfigForSubId(phone.getSubId()).getBoolean(
-                    CarrierConfigManager.KEY_SUPPORT_IMS_CALL_FORWARDING_WHILE_ROAMING_BOOL,
-                    true);
-            if (allowPrefixIms && useImsForAudioOnlyCall(phone)) {
-                return false;
-            }
-            blockPrefixes = cfgManager.getConfigForSubId(phone.getSubId()).getStringArray(
-                    CarrierConfigManager.KEY_CALL_FORWARDING_BLOCKS_WHILE_ROAMING_STRING_ARRAY);
-        }
-
-        if (blockPrefixes != null) {
-            for (String prefix : blockPrefixes) {
-                if (number.startsWith(prefix)) {
-                    return true;
-                }
-            }
+        CarrierConfigSnapshot config = getCarrierConfigSnapshot(phone);
+        if (config.supportImsCallForwardingWhileRoaming() && useImsForAudioOnlyCall(phone)) {
+            return false;
         }
-        return false;
+        return config.isCallForwardingBlockedWhileRoaming(number);
     }
 
     private boolean useImsForAudioOnlyCall(Phone phone) {
@@ -1721,6 +1813,7 @@ public class TelephonyConnectionService extends ConnectionService {
                         }
                     }
                 }
+                markCallSetupPhase(connection, CallSetupTracer.PHASE_DIAL_ISSUED);
                 originalConnection = phone.dial(number, new ImsPhone.ImsDialArgs.Builder()
                         .setVideoState(videoState)
                         .setIntentExtras(extras)
@@ -1760,27 +1853,19 @@ public class TelephonyConnectionService extends ConnectionService {
     }
 
     private boolean isVideoCallHoldAllowed(Phone phone) {
-         CarrierConfigManager cfgManager = (CarrierConfigManager)
-                phone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-        if (cfgManager == null) {
-            // For some reason CarrierConfigManager is unavailable, return default
-            Log.w(this, "isVideoCallHoldAllowed: couldn't get CarrierConfigManager");
-            return true;
-        }
-        return cfgManager.getConfigForSubId(phone.getSubId()).getBoolean(
-                CarrierConfigManager.KEY_ALLOW_HOLD_VIDEO_CALL_BOOL, true);
+        return getCarrierConfigSnapshot(phone).allowHoldVideoCall();
     }
 
     private boolean shouldHoldForEmergencyCall(Phone phone) {
-        CarrierConfigManager cfgManager = (CarrierConfigManager)
-                phone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-        if (cfgManager == null) {
-            // For some reason CarrierConfigManager is unavailable, return default
-            Log.w(this, "shouldHoldForEmergencyCall: couldn't get CarrierConfigManager");
-            return true;
-        }
-        return cfgManager.getConfigForSubId(phone.getSubId()).getBoolean(
-                CarrierConfigManager.KEY_ALLOW_HOLD_CALL_DURING_EMERGENCY_BOOL, true);
+        return getCarrierConfigSnapshot(phone).allowHoldCallDuringEmergency();
+    }
+
+    /**
+     * @return the typed view of the carrier config of the phone's subscription, which is shared
+     * until the config changes.
+     */
+    private CarrierConfigSnapshot getCarrierConfigSnapshot(Phone phone) {
+        return mCarrierConfigProxy.getCarrierConfigSnapshotForSubId(phone.getSubId());
     }
 
     private void handleCallStateException(CallStateException e, TelephonyConnection connection,
@@ -1957,14 +2042,7 @@ public class TelephonyConnectionService extends ConnectionService {
             return CompletableFuture.completedFuture(Boolean.TRUE);
         }
 
-        CarrierConfigManager cfgManager = (CarrierConfigManager)
-                phone.getContext().getSystemService(Context.CARRIER_CONFIG_SERVICE);
-        if (cfgManager == null) {
-            // For some reason CarrierConfigManager is unavailable. Do not block emergency call.
-            Log.w(this, "possiblyOverrideDefaultDataForEmergencyCall: couldn't get"
-                    + "CarrierConfigManager");
-            return CompletableFuture.completedFuture(Boolean.TRUE);
-        }
+        CarrierConfigSnapshot config = getCarrierConfigSnapshot(phone);
 
         // Only override default data if we are IN_SERVICE already.
         if (!isAvailableForEmergencyCalls(phone)) {
@@ -1979,10 +2057,7 @@ public class TelephonyConnectionService extends ConnectionService {
         // fallback even though the home operator does. For these operators we will need to do a DDS
         // switch anyway to make sure the SUPL request doesn't fail.
         boolean roamingNetworkSupportsControlPlaneFallback = true;
-        String[] dataPlaneRoamPlmns = cfgManager.getConfigForSubId(phone.getSubId()).getStringArray(
-                CarrierConfigManager.Gps.KEY_ES_SUPL_DATA_PLANE_ONLY_ROAMING_PLMN_STRING_ARRAY);
-        if (dataPlaneRoamPlmns != null && Arrays.asList(dataPlaneRoamPlmns).contains(
-                phone.getServiceState().getOperatorNumeric())) {
+        if (config.isSuplDataPlaneOnlyRoamingPlmn(phone.getServiceState().getOperatorNumeric())) {
             roamingNetworkSupportsControlPlaneFallback = false;
         }
         if (isRoaming && roamingNetworkSupportsControlPlaneFallback) {
@@ -1993,9 +2068,7 @@ public class TelephonyConnectionService extends ConnectionService {
         // Do not try to swap default data if we support CS fallback or it is assumed that the
         // roaming network supports control plane fallback, we do not want to introduce
         // a lag in emergency call setup time if possible.
-        final boolean supportsCpFallback = cfgManager.getConfigForSubId(phone.getSubId())
-                .getInt(CarrierConfigManager.Gps.KEY_ES_SUPL_CONTROL_PLANE_SUPPORT_INT,
-                        CarrierConfigManager.Gps.SUPL_EMERGENCY_MODE_TYPE_CP_ONLY)
+        final boolean supportsCpFallback = config.getSuplControlPlaneSupport()
                 != CarrierConfigManager.Gps.SUPL_EMERGENCY_MODE_TYPE_DP_ONLY;
         if (supportsCpFallback && roamingNetworkSupportsControlPlaneFallback) {
             Log.d(this, "possiblyOverrideDefaultDataForEmergencyCall: not switching DDS, carrier "
@@ -2003,15 +2076,8 @@ public class TelephonyConnectionService extends ConnectionService {
             return CompletableFuture.completedFuture(Boolean.TRUE);
         }
 
-        // Get extension time, may be 0 for some carriers that support ECBM as well. Use
-        // CarrierConfig default if format fails.
-        int extensionTime = 0;
-        try {
-            extensionTime = Integer.parseInt(cfgManager.getConfigForSubId(phone.getSubId())
-                    .getString(CarrierConfigManager.Gps.KEY_ES_EXTENSION_SEC_STRING, "0"));
-        } catch (NumberFormatException e) {
-            // Just use default.
-        }
+        // Get extension time, may be 0 for some carriers that support ECBM as well.
+        int extensionTime = config.getEmergencyExtensionSeconds();
         CompletableFuture<Boolean> modemResultFuture = new CompletableFuture<>();
         try {
             Log.d(this, "possiblyOverrideDefaultDataForEmergencyCall: overriding DDS for "
@@ -2086,9 +2152,91 @@ public class TelephonyConnectionService extends ConnectionService {
      *  5) The Phone with more Capabilities.
      *  6) The First Phone that has a SIM card in it (Starting from Slot 0...N)
      *  7) The Default Phone (Currently set as Slot 0)
+     *
+     * Whether a phone can place emergency calls now is checked live for 1) and 2), as it must not
+     * lag behind the service state. For the other steps, the slots are ranked as their state
+     * changes, so that this only reads the latest ranking. Until the slots are ranked, or if the
+     * phones changed since, the state of each slot is queried instead.
      */
     @VisibleForTesting
     public Phone getFirstPhoneForEmergencyCall(List<Phone> phonesWithEmergencyNumber) {
+        EmergencySlotRanking.Ranking ranking = mEmergencySlotRanking.getRanking();
+        if (ranking == null || !isRankingOfCurrentPhones(ranking)) {
+            return queryFirstPhoneForEmergencyCall(phonesWithEmergencyNumber);
+        }
+
+        // 1)
+        int phoneId = mSubscriptionManagerProxy.getDefaultVoicePhoneId();
+        if (phoneId >= 0 && phoneId < ranking.getSlotCount()) {
+            EmergencySlotRanking.Slot defaultSlot = ranking.getSlot(phoneId);
+            if (defaultSlot != null && isAvailableForEmergencyCalls(defaultSlot.phone)
+                    && (phonesWithEmergencyNumber == null
+                            || phonesWithEmergencyNumber.contains(defaultSlot.phone))) {
+                return defaultSlot.phone;
+            }
+        }
+        // 2)
+        for (int i = 0; i < ranking.getSlotCount(); i++) {
+            EmergencySlotRanking.Slot slot = ranking.getSlot(i);
+            if (slot != null && isAvailableForEmergencyCalls(slot.phone)
+                    && (phonesWithEmergencyNumber == null
+                            || phonesWithEmergencyNumber.contains(slot.phone))) {
+                Log.i(this, "getFirstPhoneForEmergencyCall, radio on & in service, Phone Id:" + i);
+                return slot.phone;
+            }
+        }
+        // 7)
+        EmergencySlotRanking.Slot[] rankedSlots = ranking.getRankedSlots();
+        if (rankedSlots.length == 0) {
+            if (phonesWithEmergencyNumber == null || phonesWithEmergencyNumber.isEmpty()) {
+                Log.i(this, "getFirstPhoneForEmergencyCall, return default phone");
+                return mPhoneFactoryProxy.getDefaultPhone();
+            }
+            return phonesWithEmergencyNumber.get(0);
+        }
+        // 3) Slots with the dialed emergency number rank above all the others, in the same order.
+        if (phonesWithEmergencyNumber != null) {
+            for (int i = rankedSlots.length - 1; i >= 0; i--) {
+                for (Phone phoneWithEmergencyNumber : phonesWithEmergencyNumber) {
+                    if (phoneWithEmergencyNumber != null && phoneWithEmergencyNumber.getPhoneId()
+                            == rankedSlots[i].status.slotId) {
+                        Log.i(this, "getFirstPhoneForEmergencyCall, Using Phone Id: "
+                                + rankedSlots[i].status.slotId + " with the emergency number");
+                        return rankedSlots[i].phone;
+                    }
+                }
+            }
+        }
+        // 4) 5) 6)
+        EmergencySlotRanking.Slot mostCapableSlot = rankedSlots[rankedSlots.length - 1];
+        Log.i(this, "getFirstPhoneForEmergencyCall, Using Phone Id: "
+                + mostCapableSlot.status.slotId + " with highest capability");
+        return mostCapableSlot.phone;
+    }
+
+    /**
+     * @return whether the ranking is of the phones there are now, with the same default phone.
+     */
+    private boolean isRankingOfCurrentPhones(EmergencySlotRanking.Ranking ranking) {
+        if (ranking.getSlotCount() != mTelephonyManagerProxy.getPhoneCount()) {
+            return false;
+        }
+        for (int i = 0; i < ranking.getSlotCount(); i++) {
+            EmergencySlotRanking.Slot slot = ranking.getSlot(i);
+            if ((slot == null ? null : slot.phone) != mPhoneFactoryProxy.getPhone(i)) {
+                return false;
+            }
+        }
+        Phone defaultPhone = mPhoneFactoryProxy.getDefaultPhone();
+        return defaultPhone != null && defaultPhone.getPhoneId() == ranking.getDefaultPhoneId();
+    }
+
+    /**
+     * Retrieves the Phone to use for an emergency call like {@link #getFirstPhoneForEmergencyCall},
+     * querying the state of each slot.
+     */
+    @VisibleForTesting
+    public Phone queryFirstPhoneForEmergencyCall(List<Phone> phonesWithEmergencyNumber) {
         // 1)
         int phoneId = mSubscriptionManagerProxy.getDefaultVoicePhoneId();
         if (phoneId != SubscriptionManager.INVALID_PHONE_INDEX) {
@@ -2103,7 +2251,7 @@ public class TelephonyConnectionService extends ConnectionService {
 
         Phone firstPhoneWithSim = null;
         int phoneCount = mTelephonyManagerProxy.getPhoneCount();
-        List<SlotStatus> phoneSlotStatus = new ArrayList<>(phoneCount);
+        List<EmergencySlotRanking.SlotStatus> phoneSlotStatus = new ArrayList<>(phoneCount);
         for (int i = 0; i < phoneCount; i++) {
             Phone phone = mPhoneFactoryProxy.getPhone(i);
             if (phone == null) {
@@ -2122,7 +2270,8 @@ public class TelephonyConnectionService extends ConnectionService {
             // 5)
             // Store the RAF Capabilities for sorting later.
             int radioAccessFamily = phone.getRadioAccessFamily();
-            SlotStatus status = new SlotStatus(i, radioAccessFamily);
+            EmergencySlotRanking.SlotStatus status =
+                    new EmergencySlotRanking.SlotStatus(i, radioAccessFamily);
             phoneSlotStatus.add(status);
             Log.i(this, "getFirstPhoneForEmergencyCall, RAF:" +
                     Integer.toHexString(radioAccessFamily) + " saved for Phone Id:" + i);
@@ -2131,10 +2280,7 @@ public class TelephonyConnectionService extends ConnectionService {
             int simState = mSubscriptionManagerProxy.getSimStateForSlotIdx(i);
             // Record SimState.
             status.simState = simState;
-            if (simState == TelephonyManager.SIM_STATE_PIN_REQUIRED ||
-                    simState == TelephonyManager.SIM_STATE_PUK_REQUIRED) {
-                status.isLocked = true;
-            }
+            status.isLocked = EmergencySlotRanking.isLocked(simState);
             // 3) Store if the Phone has the corresponding emergency number
             if (phonesWithEmergencyNumber != null) {
                 for (Phone phoneWithEmergencyNumber : phonesWithEmergencyNumber) {
@@ -2169,55 +2315,9 @@ public class TelephonyConnectionService extends ConnectionService {
             if (!phoneSlotStatus.isEmpty()) {
                 // Only sort if there are enough elements to do so.
                 if (phoneSlotStatus.size() > 1) {
-                    Collections.sort(phoneSlotStatus, (o1, o2) -> {
-                        if (!o1.hasDialedEmergencyNumber && o2.hasDialedEmergencyNumber) {
-                            return -1;
-                        }
-                        if (o1.hasDialedEmergencyNumber && !o2.hasDialedEmergencyNumber) {
-                            return 1;
-                        }
-                        // Sort by non-absent SIM.
-                        if (o1.simState == TelephonyManager.SIM_STATE_ABSENT
-                                && o2.simState != TelephonyManager.SIM_STATE_ABSENT) {
-                            return -1;
-                        }
-                        if (o2.simState == TelephonyManager.SIM_STATE_ABSENT
-                                && o1.simState != TelephonyManager.SIM_STATE_ABSENT) {
-                            return 1;
-                        }
-                        // First start by seeing if either of the phone slots are locked. If they
-                        // are, then sort by non-locked SIM first. If they are both locked, sort
-                        // by capability instead.
-                        if (o1.isLocked && !o2.isLocked) {
-                            return -1;
-                        }
-                        if (o2.isLocked && !o1.isLocked) {
-                            return 1;
-                        }
-                        // sort by number of RadioAccessFamily Capabilities.
-                        int compare = RadioAccessFamily.compare(o1.capabilities, o2.capabilities);
-                        if (compare == 0) {
-                            if (firstOccupiedSlot != null) {
-                                // If the RAF capability is the same, choose based on whether or
-                                // not any of the slots are occupied with a SIM card (if both
-                                // are, always choose the first).
-                                if (o1.slotId == firstOccupiedSlot.getPhoneId()) {
-                                    return 1;
-                                } else if (o2.slotId == firstOccupiedSlot.getPhoneId()) {
-                                    return -1;
-                                }
-                            } else {
-                                // No slots have SIMs detected in them, so weight the default
-                                // Phone Id greater than the others.
-                                if (o1.slotId == defaultPhoneId) {
-                                    return 1;
-                                } else if (o2.slotId == defaultPhoneId) {
-                                    return -1;
-                                }
-                            }
-                        }
-                        return compare;
-                    });
+                    Collections.sort(phoneSlotStatus, EmergencySlotRanking.comparator(
+                            firstOccupiedSlot == null ? SubscriptionManager.INVALID_PHONE_INDEX
+                                    : firstOccupiedSlot.getPhoneId(), defaultPhoneId));
                 }
                 int mostCapablePhoneId = phoneSlotStatus.get(phoneSlotStatus.size() - 1).slotId;
                 Log.i(this, "getFirstPhoneForEmergencyCall, Using Phone Id: " + mostCapablePhoneId +
@@ -2230,6 +2330,55 @@ public class TelephonyConnectionService extends ConnectionService {
         }
     }
 
+    /**
+     * Ranks the slots for emergency calls, then keeps them ranked as the service state, radio
+     * capability and SIM state of each slot change.
+     */
+    @VisibleForTesting
+    public void startEmergencySlotRanking() {
+        int phoneCount = mTelephonyManagerProxy.getPhoneCount();
+        Phone defaultPhone = mPhoneFactoryProxy.getDefaultPhone();
+        mEmergencySlotRanking.reset(phoneCount,
+                defaultPhone == null ? SubscriptionManager.INVALID_PHONE_INDEX
+                        : defaultPhone.getPhoneId());
+        mEmergencySlotPhones = new Phone[phoneCount];
+        for (int i = 0; i < phoneCount; i++) {
+            Phone phone = mPhoneFactoryProxy.getPhone(i);
+            mEmergencySlotPhones[i] = phone;
+            if (phone != null) {
+                phone.registerForServiceStateChanged(mEmergencySlotHandler,
+                        MSG_EMERGENCY_SLOT_CHANGED, i);
+                phone.registerForRadioCapabilityChanged(mEmergencySlotHandler,
+                        MSG_EMERGENCY_SLOT_CHANGED, i);
+            }
+            updateEmergencySlot(i);
+        }
+    }
+
+    private void stopEmergencySlotRanking() {
+        for (Phone phone : mEmergencySlotPhones) {
+            if (phone != null) {
+                phone.unregisterForServiceStateChanged(mEmergencySlotHandler);
+                phone.unregisterForRadioCapabilityChanged(mEmergencySlotHandler);
+            }
+        }
+        mEmergencySlotPhones = new Phone[0];
+        mEmergencySlotRanking.clear();
+    }
+
+    /** Reads the state of a slot and ranks the slots for emergency calls again. */
+    @VisibleForTesting
+    public void updateEmergencySlot(int slotId) {
+        if (slotId < 0 || slotId >= mEmergencySlotPhones.length) {
+            return;
+        }
+        Phone phone = mEmergencySlotPhones[slotId];
+        mEmergencySlotRanking.update(slotId, phone == null ? null
+                : new EmergencySlotRanking.Slot(slotId, phone, phone.getRadioAccessFamily(),
+                        mSubscriptionManagerProxy.getSimStateForSlotIdx(slotId),
+                        mTelephonyManagerProxy.hasIccCard(slotId)));
+    }
+
     /**
      * Returns true if the state of the Phone is IN_SERVICE or available for emergency calling only.
      */
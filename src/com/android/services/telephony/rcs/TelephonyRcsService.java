@@ -33,6 +33,7 @@ import android.util.SparseArray;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.PhoneConfigurationManager;
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.phone.CarrierConfigDiff;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
@@ -102,6 +103,13 @@ public class TelephonyRcsService {
                         SubscriptionManager.INVALID_PHONE_INDEX);
                 int subId = bundle.getInt(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
                         SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+                // A change of subscription is reported as a change of every key.
+                if (!CarrierConfigDiff.mayHaveChanged(intent,
+                        CarrierConfigManager.KEY_USE_RCS_PRESENCE_BOOL,
+                        CarrierConfigManager.KEY_USE_RCS_SIP_OPTIONS_BOOL)) {
+                    Log.i(LOG_TAG, "Carrier config change does not affect RCS, slotId=" + slotId);
+                    return;
+                }
                 updateFeatureControllerSubscription(slotId, subId);
             }
         }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests for {@link CarrierConfigBinaryFile}, including a benchmark of restoring a 1,000 key
+ * carrier config from XML and from the binary format.
+ */
+@RunWith(JUnit4.class)
+public class CarrierConfigBinaryFileTest {
+    private static final String TAG = "CarrierConfigBinaryFileTest";
+    private static final int BENCHMARK_KEYS = 1000;
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), TAG);
+        mDir.mkdirs();
+        mFile = new File(mDir, "carrierconfig-test.bin");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        PersistableBundle nested = new PersistableBundle();
+        nested.putString("nested_string", "value");
+        nested.putIntArray("nested_int_array", new int[] {4, 5});
+        PersistableBundle config = new PersistableBundle();
+        config.putBoolean("bool", true);
+        config.putInt("int", 42);
+        config.putLong("long", 1L << 40);
+        config.putDouble("double", 0.5);
+        config.putString("string", "café");
+        config.putString("null_string", null);
+        config.putBooleanArray("bool_array", new boolean[] {true, false});
+        config.putIntArray("int_array", new int[] {1, 2, 3});
+        config.putLongArray("long_array", new long[] {7L});
+        config.putDoubleArray("double_array", new double[] {1.5, 2.5});
+        config.putStringArray("string_array", new String[] {"a", null, "c"});
+        config.putPersistableBundle("bundle", nested);
+
+        CarrierConfigBinaryFile.write(mFile, config);
+        CarrierConfigBinaryFile file = CarrierConfigBinaryFile.open(mFile);
+        PersistableBundle restored = file.readAll();
+
+        assertEquals(config.size(), file.size());
+        assertEquals(config.keySet(), restored.keySet());
+        assertEquals(42, restored.getInt("int"));
+        assertEquals(1L << 40, restored.getLong("long"));
+        assertEquals(0.5, restored.getDouble("double"), 0);
+        assertTrue(restored.getBoolean("bool"));
+        assertEquals("café", restored.getString("string"));
+        assertNull(restored.getString("null_string"));
+        assertArrayEquals(new int[] {1, 2, 3}, restored.getIntArray("int_array"));
+        assertArrayEquals(new long[] {7L}, restored.getLongArray("long_array"));
+        assertArrayEquals(new double[] {1.5, 2.5}, restored.getDoubleArray("double_array"), 0);
+        assertArrayEquals(new String[] {"a", null, "c"}, restored.getStringArray("string_array"));
+        assertEquals("value", restored.getPersistableBundle("bundle").getString("nested_string"));
+        assertArrayEquals(new int[] {4, 5},
+                restored.getPersistableBundle("bundle").getIntArray("nested_int_array"));
+    }
+
+    @Test
+    public void testGetSingleKey() throws Exception {
+        CarrierConfigBinaryFile.write(mFile, createConfig(BENCHMARK_KEYS));
+        CarrierConfigBinaryFile file = CarrierConfigBinaryFile.open(mFile);
+
+        assertEquals("value_504", file.get("key_504"));
+        assertEquals(500, file.get("key_500"));
+        assertEquals(0, file.get("key_0"));
+        assertNull(file.get("missing_key"));
+    }
+
+    @Test
+    public void testCorruptFileRejected() throws Exception {
+        CarrierConfigBinaryFile.write(mFile, createConfig(10));
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+
+        try {
+            CarrierConfigBinaryFile.open(mFile);
+            fail("Corrupt file was accepted");
+        } catch (CarrierConfigBinaryFile.InvalidFormatException expected) {
+        }
+    }
+
+    @Test
+    public void testXmlFileRejected() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            createConfig(10).writeToStream(out);
+        }
+
+        try {
+            CarrierConfigBinaryFile.open(mFile);
+            fail("XML file was accepted");
+        } catch (CarrierConfigBinaryFile.InvalidFormatException expected) {
+        }
+    }
+
+    @Test
+    public void testRestoreBenchmark() throws Exception {
+        PersistableBundle config = createConfig(BENCHMARK_KEYS);
+        File xmlFile = new File(mDir, "carrierconfig-test.xml");
+        try (FileOutputStream out = new FileOutputStream(xmlFile)) {
+            config.writeToStream(out);
+        }
+        CarrierConfigBinaryFile.write(mFile, config);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            try (FileInputStream in = new FileInputStream(xmlFile)) {
+                assertEquals(BENCHMARK_KEYS, PersistableBundle.readFromStream(in).size());
+            }
+        }
+        long xmlNanos = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_ITERATIONS;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            assertEquals(BENCHMARK_KEYS, CarrierConfigBinaryFile.open(mFile).readAll().size());
+        }
+        long binaryNanos = (SystemClock.elapsedRealtimeNanos() - start) / BENCHMARK_ITERATIONS;
+
+        Log.i(TAG, "restore of " + BENCHMARK_KEYS + " keys: xml=" + xmlNanos / 1000
+                + "us (" + xmlFile.length() + " bytes), binary=" + binaryNanos / 1000 + "us ("
+                + mFile.length() + " bytes)");
+        assertTrue(binaryNanos < xmlNanos);
+    }
+
+    /** @return a config of {@code size} keys with a mix of value types. */
+    private static PersistableBundle createConfig(int size) {
+        PersistableBundle config = new PersistableBundle();
+        for (int i = 0; i < size; i++) {
+            String key = "key_" + i;
+            switch (i % 5) {
+                case 0:
+                    config.putInt(key, i);
+                    break;
+                case 1:
+                    config.putBoolean(key, i % 2 == 0);
+                    break;
+                case 2:
+                    config.putStringArray(key, new String[] {"a" + i, "b" + i});
+                    break;
+                case 3:
+                    config.putIntArray(key, new int[] {i, i + 1, i + 2});
+                    break;
+                default:
+                    config.putString(key, "value_" + i);
+                    break;
+            }
+        }
+        return config;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+@RunWith(JUnit4.class)
+public class CarrierConfigCacheIndexTest {
+    private static final String PKG_A = "com.example.a";
+    private static final String PKG_B = "com.example.b";
+
+    private File mDir;
+    private long mNowMillis;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "CarrierConfigCacheIndexTest");
+        mDir.mkdirs();
+        mNowMillis = 1000;
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedBeyondFileLimit() throws Exception {
+        CarrierConfigCacheIndex index = createIndex(2, Long.MAX_VALUE);
+        String first = write(index, PKG_A, "8901", false);
+        String second = write(index, PKG_A, "8902", false);
+        // Reading the first file makes the second one the least recently used.
+        mNowMillis++;
+        index.recordAccess(first);
+
+        String third = write(index, PKG_B, "8903", false);
+
+        assertEquals(2, index.getFileCount());
+        assertTrue(new File(mDir, first).exists());
+        assertFalse(new File(mDir, second).exists());
+        assertTrue(new File(mDir, third).exists());
+    }
+
+    @Test
+    public void testEvictsBeyondByteLimitButNotPinnedFiles() throws Exception {
+        CarrierConfigCacheIndex index = createIndex(10, 250);
+        String override = write(index, PKG_A, "8901", true);
+        String cached = write(index, PKG_A, "8902", false);
+
+        write(index, PKG_A, "8903", false);
+
+        assertEquals(200, index.getTotalBytes());
+        assertTrue(new File(mDir, override).exists());
+        assertFalse(new File(mDir, cached).exists());
+    }
+
+    @Test
+    public void testDeletePackageOnlyDeletesItsFiles() throws Exception {
+        CarrierConfigCacheIndex index = createIndex(10, Long.MAX_VALUE);
+        String a = write(index, PKG_A, "8901", false);
+        String aOverride = write(index, PKG_A, "8901", true);
+        String b = write(index, PKG_B, "8901", false);
+
+        assertTrue(index.deletePackage(PKG_A));
+        assertFalse(index.deletePackage(PKG_A));
+
+        assertFalse(new File(mDir, a).exists());
+        assertFalse(new File(mDir, aOverride).exists());
+        assertTrue(new File(mDir, b).exists());
+        assertEquals(1, index.getFileCount());
+    }
+
+    @Test
+    public void testIndexPersisted() throws Exception {
+        CarrierConfigCacheIndex index = createIndex(3, Long.MAX_VALUE);
+        String first = write(index, PKG_A, "8901", false);
+        String second = write(index, PKG_A, "8902", false);
+        mNowMillis++;
+        index.recordAccess(first);
+        // The access time is saved with the next write, and survives a reboot.
+        String third = write(index, PKG_A, "8903", false);
+
+        CarrierConfigCacheIndex reloaded = createIndex(3, Long.MAX_VALUE);
+        assertEquals(3, reloaded.getFileCount());
+        write(reloaded, PKG_A, "8904", false);
+
+        assertTrue(new File(mDir, first).exists());
+        assertFalse(new File(mDir, second).exists());
+        assertTrue(new File(mDir, third).exists());
+    }
+
+    @Test
+    public void testAccessDoesNotRewriteIndex() throws Exception {
+        CarrierConfigCacheIndex index = createIndex(10, Long.MAX_VALUE);
+        String first = write(index, PKG_A, "8901", false);
+        File indexFile = new File(mDir, CarrierConfigCacheIndex.INDEX_FILENAME);
+        byte[] saved = Files.readAllBytes(indexFile.toPath());
+
+        mNowMillis++;
+        index.recordAccess(first);
+
+        assertArrayEquals(saved, Files.readAllBytes(indexFile.toPath()));
+    }
+
+    @Test
+    public void testRebuiltFromDirectoryWithoutIndex() throws Exception {
+        createFile("carrierconfig-" + PKG_A + "-8901-1.xml", 10);
+        createFile("carrierconfig-" + PKG_A + "-override-8901--1.bin", 10);
+        createFile("carrierconfig-" + PKG_B + "-nosim.bin", 10);
+        createFile("carrierconfig-lastknowngood-0.bin", 10);
+        createFile("unrelated.xml", 10);
+
+        CarrierConfigCacheIndex index = createIndex(10, Long.MAX_VALUE);
+
+        assertEquals(3, index.getFileCount());
+        assertTrue(index.deletePackage(PKG_A));
+        assertEquals(1, index.getFileCount());
+        assertTrue(new File(mDir, "carrierconfig-lastknowngood-0.bin").exists());
+    }
+
+    private CarrierConfigCacheIndex createIndex(int maxFiles, long maxBytes) {
+        return new CarrierConfigCacheIndex(mDir, maxFiles, maxBytes, () -> mNowMillis);
+    }
+
+    /** Writes a 100 byte config file and records it, as the loader does. */
+    private String write(CarrierConfigCacheIndex index, String pkg, String iccid,
+            boolean override) throws IOException {
+        String name = "carrierconfig-" + pkg + (override ? "-override" : "") + "-" + iccid
+                + "-1.bin";
+        createFile(name, 100);
+        mNowMillis++;
+        index.recordWrite(name, pkg, override);
+        return name;
+    }
+
+    private void createFile(String name, int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(mDir, name))) {
+            out.write(new byte[size]);
+        }
+    }
+}
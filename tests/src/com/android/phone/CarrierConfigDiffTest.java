@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Intent;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.util.ArraySet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+@RunWith(JUnit4.class)
+public class CarrierConfigDiffTest {
+    @Test
+    public void testDiff() {
+        PersistableBundle oldConfig = new PersistableBundle();
+        oldConfig.putInt("unchanged_int", 1);
+        oldConfig.putInt("changed_int", 1);
+        oldConfig.putString("removed_string", "a");
+        oldConfig.putString("null_string", null);
+        PersistableBundle newConfig = new PersistableBundle();
+        newConfig.putInt("unchanged_int", 1);
+        newConfig.putInt("changed_int", 2);
+        newConfig.putBoolean("added_bool", false);
+        newConfig.putString("null_string", null);
+
+        assertEquals(new ArraySet<>(Arrays.asList("changed_int", "removed_string", "added_bool")),
+                CarrierConfigDiff.diff(oldConfig, newConfig));
+    }
+
+    @Test
+    public void testDiffComparesArraysAndBundlesByContent() {
+        PersistableBundle oldNested = new PersistableBundle();
+        oldNested.putInt("nested", 1);
+        PersistableBundle oldConfig = new PersistableBundle();
+        oldConfig.putStringArray("string_array", new String[] {"a", "b"});
+        oldConfig.putIntArray("int_array", new int[] {1, 2});
+        oldConfig.putPersistableBundle("bundle", oldNested);
+        PersistableBundle newConfig = new PersistableBundle();
+        newConfig.putStringArray("string_array", new String[] {"a", "b"});
+        newConfig.putIntArray("int_array", new int[] {2, 1});
+        newConfig.putPersistableBundle("bundle", new PersistableBundle(oldNested));
+
+        assertEquals(Collections.singleton("int_array"),
+                CarrierConfigDiff.diff(oldConfig, newConfig));
+
+        // A value of another type under the same key is a change.
+        newConfig.putLongArray("int_array", new long[] {1, 2});
+        newConfig.putIntArray("string_array", new int[0]);
+        assertEquals(new ArraySet<>(Arrays.asList("int_array", "string_array")),
+                CarrierConfigDiff.diff(oldConfig, newConfig));
+    }
+
+    @Test
+    public void testDiffOfDefaultConfigIsEmpty() {
+        assertTrue(CarrierConfigDiff.diff(CarrierConfigManager.getDefaultConfig(),
+                CarrierConfigManager.getDefaultConfig()).isEmpty());
+    }
+
+    @Test
+    public void testIntersects() {
+        Set<String> keys = Collections.singleton("a");
+
+        // Unknown changes are relevant to everyone.
+        assertTrue(CarrierConfigDiff.intersects(null, keys));
+        assertTrue(CarrierConfigDiff.intersects(null, null));
+        // Listeners of every key are told of any change, but not of no change.
+        assertTrue(CarrierConfigDiff.intersects(Collections.singleton("b"), null));
+        assertFalse(CarrierConfigDiff.intersects(Collections.emptySet(), null));
+        assertFalse(CarrierConfigDiff.intersects(Collections.singleton("b"), keys));
+        assertTrue(CarrierConfigDiff.intersects(new ArraySet<>(Arrays.asList("a", "b")), keys));
+    }
+
+    @Test
+    public void testMayHaveChanged() {
+        Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        assertTrue(CarrierConfigDiff.mayHaveChanged(intent));
+        assertTrue(CarrierConfigDiff.mayHaveChanged(intent, "a"));
+
+        intent.putExtra(CarrierConfigDiff.EXTRA_CHANGED_KEYS, new String[0]);
+        assertFalse(CarrierConfigDiff.mayHaveChanged(intent));
+
+        intent.putExtra(CarrierConfigDiff.EXTRA_CHANGED_KEYS, new String[] {"b"});
+        assertTrue(CarrierConfigDiff.mayHaveChanged(intent));
+        assertFalse(CarrierConfigDiff.mayHaveChanged(intent, "a"));
+        assertTrue(CarrierConfigDiff.mayHaveChanged(intent, "a", "b"));
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.android.phone.CarrierConfigFetchTracker.PHASE_CARRIER;
+import static com.android.phone.CarrierConfigFetchTracker.PHASE_DEFAULT;
+import static com.android.phone.CarrierConfigFetchTracker.RESULT_CACHE;
+import static com.android.phone.CarrierConfigFetchTracker.RESULT_FAILED;
+import static com.android.phone.CarrierConfigFetchTracker.RESULT_FETCHED;
+import static com.android.phone.CarrierConfigFetchTracker.RESULT_NONE;
+import static com.android.phone.CarrierConfigFetchTracker.STEP_BIND;
+import static com.android.phone.CarrierConfigFetchTracker.STEP_CONNECTED;
+import static com.android.phone.CarrierConfigFetchTracker.STEP_LOOKUP;
+import static com.android.phone.CarrierConfigFetchTracker.TIMELINE_CAPACITY;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class CarrierConfigFetchTrackerTest {
+    private long mNowMillis;
+    private CarrierConfigFetchTracker mTracker;
+
+    @Before
+    public void setUp() {
+        mNowMillis = 1000;
+        mTracker = new CarrierConfigFetchTracker(2, () -> mNowMillis);
+    }
+
+    @Test
+    public void testCompletesAfterBothPhasesInEitherOrder() {
+        int sequence = mTracker.start(0, true /* fetchCarrier */);
+        mNowMillis += 30;
+
+        // The carrier app answers first, the load still waits for the default app.
+        assertFalse(mTracker.finish(0, sequence, PHASE_CARRIER, RESULT_FETCHED));
+        assertEquals(-1, mTracker.getTotalMillis(0));
+        mNowMillis += 20;
+        assertTrue(mTracker.finish(0, sequence, PHASE_DEFAULT, RESULT_CACHE));
+
+        assertEquals(50, mTracker.getTotalMillis(0));
+        assertEquals(RESULT_CACHE, mTracker.getPhaseResult(0, PHASE_DEFAULT));
+        assertEquals(RESULT_FETCHED, mTracker.getPhaseResult(0, PHASE_CARRIER));
+    }
+
+    @Test
+    public void testCompletesAfterDefaultPhaseWithoutCarrierApp() {
+        int sequence = mTracker.start(0, false /* fetchCarrier */);
+
+        assertFalse(mTracker.isPending(0, sequence, PHASE_CARRIER));
+        assertTrue(mTracker.finish(0, sequence, PHASE_DEFAULT, RESULT_FAILED));
+        assertEquals(RESULT_NONE, mTracker.getPhaseResult(0, PHASE_CARRIER));
+    }
+
+    @Test
+    public void testFailedPhaseWaitsForOtherPhase() {
+        int sequence = mTracker.start(0, true /* fetchCarrier */);
+
+        // A timeout of the default app does not complete the load while the carrier app runs.
+        assertFalse(mTracker.finish(0, sequence, PHASE_DEFAULT, RESULT_FAILED));
+        assertTrue(mTracker.isPending(0, sequence, PHASE_CARRIER));
+        assertTrue(mTracker.finish(0, sequence, PHASE_CARRIER, RESULT_FAILED));
+        assertEquals(RESULT_FAILED, mTracker.getPhaseResult(0, PHASE_DEFAULT));
+    }
+
+    @Test
+    public void testPhaseCompletesLoadOnlyOnce() {
+        int sequence = mTracker.start(0, false /* fetchCarrier */);
+
+        assertTrue(mTracker.finish(0, sequence, PHASE_DEFAULT, RESULT_FETCHED));
+        // For example a timeout racing the result.
+        assertFalse(mTracker.finish(0, sequence, PHASE_DEFAULT, RESULT_FAILED));
+        assertEquals(RESULT_FETCHED, mTracker.getPhaseResult(0, PHASE_DEFAULT));
+    }
+
+    @Test
+    public void testCancelledAndRestartedLoadsAreIgnored() {
+        int cancelled = mTracker.start(0, false /* fetchCarrier */);
+        mTracker.cancel(0);
+        assertFalse(mTracker.finish(0, cancelled, PHASE_DEFAULT, RESULT_FETCHED));
+
+        int superseded = mTracker.start(0, true /* fetchCarrier */);
+        int current = mTracker.start(0, false /* fetchCarrier */);
+        assertFalse(mTracker.finish(0, superseded, PHASE_DEFAULT, RESULT_FETCHED));
+        assertTrue(mTracker.isPending(0, current, PHASE_DEFAULT));
+        assertTrue(mTracker.finish(0, current, PHASE_DEFAULT, RESULT_FETCHED));
+    }
+
+    @Test
+    public void testPhonesAreIndependent() {
+        int sequence0 = mTracker.start(0, true /* fetchCarrier */);
+        int sequence1 = mTracker.start(1, false /* fetchCarrier */);
+
+        assertTrue(mTracker.finish(1, sequence1, PHASE_DEFAULT, RESULT_FETCHED));
+        assertTrue(mTracker.isPending(0, sequence0, PHASE_DEFAULT));
+        assertTrue(mTracker.isPending(0, sequence0, PHASE_CARRIER));
+    }
+
+    @Test
+    public void testTimelineRecordsStepsWithTimeSincePreviousStep() {
+        int sequence = mTracker.start(0, false /* fetchCarrier */);
+        mTracker.step(0, sequence, PHASE_DEFAULT, STEP_LOOKUP, "com.example.config");
+        mNowMillis += 5;
+        mTracker.step(0, sequence, PHASE_DEFAULT, STEP_BIND, null);
+        mNowMillis += 40;
+        mTracker.step(0, sequence, PHASE_DEFAULT, STEP_CONNECTED, null);
+        mNowMillis += 100;
+        mTracker.finish(0, sequence, PHASE_DEFAULT, RESULT_FETCHED);
+        mNowMillis += 10;
+        mTracker.broadcast(0);
+        // Only the first broadcast after the load is part of it.
+        mNowMillis += 10;
+        mTracker.broadcast(0);
+
+        List<String> events = export("event,");
+        assertEquals(7, events.size());
+        assertEquals("event,1000,0,1,load,start,,none,0", events.get(0));
+        assertEquals("event,1000,0,1,default,lookup,com.example.config,none,0", events.get(1));
+        assertEquals("event,1005,0,1,default,bind,com.example.config,none,5", events.get(2));
+        assertEquals("event,1045,0,1,default,connected,com.example.config,none,40",
+                events.get(3));
+        assertEquals("event,1145,0,1,default,done,com.example.config,fetched,100",
+                events.get(4));
+        assertEquals("event,1145,0,1,load,complete,,none,145", events.get(5));
+        assertEquals("event,1155,0,1,load,broadcast,,none,155", events.get(6));
+        assertTrue(export("latency,").contains("latency,default,connected,1,50,50,50"));
+    }
+
+    @Test
+    public void testTimelineIgnoresStepsOfFinishedPhases() {
+        int sequence = mTracker.start(0, false /* fetchCarrier */);
+        mTracker.finish(0, sequence, PHASE_DEFAULT, RESULT_CACHE);
+
+        // For example a service connecting after its phase timed out.
+        mTracker.step(0, sequence, PHASE_DEFAULT, STEP_CONNECTED, null);
+        mTracker.step(0, sequence, PHASE_CARRIER, STEP_LOOKUP, "com.example.carrier");
+
+        assertEquals(3, export("event,").size());
+    }
+
+    @Test
+    public void testTimelineKeepsMostRecentEvents() {
+        for (int i = 0; i < TIMELINE_CAPACITY; i++) {
+            mNowMillis++;
+            int sequence = mTracker.start(i % 2, false /* fetchCarrier */);
+            mTracker.finish(i % 2, sequence, PHASE_DEFAULT, RESULT_CACHE);
+        }
+
+        List<String> events = export("event,");
+        assertEquals(TIMELINE_CAPACITY, events.size());
+        // Each load recorded a start, a done and a complete event, the oldest were dropped.
+        assertTrue(events.get(0).startsWith("event," + (1000 + TIMELINE_CAPACITY * 2 / 3 + 1)));
+        assertTrue(events.get(TIMELINE_CAPACITY - 1).startsWith(
+                "event," + (1000 + TIMELINE_CAPACITY)));
+        assertTrue(export("latency,").contains(
+                "latency,load,complete," + TIMELINE_CAPACITY + ",0,0,0"));
+    }
+
+    private List<String> export(String prefix) {
+        StringWriter sw = new StringWriter();
+        mTracker.exportTimeline(new PrintWriter(sw));
+        List<String> lines = new ArrayList<>();
+        for (String line : sw.toString().split("\n")) {
+            if (line.startsWith(prefix)) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
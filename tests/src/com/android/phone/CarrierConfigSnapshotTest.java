@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.DisconnectCause;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CarrierConfigSnapshotTest {
+    @Test
+    public void testResolvesValues() {
+        PersistableBundle config = new PersistableBundle();
+        config.putBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL, true);
+        config.putBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_VIDEO_CALL_BOOL, false);
+        config.putInt(CarrierConfigManager.KEY_IMS_CONFERENCE_SIZE_LIMIT_INT, 6);
+        config.putStringArray(CarrierConfigManager.KEY_FILTERED_CNAP_NAMES_STRING_ARRAY,
+                new String[] {"UNKNOWN", "PRIVATE"});
+        config.putStringArray(
+                CarrierConfigManager.KEY_CALL_FORWARDING_BLOCKS_WHILE_ROAMING_STRING_ARRAY,
+                new String[] {"*21", "**21"});
+        config.putStringArray(
+                CarrierConfigManager.Gps.KEY_ES_SUPL_DATA_PLANE_ONLY_ROAMING_PLMN_STRING_ARRAY,
+                new String[] {"310260"});
+        config.putString(CarrierConfigManager.Gps.KEY_ES_EXTENSION_SEC_STRING, "150");
+        config.putIntArray(CarrierConfigManager.KEY_DISCONNECT_CAUSE_PLAY_BUSYTONE_INT_ARRAY,
+                new int[] {DisconnectCause.BUSY});
+
+        CarrierConfigSnapshot snapshot = CarrierConfigSnapshot.from(config);
+
+        assertTrue(snapshot.allowHoldInImsCall());
+        assertFalse(snapshot.allowHoldVideoCall());
+        assertEquals(6, snapshot.getImsConferenceSizeLimit());
+        assertTrue(snapshot.isFilteredCnapName("Private"));
+        assertFalse(snapshot.isFilteredCnapName("Alice"));
+        assertTrue(snapshot.isCallForwardingBlockedWhileRoaming("*21*5551234#"));
+        assertFalse(snapshot.isCallForwardingBlockedWhileRoaming("5551234"));
+        assertTrue(snapshot.isSuplDataPlaneOnlyRoamingPlmn("310260"));
+        assertFalse(snapshot.isSuplDataPlaneOnlyRoamingPlmn(null));
+        assertEquals(150, snapshot.getEmergencyExtensionSeconds());
+        assertTrue(snapshot.playsBusyToneFor(DisconnectCause.BUSY));
+        assertFalse(snapshot.playsBusyToneFor(DisconnectCause.CONGESTION));
+    }
+
+    @Test
+    public void testMissingKeysUseCallerDefaults() {
+        CarrierConfigSnapshot snapshot = CarrierConfigSnapshot.from(new PersistableBundle());
+
+        assertTrue(snapshot.supportImsCallForwardingWhileRoaming());
+        assertTrue(snapshot.allowHoldVideoCall());
+        assertTrue(snapshot.allowHoldCallDuringEmergency());
+        assertFalse(snapshot.allowHoldInImsCall());
+        assertEquals(CarrierConfigManager.Gps.SUPL_EMERGENCY_MODE_TYPE_CP_ONLY,
+                snapshot.getSuplControlPlaneSupport());
+        assertEquals(0, snapshot.getEmergencyExtensionSeconds());
+        assertFalse(snapshot.isFilteredCnapName("PRIVATE"));
+        assertFalse(snapshot.isCallForwardingBlockedWhileRoaming("*21"));
+        assertFalse(snapshot.playsBusyToneFor(DisconnectCause.BUSY));
+    }
+
+    @Test
+    public void testInvalidExtensionTimeIsZero() {
+        PersistableBundle config = new PersistableBundle();
+        config.putString(CarrierConfigManager.Gps.KEY_ES_EXTENSION_SEC_STRING, "soon");
+
+        assertEquals(0, CarrierConfigSnapshot.from(config).getEmergencyExtensionSeconds());
+    }
+
+    @Test
+    public void testSnapshotSharedPerMergedConfig() {
+        PersistableBundle override = new PersistableBundle();
+        override.putBoolean(CarrierConfigManager.KEY_CARRIER_ALLOW_TRANSFER_IMS_CALL_BOOL, true);
+        MergedCarrierConfig merged = MergedCarrierConfig.merge(null, null, null, override,
+                false /* hasCarrierPackage */, 0 /* generation */);
+
+        CarrierConfigSnapshot snapshot = merged.getSnapshot();
+
+        assertTrue(snapshot.allowTransferImsCall());
+        assertSame(snapshot, merged.getSnapshot());
+        // A config that changed is merged again and gets its own snapshot.
+        MergedCarrierConfig remerged = MergedCarrierConfig.merge(null, null, null, override,
+                false /* hasCarrierPackage */, 1 /* generation */);
+        assertNotSame(snapshot, remerged.getSnapshot());
+    }
+}
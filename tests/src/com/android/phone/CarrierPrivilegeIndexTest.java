@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Looper;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.telephony.uicc.UiccProfile;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(JUnit4.class)
+public class CarrierPrivilegeIndexTest {
+    private static final String CARRIER_PACKAGE = "com.example.carrier";
+    private static final String OTHER_PACKAGE = "com.example.other";
+    private static final int CARRIER_UID = 10100;
+    private static final int OTHER_UID = 10101;
+
+    @Mock PackageManager mPackageManager;
+
+    private final List<PackageInfo> mInstalledPackages = new ArrayList<>();
+    // Per phone, the packages its access rules grant privileges to.
+    private final Map<Integer, List<String>> mGrantedPackages = new HashMap<>();
+    private final UiccProfile[] mProfiles = new UiccProfile[2];
+    private final int[] mRulesCheckCount = new int[1];
+    private CarrierPrivilegeIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mPackageManager.getInstalledPackagesAsUser(anyInt(), anyInt()))
+                .thenReturn(mInstalledPackages);
+        mInstalledPackages.add(createPackageInfo(CARRIER_PACKAGE, CARRIER_UID));
+        mInstalledPackages.add(createPackageInfo(OTHER_PACKAGE, OTHER_UID));
+        mGrantedPackages.put(0, Collections.emptyList());
+        mGrantedPackages.put(1, Collections.emptyList());
+        mProfiles[0] = mock(UiccProfile.class);
+        mProfiles[1] = mock(UiccProfile.class);
+
+        CarrierPrivilegeIndex.RulesChecker checker = new CarrierPrivilegeIndex.RulesChecker() {
+            @Override
+            public int getPhoneCount() {
+                return 2;
+            }
+
+            @Override
+            public UiccProfile getProfile(int phoneId) {
+                return mProfiles[phoneId];
+            }
+
+            @Override
+            public int getCarrierPrivilegeStatus(int phoneId, PackageInfo packageInfo) {
+                mRulesCheckCount[0]++;
+                return mGrantedPackages.get(phoneId).contains(packageInfo.packageName)
+                        ? TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS
+                        : TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS;
+            }
+        };
+        mIndex = new CarrierPrivilegeIndex(mPackageManager, checker, Looper.getMainLooper());
+    }
+
+    @Test
+    public void testNotBuilt() {
+        assertNull(mIndex.getSnapshot());
+    }
+
+    @Test
+    public void testRulesLoaded() {
+        mGrantedPackages.put(1, Arrays.asList(CARRIER_PACKAGE));
+        mIndex.recomputePhone(1);
+
+        CarrierPrivilegeIndex.Snapshot snapshot = mIndex.getSnapshot();
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS,
+                snapshot.getStatusForUid(1, CARRIER_UID));
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS,
+                snapshot.getStatusForUid(0, CARRIER_UID));
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS,
+                snapshot.getStatusForUid(1, OTHER_UID));
+        assertEquals(1 << 1, snapshot.getPrivilegedPhonesForUid(CARRIER_UID));
+        assertEquals(Arrays.asList(CARRIER_PACKAGE), snapshot.getPackagesWithCarrierPrivileges(1));
+        assertTrue(snapshot.getPackagesWithCarrierPrivileges(0).isEmpty());
+        assertEquals(CarrierPrivilegeIndex.STATUS_UNKNOWN, snapshot.getStatusForUid(0, 12345));
+        assertEquals(CarrierPrivilegeIndex.STATUS_UNKNOWN,
+                snapshot.getStatusForUid(2, CARRIER_UID));
+    }
+
+    @Test
+    public void testRulesChangeRecomputesOnlyThatPhone() {
+        mIndex.recomputePhone(0);
+        CarrierPrivilegeIndex.Snapshot before = mIndex.getSnapshot();
+        mRulesCheckCount[0] = 0;
+
+        mGrantedPackages.put(0, Arrays.asList(OTHER_PACKAGE));
+        mIndex.recomputePhone(0);
+
+        assertEquals(mInstalledPackages.size(), mRulesCheckCount[0]);
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS,
+                mIndex.getSnapshot().getStatusForPackage(0, OTHER_PACKAGE));
+        // The snapshot published earlier does not change.
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS,
+                before.getStatusForPackage(0, OTHER_PACKAGE));
+    }
+
+    @Test
+    public void testPackageInstalledAndRemoved() throws Exception {
+        mIndex.recomputePhone(0);
+        final String newPackage = "com.example.new";
+        final int newUid = 10102;
+        mGrantedPackages.put(0, Arrays.asList(newPackage));
+        when(mPackageManager.getPackageInfo(eq(newPackage), anyInt()))
+                .thenReturn(createPackageInfo(newPackage, newUid));
+        mRulesCheckCount[0] = 0;
+
+        mIndex.recomputePackage(newPackage);
+
+        // Only the new package is checked, once per phone.
+        assertEquals(2, mRulesCheckCount[0]);
+        CarrierPrivilegeIndex.Snapshot snapshot = mIndex.getSnapshot();
+        assertTrue(snapshot.isIndexedPackage(newPackage));
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS,
+                snapshot.getStatusForUid(0, newUid));
+
+        mIndex.removePackage(newPackage);
+
+        snapshot = mIndex.getSnapshot();
+        assertFalse(snapshot.isIndexedPackage(newPackage));
+        assertEquals(CarrierPrivilegeIndex.STATUS_UNKNOWN, snapshot.getStatusForUid(0, newUid));
+        assertTrue(snapshot.getPackagesWithCarrierPrivileges(0).isEmpty());
+    }
+
+    @Test
+    public void testLookupsCheckCurrentProfile() {
+        mGrantedPackages.put(0, Arrays.asList(CARRIER_PACKAGE));
+        mIndex.recomputePhone(0);
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS,
+                mIndex.getStatusForUid(0, CARRIER_UID));
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS,
+                mIndex.getStatusForPackage(0, CARRIER_PACKAGE));
+        assertEquals(Arrays.asList(CARRIER_PACKAGE), mIndex.getPackagesWithCarrierPrivileges(0));
+
+        // A new card was inserted, and the index has not seen it yet.
+        mProfiles[0] = mock(UiccProfile.class);
+
+        assertEquals(CarrierPrivilegeIndex.STATUS_UNKNOWN, mIndex.getStatusForUid(0, CARRIER_UID));
+        assertEquals(CarrierPrivilegeIndex.STATUS_UNKNOWN,
+                mIndex.getStatusForPackage(0, CARRIER_PACKAGE));
+        assertNull(mIndex.getPackagesWithCarrierPrivileges(0));
+        // The other phone is still answered from the index.
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS,
+                mIndex.getStatusForUid(1, CARRIER_UID));
+    }
+
+    @Test
+    public void testLookupsSkipPhoneWithoutRules() {
+        mProfiles[1] = null;
+        mIndex.recomputePhone(1);
+
+        assertEquals(TelephonyManager.CARRIER_PRIVILEGE_STATUS_RULES_NOT_LOADED,
+                mIndex.getSnapshot().getStatusForUid(1, CARRIER_UID));
+        // The caller checks the card itself, as before the index existed.
+        assertEquals(CarrierPrivilegeIndex.STATUS_UNKNOWN, mIndex.getStatusForUid(1, CARRIER_UID));
+        assertNull(mIndex.getPackagesWithCarrierPrivileges(1));
+    }
+
+    @Test
+    public void testPrivilegedPackagesInReverseInstalledOrder() throws Exception {
+        mGrantedPackages.put(0, Arrays.asList(CARRIER_PACKAGE, OTHER_PACKAGE));
+        mIndex.recomputePhone(0);
+
+        assertEquals(Arrays.asList(OTHER_PACKAGE, CARRIER_PACKAGE),
+                mIndex.getPackagesWithCarrierPrivileges(0));
+        // Updating a package keeps its place.
+        when(mPackageManager.getPackageInfo(eq(CARRIER_PACKAGE), anyInt()))
+                .thenReturn(createPackageInfo(CARRIER_PACKAGE, CARRIER_UID));
+        mIndex.recomputePackage(CARRIER_PACKAGE);
+        assertEquals(Arrays.asList(OTHER_PACKAGE, CARRIER_PACKAGE),
+                mIndex.getPackagesWithCarrierPrivileges(0));
+    }
+
+    private static PackageInfo createPackageInfo(String packageName, int uid) {
+        PackageInfo pkgInfo = new PackageInfo();
+        pkgInfo.packageName = packageName;
+        pkgInfo.applicationInfo = new ApplicationInfo();
+        pkgInfo.applicationInfo.uid = uid;
+        return pkgInfo;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.PersistableBundle;
+
+import androidx.test.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+@RunWith(JUnit4.class)
+public class LastKnownGoodConfigStoreTest {
+    private static final String ICCID_1 = "89010000000000000001";
+    private static final String ICCID_2 = "89010000000000000002";
+
+    private File mDir;
+    private LastKnownGoodConfigStore mStore;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "LastKnownGoodConfigStoreTest");
+        mDir.mkdirs();
+        mStore = new LastKnownGoodConfigStore(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testRestoresConfigOfSameIccid() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putBoolean("bool", true);
+        config.putString("string", "value");
+
+        mStore.save(0, ICCID_1, config);
+        PersistableBundle restored = mStore.restore(0, ICCID_1);
+
+        assertEquals(config.keySet(), restored.keySet());
+        assertTrue(restored.getBoolean("bool"));
+        assertEquals("value", restored.getString("string"));
+        // The caller's config is left as it was.
+        assertEquals(2, config.size());
+    }
+
+    @Test
+    public void testOtherIccidOrSlotNotRestored() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putInt("int", 1);
+        mStore.save(0, ICCID_1, config);
+
+        assertNull(mStore.restore(0, ICCID_2));
+        assertNull(mStore.restore(1, ICCID_1));
+    }
+
+    @Test
+    public void testSaveReplacesConfigOfSlot() throws Exception {
+        PersistableBundle first = new PersistableBundle();
+        first.putInt("int", 1);
+        PersistableBundle second = new PersistableBundle();
+        second.putInt("int", 2);
+
+        mStore.save(0, ICCID_1, first);
+        mStore.save(0, ICCID_2, second);
+
+        assertNull(mStore.restore(0, ICCID_1));
+        assertEquals(2, mStore.restore(0, ICCID_2).getInt("int"));
+    }
+
+    @Test
+    public void testUnreadableFileDeleted() throws Exception {
+        File file = new File(mDir, "carrierconfig-lastknowngood-0.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {1, 2, 3});
+        }
+
+        assertNull(mStore.restore(0, ICCID_1));
+        assertFalse(file.exists());
+    }
+}
@@ -17,29 +17,40 @@
 package com.android.phone;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.Manifest;
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.location.LocationManager;
 import android.os.Build;
 import android.os.UserHandle;
 import android.telephony.LocationAccessPolicy;
+import android.telephony.LocationAccessPolicy.LocationPermissionResult;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.Invocation;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -182,6 +193,125 @@ public class LocationAccessPolicyTest {
                 LocationAccessPolicy.checkLocationPermission(mContext, mScenario.query));
     }
 
+    @Test
+    public void testCacheMatchesPolicy() {
+        setupScenario(mScenario);
+        LocationPermissionCache cache = new LocationPermissionCache(mContext);
+        assertEquals(mScenario.expectedResult, cache.checkLocationPermission(mScenario.query));
+        // An allowed decision is served from the cache the second time.
+        assertEquals(mScenario.expectedResult, cache.checkLocationPermission(mScenario.query));
+    }
+
+    @Test
+    public void testCacheNotesAppOpOnEveryCheck() {
+        setupScenario(mScenario);
+        LocationAccessPolicy.checkLocationPermission(mContext, mScenario.query);
+        int notesPerCheck = countNoteOps();
+        clearInvocations(mAppOpsManager);
+
+        LocationPermissionCache cache = new LocationPermissionCache(mContext);
+        cache.checkLocationPermission(mScenario.query);
+        cache.checkLocationPermission(mScenario.query);
+        assertEquals(2 * notesPerCheck, countNoteOps());
+    }
+
+    @Test
+    public void testCacheInvalidatedOnLocationModeChange() {
+        setupScenario(mScenario);
+        LocationPermissionCache cache = new LocationPermissionCache(mContext);
+        cache.checkLocationPermission(mScenario.query);
+
+        setupScenario(new Scenario(mScenario.appSdkLevel, mScenario.appHasFineManifest,
+                mScenario.appHasCoarseManifest, mScenario.fineAppOp, mScenario.coarseAppOp,
+                !mScenario.isDynamicLocationEnabled, mScenario.query, null, mScenario.name));
+        if (mScenario.expectedResult == LocationPermissionResult.ALLOWED) {
+            // Without a callback the earlier decision is reused.
+            assertEquals(mScenario.expectedResult, cache.checkLocationPermission(mScenario.query));
+        }
+
+        cache.onLocationModeChanged();
+        assertEquals(LocationAccessPolicy.checkLocationPermission(mContext, mScenario.query),
+                cache.checkLocationPermission(mScenario.query));
+    }
+
+    @Test
+    public void testCacheListensToAllUsers() {
+        new LocationPermissionCache(mContext);
+
+        ArgumentCaptor<IntentFilter> filter = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(mContext).registerReceiverAsUser(any(BroadcastReceiver.class), eq(UserHandle.ALL),
+                filter.capture(), isNull(), isNull());
+        assertTrue(filter.getValue().hasAction(LocationManager.MODE_CHANGED_ACTION));
+        assertTrue(filter.getValue().hasAction(Intent.ACTION_USER_SWITCHED));
+    }
+
+    @Test
+    public void testCacheInvalidatedOnUserSwitch() {
+        setupScenario(mScenario);
+        LocationPermissionCache cache = new LocationPermissionCache(mContext);
+        cache.checkLocationPermission(mScenario.query);
+
+        // Location of the new foreground user is in the opposite mode.
+        setupScenario(new Scenario(mScenario.appSdkLevel, mScenario.appHasFineManifest,
+                mScenario.appHasCoarseManifest, mScenario.fineAppOp, mScenario.coarseAppOp,
+                !mScenario.isDynamicLocationEnabled, mScenario.query, null, mScenario.name));
+        cache.onUserSwitched();
+        assertEquals(LocationAccessPolicy.checkLocationPermission(mContext, mScenario.query),
+                cache.checkLocationPermission(mScenario.query));
+    }
+
+    @Test
+    public void testCacheFollowsAppOpChange() {
+        setupScenario(mScenario);
+        LocationPermissionCache cache = new LocationPermissionCache(mContext);
+        cache.checkLocationPermission(mScenario.query);
+
+        int flippedFineAppOp = mScenario.fineAppOp == AppOpsManager.MODE_ALLOWED
+                ? AppOpsManager.MODE_ERRORED : AppOpsManager.MODE_ALLOWED;
+        setupScenario(new Scenario(mScenario.appSdkLevel, mScenario.appHasFineManifest,
+                mScenario.appHasCoarseManifest, flippedFineAppOp, flippedFineAppOp,
+                mScenario.isDynamicLocationEnabled, mScenario.query, null, mScenario.name));
+        // The app-op is noted on every check, so its change is seen before the callback.
+        assertEquals(LocationAccessPolicy.checkLocationPermission(mContext, mScenario.query),
+                cache.checkLocationPermission(mScenario.query));
+
+        cache.onAppOpChanged(AppOpsManager.OPSTR_FINE_LOCATION, mScenario.query.callingPackage);
+        assertEquals(LocationAccessPolicy.checkLocationPermission(mContext, mScenario.query),
+                cache.checkLocationPermission(mScenario.query));
+    }
+
+    @Test
+    public void testCacheInvalidatedOnPermissionChange() {
+        setupScenario(mScenario);
+        LocationPermissionCache cache = new LocationPermissionCache(mContext);
+        cache.checkLocationPermission(mScenario.query);
+
+        setupScenario(new Scenario(mScenario.appSdkLevel, !mScenario.appHasFineManifest,
+                !mScenario.appHasCoarseManifest, mScenario.fineAppOp, mScenario.coarseAppOp,
+                mScenario.isDynamicLocationEnabled, mScenario.query, null, mScenario.name));
+        if (mScenario.expectedResult == LocationPermissionResult.ALLOWED) {
+            assertEquals(mScenario.expectedResult, cache.checkLocationPermission(mScenario.query));
+
+            // A change for another uid leaves the decision in place.
+            cache.onPermissionsChanged(TESTING_UID + 1);
+            assertEquals(mScenario.expectedResult, cache.checkLocationPermission(mScenario.query));
+        }
+
+        cache.onPermissionsChanged(TESTING_UID);
+        assertEquals(LocationAccessPolicy.checkLocationPermission(mContext, mScenario.query),
+                cache.checkLocationPermission(mScenario.query));
+    }
+
+    private int countNoteOps() {
+        int count = 0;
+        for (Invocation invocation : mockingDetails(mAppOpsManager).getInvocations()) {
+            if (invocation.getMethod().getName().equals("noteOpNoThrow")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private void setupScenario(Scenario s) {
         when(mContext.checkPermission(eq(Manifest.permission.ACCESS_FINE_LOCATION),
                 anyInt(), anyInt())).thenReturn(s.appHasFineManifest
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.telephony.CarrierConfigManager;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link MergedCarrierConfig}, including a benchmark of getConfigForSubId throughput
+ * when every call merges the layers, as CarrierConfigLoader used to, and when calls share a
+ * merged snapshot.
+ */
+@RunWith(JUnit4.class)
+public class MergedCarrierConfigTest {
+    private static final String TAG = "MergedCarrierConfigTest";
+    private static final int BENCHMARK_ITERATIONS = 2000;
+
+    @Test
+    public void testLayerOrder() {
+        PersistableBundle defaultApp = new PersistableBundle();
+        defaultApp.putInt(CarrierConfigManager.KEY_MMS_MAX_MESSAGE_SIZE_INT, 1);
+        defaultApp.putBoolean(CarrierConfigManager.KEY_SHOW_APN_SETTING_CDMA_BOOL, true);
+        PersistableBundle carrierApp = new PersistableBundle();
+        carrierApp.putInt(CarrierConfigManager.KEY_MMS_MAX_MESSAGE_SIZE_INT, 2);
+        PersistableBundle override = new PersistableBundle();
+        override.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, false);
+
+        PersistableBundle merged = MergedCarrierConfig.merge(defaultApp, carrierApp, null,
+                override, true, 0).get();
+
+        assertEquals(2, merged.getInt(CarrierConfigManager.KEY_MMS_MAX_MESSAGE_SIZE_INT));
+        assertTrue(merged.getBoolean(CarrierConfigManager.KEY_SHOW_APN_SETTING_CDMA_BOOL));
+        // The override is applied last.
+        assertFalse(merged.getBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL));
+    }
+
+    @Test
+    public void testConfigAppliedByDefaultAppOnlyWithoutCarrierPackage() {
+        PersistableBundle defaultApp = new PersistableBundle();
+
+        assertTrue(MergedCarrierConfig.needsCarrierPackage(defaultApp, null, null));
+        assertTrue(MergedCarrierConfig.merge(defaultApp, null, null, null, false, 0).get()
+                .getBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL));
+        assertFalse(MergedCarrierConfig.merge(defaultApp, null, null, null, true, 0).get()
+                .getBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL));
+        assertFalse(MergedCarrierConfig.needsCarrierPackage(defaultApp, new PersistableBundle(),
+                null));
+    }
+
+    @Test
+    public void testIsBuiltFrom() {
+        PersistableBundle defaultApp = new PersistableBundle();
+        PersistableBundle override = new PersistableBundle();
+        MergedCarrierConfig merged = MergedCarrierConfig.merge(defaultApp, null, null, override,
+                false, 3);
+
+        assertTrue(merged.isBuiltFrom(defaultApp, null, null, override, 3));
+        // A layer replaced by an equal bundle still counts as a change.
+        assertFalse(merged.isBuiltFrom(new PersistableBundle(), null, null, override, 3));
+        assertFalse(merged.isBuiltFrom(defaultApp, null, null, null, 3));
+        // So does a layer modified in place.
+        assertFalse(merged.isBuiltFrom(defaultApp, null, null, override, 4));
+    }
+
+    @Test
+    public void testCopyDoesNotModifySnapshot() {
+        MergedCarrierConfig merged = MergedCarrierConfig.merge(null, null, null, null, false, 0);
+        int before = merged.get().getInt(CarrierConfigManager.KEY_MMS_MAX_MESSAGE_SIZE_INT);
+
+        merged.copy().putInt(CarrierConfigManager.KEY_MMS_MAX_MESSAGE_SIZE_INT, before + 1);
+
+        assertEquals(before,
+                merged.get().getInt(CarrierConfigManager.KEY_MMS_MAX_MESSAGE_SIZE_INT));
+    }
+
+    @Test
+    public void testGetConfigThroughputBenchmark() {
+        PersistableBundle defaultApp = createLayer(100);
+        PersistableBundle carrierApp = createLayer(50);
+        PersistableBundle persistentOverride = createLayer(5);
+        PersistableBundle override = createLayer(5);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            mergeEveryCall(defaultApp, carrierApp, persistentOverride, override);
+        }
+        long mergeEveryCallNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        MergedCarrierConfig snapshot = null;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            if (snapshot == null || !snapshot.isBuiltFrom(defaultApp, carrierApp,
+                    persistentOverride, override, 0)) {
+                snapshot = MergedCarrierConfig.merge(defaultApp, carrierApp, persistentOverride,
+                        override, false, 0);
+            }
+            snapshot.copy();
+        }
+        long snapshotNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, BENCHMARK_ITERATIONS + " calls: merge every call="
+                + mergeEveryCallNanos / 1000 + "us, shared snapshot=" + snapshotNanos / 1000
+                + "us");
+        assertTrue(snapshotNanos < mergeEveryCallNanos);
+    }
+
+    /** The merge CarrierConfigLoader#getConfigForSubId used to do on every call. */
+    private static PersistableBundle mergeEveryCall(PersistableBundle defaultApp,
+            PersistableBundle carrierApp, PersistableBundle persistentOverride,
+            PersistableBundle override) {
+        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
+        retConfig.putAll(defaultApp);
+        retConfig.putAll(carrierApp);
+        retConfig.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, true);
+        retConfig.putAll(persistentOverride);
+        retConfig.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, true);
+        retConfig.putAll(override);
+        return retConfig;
+    }
+
+    /** @return a layer holding {@code size} of the default keys. */
+    private static PersistableBundle createLayer(int size) {
+        PersistableBundle layer = CarrierConfigManager.getDefaultConfig();
+        int kept = 0;
+        for (String key : layer.keySet().toArray(new String[0])) {
+            if (kept++ >= size) layer.remove(key);
+        }
+        return layer;
+    }
+}
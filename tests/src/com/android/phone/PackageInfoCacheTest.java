@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.UserHandle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+@RunWith(JUnit4.class)
+public class PackageInfoCacheTest {
+    private static final String PACKAGE = "com.example.app";
+    private static final int UID = 10050;
+
+    @Mock private PackageManager mPackageManager;
+    private PackageInfoCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        setTargetSdk(Build.VERSION_CODES.P);
+        mCache = new PackageInfoCache(mPackageManager);
+    }
+
+    @Test
+    public void testLookupIsCached() throws Exception {
+        assertEquals(Build.VERSION_CODES.P, mCache.getTargetSdk(PACKAGE, UID));
+        assertEquals(Build.VERSION_CODES.P, mCache.getTargetSdk(PACKAGE, UID));
+
+        verify(mPackageManager, times(1))
+                .getApplicationInfoAsUser(eq(PACKAGE), anyInt(), any(UserHandle.class));
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    @Test
+    public void testPackageChangeInvalidates() throws Exception {
+        assertEquals(Build.VERSION_CODES.P, mCache.getTargetSdk(PACKAGE, UID));
+
+        setTargetSdk(Build.VERSION_CODES.Q);
+        mCache.invalidatePackage(PACKAGE);
+
+        assertEquals(Build.VERSION_CODES.Q, mCache.getTargetSdk(PACKAGE, UID));
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    @Test
+    public void testMissingPackageIsNotCached() throws Exception {
+        when(mPackageManager.getApplicationInfoAsUser(eq(PACKAGE), anyInt(),
+                any(UserHandle.class))).thenThrow(new PackageManager.NameNotFoundException());
+
+        assertEquals(Integer.MAX_VALUE, mCache.getTargetSdk(PACKAGE, UID));
+        assertEquals(Integer.MAX_VALUE, mCache.getTargetSdk(PACKAGE, UID));
+        assertEquals(0, mCache.getHitCount());
+    }
+
+    private void setTargetSdk(int targetSdk) throws Exception {
+        ApplicationInfo ai = new ApplicationInfo();
+        ai.targetSdkVersion = targetSdk;
+        when(mPackageManager.getApplicationInfoAsUser(eq(PACKAGE), anyInt(),
+                any(UserHandle.class))).thenReturn(ai);
+    }
+}
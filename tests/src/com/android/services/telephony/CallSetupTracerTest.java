@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import static com.android.services.telephony.CallSetupTracer.CAPACITY;
+import static com.android.services.telephony.CallSetupTracer.PHASE_ACTIVE;
+import static com.android.services.telephony.CallSetupTracer.PHASE_ALERTING;
+import static com.android.services.telephony.CallSetupTracer.PHASE_DDS_SWITCHED;
+import static com.android.services.telephony.CallSetupTracer.PHASE_DIALING;
+import static com.android.services.telephony.CallSetupTracer.PHASE_DIAL_ISSUED;
+import static com.android.services.telephony.CallSetupTracer.PHASE_RADIO_READY;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.telecom.DisconnectCause;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class CallSetupTracerTest {
+    private long mNowMillis;
+    private CallSetupTracer mTracer;
+
+    @Before
+    public void setUp() {
+        mNowMillis = 1000;
+        mTracer = new CallSetupTracer(() -> mNowMillis);
+    }
+
+    @Test
+    public void testRecordsTimeFromRequestToEachPhase() {
+        CallSetupTracer.Trace trace = mTracer.start();
+        markAt(trace, PHASE_RADIO_READY, 3000);
+        markAt(trace, PHASE_DDS_SWITCHED, 3500);
+        markAt(trace, PHASE_DIAL_ISSUED, 3500);
+        markAt(trace, PHASE_DIALING, 3600);
+        markAt(trace, PHASE_ALERTING, 4000);
+        markAt(trace, PHASE_ACTIVE, 6000);
+        // Only the first time a call becomes active counts, for example not after a hold.
+        markAt(trace, PHASE_ACTIVE, 7000);
+        mNowMillis = 11000;
+        trace.finish(DisconnectCause.LOCAL, true /* isEmergency */);
+        // Nothing is marked once the call disconnected.
+        markAt(trace, PHASE_RADIO_READY, 12000);
+
+        assertEquals(1, export("call,").size());
+        assertEquals("call,0,true," + DisconnectCause.LOCAL
+                + ",2000,2500,2500,2600,3000,5000,10000", export("call,").get(0));
+        assertTrue(export("latency,").contains("latency,radio_ready,1,2000,2000,2000"));
+        assertTrue(export("latency,").contains("latency,disconnected,1,10000,10000,10000"));
+    }
+
+    @Test
+    public void testPhasesNotReachedAreEmpty() {
+        CallSetupTracer.Trace trace = mTracer.start();
+        trace.mark(PHASE_DIAL_ISSUED);
+        trace.finish(DisconnectCause.ERROR, false /* isEmergency */);
+
+        assertEquals("call,0,false," + DisconnectCause.ERROR + ",,,0,,,,0",
+                export("call,").get(0));
+        assertTrue(export("latency,radio_ready").isEmpty());
+    }
+
+    @Test
+    public void testKeepsMostRecentFinishedTraces() {
+        // A call still being set up is not listed.
+        mTracer.start();
+        for (int i = 0; i < CAPACITY + 1; i++) {
+            mTracer.start().finish(DisconnectCause.LOCAL, false /* isEmergency */);
+        }
+
+        List<String> calls = export("call,");
+        assertEquals(CAPACITY, calls.size());
+        assertTrue(calls.get(0).startsWith("call,2,"));
+        assertTrue(calls.get(CAPACITY - 1).startsWith("call," + (CAPACITY + 1) + ","));
+        assertTrue(export("latency,").contains(
+                "latency,disconnected," + (CAPACITY + 1) + ",0,0,0"));
+    }
+
+    private void markAt(CallSetupTracer.Trace trace, int phase, long nowMillis) {
+        mNowMillis = nowMillis;
+        trace.mark(phase);
+    }
+
+    private List<String> export(String prefix) {
+        StringWriter sw = new StringWriter();
+        mTracer.exportTraces(new PrintWriter(sw));
+        List<String> lines = new ArrayList<>();
+        for (String line : sw.toString().split("\n")) {
+            if (line.startsWith(prefix)) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import android.telecom.Connection;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import dalvik.system.VMDebug;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ListenerArrayTest {
+    private static final int STATE_CHANGE_ROUNDS = 50;
+
+    private static class CountingListener extends TelephonyConnection.TelephonyConnectionListener {
+        int mStateChanges;
+
+        @Override
+        public void onStateChanged(Connection c, int state) {
+            mStateChanges++;
+        }
+    }
+
+    private final ListenerArray<TelephonyConnection.TelephonyConnectionListener> mListeners =
+            new ListenerArray<>(new TelephonyConnection.TelephonyConnectionListener[0]);
+
+    @Test
+    public void testAddAndRemove() {
+        CountingListener first = new CountingListener();
+        CountingListener second = new CountingListener();
+
+        assertTrue(mListeners.add(first));
+        assertTrue(mListeners.add(second));
+        assertFalse(mListeners.add(first));
+        assertEquals(2, mListeners.array().length);
+
+        assertTrue(mListeners.remove(first));
+        assertFalse(mListeners.remove(first));
+        assertEquals(1, mListeners.array().length);
+        assertEquals(second, mListeners.array()[0]);
+    }
+
+    /**
+     * Verifies that listeners added or removed while the listeners are notified are only affected
+     * from the next notification.
+     */
+    @Test
+    public void testChangesDuringNotificationApplyToTheNextOne() {
+        CountingListener added = new CountingListener();
+        CountingListener removed = new CountingListener();
+        TelephonyConnection.TelephonyConnectionListener changing =
+                new TelephonyConnection.TelephonyConnectionListener() {
+                    @Override
+                    public void onStateChanged(Connection c, int state) {
+                        mListeners.add(added);
+                        mListeners.remove(removed);
+                    }
+                };
+        mListeners.add(changing);
+        mListeners.add(removed);
+
+        notifyStateChanged();
+        assertEquals(0, added.mStateChanges);
+        assertEquals(1, removed.mStateChanges);
+
+        notifyStateChanged();
+        assertEquals(1, added.mStateChanges);
+        assertEquals(1, removed.mStateChanges);
+    }
+
+    /**
+     * Verifies that a connection notifying its listeners of state transitions allocates nothing
+     * for them: the transitions allocate as much with listeners as without.
+     */
+    @Test
+    public void testConnectionStateChangesDoNotAllocateForListeners() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        int withoutListeners = countStateChangeAllocations(c);
+
+        CountingListener[] listeners = new CountingListener[4];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new CountingListener();
+            c.addTelephonyConnectionListener(listeners[i]);
+        }
+        int withListeners = countStateChangeAllocations(c);
+
+        assertEquals(withoutListeners, withListeners);
+        for (CountingListener listener : listeners) {
+            assertEquals(2 * (STATE_CHANGE_ROUNDS + 1), listener.mStateChanges);
+        }
+    }
+
+    /**
+     * Moves the connection between the active and held states, after a first round to warm up
+     * so that nothing is allocated by resolving classes or methods.
+     * @return the number of objects the calling thread allocated for the measured rounds.
+     */
+    private static int countStateChangeAllocations(TelephonyConnection c) {
+        c.setTelephonyConnectionActive();
+        c.setTelephonyConnectionOnHold();
+
+        VMDebug.resetAllocCount(VMDebug.KIND_THREAD_ALLOCATED_OBJECTS);
+        VMDebug.startAllocCounting();
+        for (int i = 0; i < STATE_CHANGE_ROUNDS; i++) {
+            c.setTelephonyConnectionActive();
+            c.setTelephonyConnectionOnHold();
+        }
+        VMDebug.stopAllocCounting();
+        return VMDebug.getAllocCount(VMDebug.KIND_THREAD_ALLOCATED_OBJECTS);
+    }
+
+    private void notifyStateChanged() {
+        for (TelephonyConnection.TelephonyConnectionListener listener : mListeners.array()) {
+            listener.onStateChanged(null, Connection.STATE_ACTIVE);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.telephony.ServiceState;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.TelephonyTestBase;
+import com.android.internal.telephony.CommandsInterface;
+import com.android.internal.telephony.Phone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.Invocation;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the RadioOnHelper, which powers on the radio of every Phone and waits for them with a
+ * RadioOnStateListener each, including a simulation of the time to dial an emergency call when
+ * waiting for every radio and when retrying the call on the first radio ready.
+ *
+ * A radio which is ready reports it as soon as its listener registers for the service state, so
+ * before any retry timeout, and a radio which is never ready gives up after the retries. The
+ * tests assert the order of the events and the number of retries rather than the time taken.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RadioOnHelperTest extends TelephonyTestBase {
+    private static final String TAG = "RadioOnHelperTest";
+    private static final long TIMEOUT_MS = 5000;
+    // Time between retries of the listeners, so that a radio which is never ready gives up after
+    // MAX_NUM_RETRIES retries.
+    private static final long TIME_BETWEEN_RETRIES_MS = 200;
+    private static final int MAX_NUM_RETRIES = 2;
+    private static final boolean READY = true;
+    private static final boolean NEVER_READY = false;
+
+    @Mock TelephonyConnectionService.PhoneFactoryProxy mPhoneFactoryProxy;
+    @Mock CommandsInterface mMockCi;
+    private Phone[] mPhones;
+    private RadioOnHelper mHelper;
+    private final RadioOnStateListener mRetrySettings = new RadioOnStateListener();
+
+    private CountDownLatch mCompleted;
+    private Phone mCompletedPhone;
+    private boolean mCompletedRadioReady;
+    private volatile int mCompletedCount;
+
+    private final RadioOnStateListener.Callback mCallback = new RadioOnStateListener.Callback() {
+        @Override
+        public void onComplete(RadioOnStateListener listener, boolean isRadioReady) {
+            mCompletedPhone = listener == null ? null : listener.getPhone();
+            mCompletedRadioReady = isRadioReady;
+            mCompletedCount++;
+            mCompleted.countDown();
+        }
+
+        @Override
+        public boolean isOkToCall(Phone phone, int serviceState) {
+            return serviceState == ServiceState.STATE_IN_SERVICE
+                    || serviceState == ServiceState.STATE_EMERGENCY_ONLY;
+        }
+    };
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mRetrySettings.setTimeBetweenRetriesMillis(TIME_BETWEEN_RETRIES_MS);
+        mRetrySettings.setMaxNumRetries(MAX_NUM_RETRIES);
+        TelephonyManager tm =
+                (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        when(tm.getActiveModemCount()).thenReturn(2);
+        mCompleted = new CountDownLatch(1);
+    }
+
+    @Override
+    @After
+    public void tearDown() throws Exception {
+        mRetrySettings.setTimeBetweenRetriesMillis(5000);
+        mRetrySettings.setMaxNumRetries(5);
+        // Wait for the listeners to finish on the main looper.
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TIMEOUT_MS);
+        super.tearDown();
+    }
+
+    /**
+     * The radio of phone 1 is ready first, so the emergency call is retried on it without waiting
+     * for phone 0, and both radios were powered on right away.
+     */
+    @Test
+    @SmallTest
+    public void testFirstReady_CompletesOnFirstReadyPhone() throws Exception {
+        setupPhones(NEVER_READY, READY);
+        mHelper = createHelper(true /* isFirstReadyEnabled */);
+
+        mHelper.triggerRadioOnAndListen(mCallback, true, mPhones[0]);
+
+        assertTrue(mCompleted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TIMEOUT_MS);
+        assertTrue(mCompletedRadioReady);
+        assertSame(mPhones[1], mCompletedPhone);
+        verify(mPhones[0]).setRadioPower(eq(true), eq(true), eq(true), eq(false));
+        verify(mPhones[1]).setRadioPower(eq(true), eq(true), eq(false), eq(false));
+        // Phone 0 is no longer waited for, so it does not retry nor complete the call again.
+        verify(mPhones[0]).unregisterForServiceStateChanged(any(Handler.class));
+        assertEquals(1, mCompletedCount);
+    }
+
+    /**
+     * No radio is ready, so the call fails once every listener gave up, as without first-ready.
+     */
+    @Test
+    @SmallTest
+    public void testFirstReady_NoRadioReady() throws Exception {
+        setupPhones(NEVER_READY, NEVER_READY);
+        mHelper = createHelper(true /* isFirstReadyEnabled */);
+
+        mHelper.triggerRadioOnAndListen(mCallback, true, mPhones[0]);
+
+        assertTrue(mCompleted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(mCompletedRadioReady);
+        assertNull(mCompletedPhone);
+    }
+
+    /**
+     * Without first-ready, radios are only powered on by the listeners and the call is retried
+     * once every radio is ready or gave up, here once phone 0 retried until it gave up.
+     */
+    @Test
+    @SmallTest
+    public void testFirstReadyDisabled_WaitsForEveryRadio() throws Exception {
+        setupPhones(NEVER_READY, READY);
+        mHelper = createHelper(false /* isFirstReadyEnabled */);
+
+        mHelper.triggerRadioOnAndListen(mCallback, true, mPhones[0]);
+
+        assertTrue(mCompleted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mCompletedRadioReady);
+        assertNull(mCompletedPhone);
+        verify(mPhones[0], times(MAX_NUM_RETRIES)).setRadioPower(anyBoolean(), anyBoolean(),
+                anyBoolean(), anyBoolean());
+        verify(mPhones[1], never()).setRadioPower(anyBoolean(), anyBoolean(), anyBoolean(),
+                anyBoolean());
+    }
+
+    /**
+     * Simulates an emergency call with the radios off on a device where the radio of phone 0 never
+     * finds a network and the radio of phone 1 is ready right away, and reports the time until the
+     * call is retried with and without first-ready, in retry periods of the listeners.
+     */
+    @Test
+    public void testTimeToDialSimulation() throws Exception {
+        int waitForEveryRadioPeriods = simulateTimeToDial(false /* isFirstReadyEnabled */);
+        mCompleted = new CountDownLatch(1);
+        int firstReadyPeriods = simulateTimeToDial(true /* isFirstReadyEnabled */);
+
+        Log.i(TAG, "time to dial with phone 1 ready right away, in periods of "
+                + TIME_BETWEEN_RETRIES_MS + "ms: every radio=" + waitForEveryRadioPeriods
+                + ", first ready=" + firstReadyPeriods);
+        assertEquals(MAX_NUM_RETRIES + 1, waitForEveryRadioPeriods);
+        assertEquals(0, firstReadyPeriods);
+    }
+
+    /**
+     * Places the call and waits for it to be retried.
+     * @return the number of retry periods the call waited for phone 0: zero if it was retried
+     * before the first retry of phone 0, otherwise one more than the retries phone 0 took to give
+     * up.
+     */
+    private int simulateTimeToDial(boolean isFirstReadyEnabled) throws Exception {
+        setupPhones(NEVER_READY, READY);
+        mHelper = createHelper(isFirstReadyEnabled);
+
+        mHelper.triggerRadioOnAndListen(mCallback, true, mPhones[0]);
+
+        assertTrue(mCompleted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mCompletedRadioReady);
+        waitForHandlerAction(new Handler(Looper.getMainLooper()), TIMEOUT_MS);
+        // Each retry powers the radio on again, after the helper did with first-ready.
+        int retries = isFirstReadyEnabled ? -1 : 0;
+        for (Invocation invocation : mockingDetails(mPhones[0]).getInvocations()) {
+            if (invocation.getMethod().getName().equals("setRadioPower")) {
+                retries++;
+            }
+        }
+        return mCompletedPhone == null ? retries + 1 : retries;
+    }
+
+    private RadioOnHelper createHelper(boolean isFirstReadyEnabled) {
+        return new RadioOnHelper(mContext, isFirstReadyEnabled, mPhoneFactoryProxy) {
+            @Override
+            public boolean isAirplaneModeOn() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Sets up phones with their radio off. Each one that is ready reports a service state in which
+     * emergency calls can be placed as soon as the listener registers for it, the others never do.
+     */
+    private void setupPhones(boolean... isReady) {
+        mPhones = new Phone[isReady.length];
+        for (int i = 0; i < isReady.length; i++) {
+            Phone phone = mock(Phone.class);
+            phone.mCi = mMockCi;
+            ServiceState powerOff = new ServiceState();
+            powerOff.setState(ServiceState.STATE_POWER_OFF);
+            when(phone.getServiceState()).thenReturn(powerOff);
+            when(phone.getPhoneId()).thenReturn(i);
+            when(phone.isRadioOn()).thenReturn(false);
+            if (isReady[i]) {
+                ServiceState emergencyOnly = new ServiceState();
+                emergencyOnly.setState(ServiceState.STATE_EMERGENCY_ONLY);
+                doAnswer(invocation -> {
+                    Handler handler = invocation.getArgument(0);
+                    int what = invocation.getArgument(1);
+                    handler.obtainMessage(what, new AsyncResult(null, emergencyOnly, null))
+                            .sendToTarget();
+                    return null;
+                }).when(phone).registerForServiceStateChanged(any(Handler.class), anyInt(),
+                        any());
+            }
+            when(mPhoneFactoryProxy.getPhone(i)).thenReturn(phone);
+            mPhones[i] = phone;
+        }
+        when(mPhoneFactoryProxy.getPhones()).thenReturn(mPhones);
+    }
+}
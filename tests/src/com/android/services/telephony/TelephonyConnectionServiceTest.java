@@ -29,6 +29,7 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -51,6 +52,7 @@ import android.telecom.TelecomManager;
 import android.telephony.CarrierConfigManager;
 import android.telephony.RadioAccessFamily;
 import android.telephony.ServiceState;
+import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.telephony.emergency.EmergencyNumber;
 import android.test.suitebuilder.annotation.SmallTest;
@@ -65,6 +67,7 @@ import com.android.internal.telephony.PhoneSwitcher;
 import com.android.internal.telephony.ServiceStateTracker;
 import com.android.internal.telephony.emergency.EmergencyNumberTracker;
 import com.android.internal.telephony.gsm.SuppServiceNotification;
+import com.android.phone.CarrierConfigSnapshot;
 
 import org.junit.After;
 import org.junit.Before;
@@ -77,6 +80,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Unit tests for TelephonyConnectionService.
@@ -147,6 +151,9 @@ public class TelephonyConnectionServiceTest extends TelephonyTestBase {
                 .thenAnswer(invocation -> invocation.getArgument(1));
         mTestConnectionService.setPhoneNumberUtilsProxy(mPhoneNumberUtilsProxy);
         mTestConnectionService.setPhoneUtilsProxy(mPhoneUtilsProxy);
+        // Read the config the test sets on the context whenever it is needed.
+        mTestConnectionService.setCarrierConfigProxy(
+                subId -> CarrierConfigSnapshot.from(getTestContext().getCarrierConfig()));
         HandlerThread mockHandlerThread = mock(HandlerThread.class);
         doReturn(mockHandlerThread).when(mHandlerFactory).createHandlerThread(anyString());
         doReturn(null).when(mockHandlerThread).getLooper();
@@ -624,6 +631,96 @@ public class TelephonyConnectionServiceTest extends TelephonyTestBase {
         assertEquals(slot0Phone, resultPhone);
     }
 
+    /**
+     * Prerequisites:
+     * - Two or three slots, whose service state, radio capability and SIM state change randomly
+     * - The slots are ranked from their changes
+     *
+     * Result: getFirstPhoneForEmergencyCall returns the phone it returns when it queries the state
+     * of each slot, without querying the radio capability of any slot.
+     */
+    @Test
+    @SmallTest
+    public void testSlotRankingMatchesQueriedSlots() {
+        Random random = new Random(0);
+        for (int device = 0; device < 20; device++) {
+            int phoneCount = 2 + random.nextInt(2);
+            List<Phone> phones = new ArrayList<>();
+            for (int i = 0; i < phoneCount; i++) {
+                Phone phone = makeTestPhone(i, ServiceState.STATE_OUT_OF_SERVICE,
+                        false /*isEmergencyOnly*/);
+                when(mPhoneFactoryProxy.getPhone(eq(i))).thenReturn(phone);
+                phones.add(phone);
+                setRandomSlotState(random, phone);
+            }
+            when(mTelephonyManagerProxy.getPhoneCount()).thenReturn(phoneCount);
+            setDefaultPhone(phones.get(0));
+            mTestConnectionService.startEmergencySlotRanking();
+
+            for (int change = 0; change < 50; change++) {
+                int slotId = random.nextInt(phoneCount);
+                setRandomSlotState(random, phones.get(slotId));
+                mTestConnectionService.updateEmergencySlot(slotId);
+                when(mSubscriptionManagerProxy.getDefaultVoicePhoneId())
+                        .thenReturn(random.nextInt(phoneCount + 1) - 1);
+
+                List<Phone> phonesWithEmergencyNumber = null;
+                if (random.nextBoolean()) {
+                    phonesWithEmergencyNumber = new ArrayList<>();
+                    for (Phone phone : phones) {
+                        if (random.nextBoolean()) {
+                            phonesWithEmergencyNumber.add(phone);
+                        }
+                    }
+                }
+                Phone expectedPhone = mTestConnectionService.queryFirstPhoneForEmergencyCall(
+                        phonesWithEmergencyNumber);
+                for (Phone phone : phones) {
+                    clearInvocations(phone);
+                }
+
+                assertEquals(expectedPhone, mTestConnectionService.getFirstPhoneForEmergencyCall(
+                        phonesWithEmergencyNumber));
+                for (Phone phone : phones) {
+                    verify(phone, never()).getRadioAccessFamily();
+                }
+            }
+        }
+    }
+
+    /**
+     * Prerequisites:
+     * - MSIM Device, both slots out of service when they are ranked, slot 0 more capable
+     * - Slot 1 comes in service, and the call is placed before its change is ranked
+     *
+     * Result: getFirstPhoneForEmergencyCall returns the slot 1 phone, since it checks which slots
+     * are in service live.
+     */
+    @Test
+    @SmallTest
+    public void testSlotRankingChecksServiceStateLive() {
+        Phone slot0Phone = makeTestPhone(SLOT_0_PHONE_ID, ServiceState.STATE_OUT_OF_SERVICE,
+                false /*isEmergencyOnly*/);
+        Phone slot1Phone = makeTestPhone(SLOT_1_PHONE_ID, ServiceState.STATE_OUT_OF_SERVICE,
+                false /*isEmergencyOnly*/);
+        setDefaultPhone(slot0Phone);
+        setupDeviceConfig(slot0Phone, slot1Phone, SubscriptionManager.INVALID_PHONE_INDEX);
+        setPhoneSlotState(SLOT_0_PHONE_ID, TelephonyManager.SIM_STATE_READY);
+        setPhoneSlotState(SLOT_1_PHONE_ID, TelephonyManager.SIM_STATE_READY);
+        setPhoneRadioAccessFamily(slot0Phone, RadioAccessFamily.RAF_LTE);
+        setPhoneRadioAccessFamily(slot1Phone, RadioAccessFamily.RAF_GSM);
+        setSlotHasIccCard(SLOT_0_PHONE_ID, true /*isInserted*/);
+        setSlotHasIccCard(SLOT_1_PHONE_ID, true /*isInserted*/);
+        mTestConnectionService.startEmergencySlotRanking();
+        assertEquals(slot0Phone, mTestConnectionService.getFirstPhoneForEmergencyCall());
+
+        ServiceState inService = new ServiceState();
+        inService.setState(ServiceState.STATE_IN_SERVICE);
+        when(slot1Phone.getServiceState()).thenReturn(inService);
+
+        assertEquals(slot1Phone, mTestConnectionService.getFirstPhoneForEmergencyCall());
+    }
+
     /**
      * The modem has returned a temporary error when placing an emergency call on a phone with one
      * SIM slot.
@@ -1009,6 +1106,81 @@ public class TelephonyConnectionServiceTest extends TelephonyTestBase {
         }
     }
 
+    /**
+     * Test that the emergency call is placed on the first Phone whose radio is ready when the
+     * Phone chosen for the call is not ready yet, and that Telecom is told of its PhoneAccount.
+     */
+    @Test
+    @SmallTest
+    public void testCreateOutgoingEmergencyConnection_exitingApm_placeCallOnFirstReady() {
+        when(mDeviceState.isAirplaneModeOn(any())).thenReturn(true);
+        Phone testPhone = setupConnectionServiceInApm();
+        Phone readyPhone = mPhoneFactoryProxy.getPhones()[1];
+
+        ArgumentCaptor<RadioOnStateListener.Callback> callback =
+                ArgumentCaptor.forClass(RadioOnStateListener.Callback.class);
+        verify(mRadioOnHelper).triggerRadioOnAndListen(callback.capture(), eq(true),
+                eq(testPhone));
+
+        ServiceStateTracker readySst = mock(ServiceStateTracker.class);
+        when(readySst.isRadioOn()).thenReturn(true);
+        when(readyPhone.getServiceStateTracker()).thenReturn(readySst);
+        RadioOnStateListener listener = mock(RadioOnStateListener.class);
+        when(listener.getPhone()).thenReturn(readyPhone);
+        doReturn(PHONE_ACCOUNT_HANDLE_2).when(mPhoneUtilsProxy).makePstnPhoneAccountHandle(
+                readyPhone);
+
+        callback.getValue().onComplete(listener, true);
+        assertEquals(PHONE_ACCOUNT_HANDLE_2, mConnection.getPhoneAccountHandle());
+        Runnable delayDialRunnable = verifyRunnablePosted();
+
+        try {
+            doAnswer(invocation -> null).when(mContext).startActivity(any());
+            delayDialRunnable.run();
+            verify(readyPhone).dial(anyString(), any());
+            verify(testPhone, never()).dial(anyString(), any());
+        } catch (CallStateException e) {
+            // This shouldn't happen
+            fail();
+        }
+    }
+
+    /**
+     * Test that the emergency call stays on the Phone chosen for the call when its radio is ready
+     * as well as the radio of the first Phone ready.
+     */
+    @Test
+    @SmallTest
+    public void testCreateOutgoingEmergencyConnection_exitingApm_placeCallOnChosenIfReady() {
+        when(mDeviceState.isAirplaneModeOn(any())).thenReturn(true);
+        Phone testPhone = setupConnectionServiceInApm();
+        Phone readyPhone = mPhoneFactoryProxy.getPhones()[1];
+
+        ArgumentCaptor<RadioOnStateListener.Callback> callback =
+                ArgumentCaptor.forClass(RadioOnStateListener.Callback.class);
+        verify(mRadioOnHelper).triggerRadioOnAndListen(callback.capture(), eq(true),
+                eq(testPhone));
+
+        // Both Phones share the same ServiceStateTracker.
+        when(mSST.isRadioOn()).thenReturn(true);
+        RadioOnStateListener listener = mock(RadioOnStateListener.class);
+        when(listener.getPhone()).thenReturn(readyPhone);
+
+        callback.getValue().onComplete(listener, true);
+        verify(mPhoneUtilsProxy, never()).makePstnPhoneAccountHandle(readyPhone);
+        Runnable delayDialRunnable = verifyRunnablePosted();
+
+        try {
+            doAnswer(invocation -> null).when(mContext).startActivity(any());
+            delayDialRunnable.run();
+            verify(testPhone).dial(anyString(), any());
+            verify(readyPhone, never()).dial(anyString(), any());
+        } catch (CallStateException e) {
+            // This shouldn't happen
+            fail();
+        }
+    }
+
     /**
      * Test that the TelephonyConnectionService does not perform a DDS switch when the carrier
      * supports control-plane fallback.
@@ -1285,6 +1457,28 @@ public class TelephonyConnectionServiceTest extends TelephonyTestBase {
         when(mPhoneFactoryProxy.getPhone(eq(SLOT_1_PHONE_ID))).thenReturn(slot1Phone);
     }
 
+    private void setRandomSlotState(Random random, Phone phone) {
+        int[] serviceStates = {ServiceState.STATE_IN_SERVICE, ServiceState.STATE_OUT_OF_SERVICE,
+                ServiceState.STATE_POWER_OFF};
+        int[] radioAccessFamilies = {RadioAccessFamily.RAF_UNKNOWN, RadioAccessFamily.RAF_GSM,
+                RadioAccessFamily.RAF_LTE, RadioAccessFamily.RAF_GSM | RadioAccessFamily.RAF_LTE};
+        int[] simStates = {TelephonyManager.SIM_STATE_ABSENT, TelephonyManager.SIM_STATE_READY,
+                TelephonyManager.SIM_STATE_PIN_REQUIRED, TelephonyManager.SIM_STATE_PUK_REQUIRED,
+                TelephonyManager.SIM_STATE_NOT_READY};
+        ServiceState serviceState = new ServiceState();
+        serviceState.setState(serviceStates[random.nextInt(serviceStates.length)]);
+        // Mostly out of service, so that the slots are compared.
+        serviceState.setEmergencyOnly(random.nextInt(4) == 0);
+        if (random.nextInt(4) != 0) {
+            serviceState.setState(ServiceState.STATE_OUT_OF_SERVICE);
+        }
+        when(phone.getServiceState()).thenReturn(serviceState);
+        setPhoneRadioAccessFamily(phone,
+                radioAccessFamilies[random.nextInt(radioAccessFamilies.length)]);
+        setPhoneSlotState(phone.getPhoneId(), simStates[random.nextInt(simStates.length)]);
+        setSlotHasIccCard(phone.getPhoneId(), random.nextBoolean());
+    }
+
     private void setPhoneRadioAccessFamily(Phone phone, int radioAccessFamily) {
         when(phone.getRadioAccessFamily()).thenReturn(radioAccessFamily);
     }
@@ -1,12 +1,27 @@
 package com.android.services.telephony;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.AsyncResult;
 import android.os.Bundle;
+import android.os.Handler;
 import android.telecom.Connection;
+import android.telephony.ims.ImsCallProfile;
+
+import com.android.internal.telephony.Call;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Random;
 
 import androidx.test.runner.AndroidJUnit4;
 
@@ -22,4 +37,256 @@ public class TelephonyConnectionTest {
         assertEquals(codec, Connection.AUDIO_CODEC_AMR);
     }
 
+    /**
+     * Verifies that the carrier config is read once when the original connection is set, rather
+     * than on every state change of the call.
+     */
+    @Test
+    public void testCarrierConfigReadOncePerCall() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        c.setOriginalConnection(c.getOriginalConnection());
+        assertEquals(1, c.getCarrierConfigLoadCount());
+
+        for (Call.State state : new Call.State[] {
+                Call.State.DIALING, Call.State.ACTIVE, Call.State.HOLDING, Call.State.ACTIVE}) {
+            when(c.getOriginalConnection().getState()).thenReturn(state);
+            c.updateState();
+        }
+
+        assertEquals(1, c.getCarrierConfigLoadCount());
+    }
+
+    @Test
+    public void testCarrierConfigReadAgainWhenItsSubscriptionChanges() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        when(c.getPhone().getSubId()).thenReturn(1);
+        c.setOriginalConnection(c.getOriginalConnection());
+
+        // The config of another subscription changed.
+        c.getCarrierConfigChangeListener().onCarrierConfigChanged(1, 2, null);
+        c.updateState();
+        assertEquals(1, c.getCarrierConfigLoadCount());
+
+        c.getCarrierConfigChangeListener().onCarrierConfigChanged(0, 1, null);
+        c.updateState();
+        assertEquals(2, c.getCarrierConfigLoadCount());
+
+        when(c.getPhone().getSubId()).thenReturn(3);
+        c.updateState();
+        assertEquals(3, c.getCarrierConfigLoadCount());
+    }
+
+    @Test
+    public void testChangedInputOnlyRecomputesItsBits() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        c.setOriginalConnection(c.getOriginalConnection());
+        int recomputed = c.getBitGroupsRecomputed();
+
+        c.setIsUsingAssistedDialing(true);
+
+        assertEquals(recomputed + 1, c.getBitGroupsRecomputed());
+        assertTrue((c.getConnectionProperties() & Connection.PROPERTY_ASSISTED_DIALING) != 0);
+
+        c.setTtyEnabled(true);
+
+        assertEquals(recomputed + 2, c.getBitGroupsRecomputed());
+    }
+
+    @Test
+    public void testUnchangedInputsRecomputeNothing() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        c.setOriginalConnection(c.getOriginalConnection());
+        int capabilities = c.getConnectionCapabilities();
+        int recomputed = c.getBitGroupsRecomputed();
+
+        // Holdability only affects the capabilities that are always rebuilt.
+        c.setHoldable(false);
+
+        assertEquals(recomputed, c.getBitGroupsRecomputed());
+        assertEquals(capabilities, c.getConnectionCapabilities());
+    }
+
+    /**
+     * Verifies that only the extras that were added, changed or removed since the last update are
+     * sent to Telecom.
+     */
+    @Test
+    public void testOnlyChangedExtrasAreSent() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        Bundle extras = new Bundle();
+        extras.putString("unchanged", "1");
+        extras.putString("changed", "2");
+        extras.putString("removed", "3");
+        c.updateExtras(extras);
+        c.getPutTelephonyExtras().clear();
+
+        Bundle newExtras = new Bundle();
+        newExtras.putString("unchanged", "1");
+        newExtras.putString("changed", "4");
+        newExtras.putString("added", "5");
+        c.updateExtras(newExtras);
+
+        assertEquals(1, c.getPutTelephonyExtras().size());
+        Bundle sent = c.getPutTelephonyExtras().get(0);
+        assertEquals(2, sent.size());
+        assertEquals("4", sent.getString("changed"));
+        assertEquals("5", sent.getString("added"));
+        assertEquals(Arrays.asList("removed"), c.getRemovedTelephonyExtras());
+        assertEquals("1", c.getExtras().getString("unchanged"));
+        assertFalse(c.getExtras().containsKey("removed"));
+
+        // Nothing is sent when nothing changed.
+        c.updateExtras(new Bundle(newExtras));
+        assertEquals(1, c.getPutTelephonyExtras().size());
+    }
+
+    /**
+     * Verifies that remapped extras are compared, sent and removed under the key Telecom knows
+     * them by.
+     */
+    @Test
+    public void testRemappedExtrasChangedAndRemoved() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        Bundle extras = new Bundle();
+        extras.putString(ImsCallProfile.EXTRA_CHILD_NUMBER, "5551234");
+        extras.putString("unchanged", "1");
+        c.updateExtras(extras);
+        c.getPutTelephonyExtras().clear();
+
+        // The same remapped value is not sent again.
+        c.updateExtras(new Bundle(extras));
+        assertTrue(c.getPutTelephonyExtras().isEmpty());
+
+        extras.putString(ImsCallProfile.EXTRA_CHILD_NUMBER, "5556789");
+        c.updateExtras(new Bundle(extras));
+        assertEquals(1, c.getPutTelephonyExtras().size());
+        Bundle sent = c.getPutTelephonyExtras().get(0);
+        assertEquals(1, sent.size());
+        assertEquals("5556789", sent.getString(Connection.EXTRA_CHILD_ADDRESS));
+        assertTrue(c.getRemovedTelephonyExtras().isEmpty());
+
+        extras.remove(ImsCallProfile.EXTRA_CHILD_NUMBER);
+        extras.putString(ImsCallProfile.EXTRA_DISPLAY_TEXT, "subject");
+        c.updateExtras(new Bundle(extras));
+        assertEquals(2, c.getPutTelephonyExtras().size());
+        sent = c.getPutTelephonyExtras().get(1);
+        assertEquals(1, sent.size());
+        assertEquals("subject", sent.getString(Connection.EXTRA_CALL_SUBJECT));
+        assertEquals(Arrays.asList(Connection.EXTRA_CHILD_ADDRESS),
+                c.getRemovedTelephonyExtras());
+        assertFalse(c.getExtras().containsKey(Connection.EXTRA_CHILD_ADDRESS));
+        assertFalse(c.getExtras().containsKey(ImsCallProfile.EXTRA_CHILD_NUMBER));
+        assertEquals("1", c.getExtras().getString("unchanged"));
+    }
+
+    @Test
+    public void testCapabilitiesOnlyUpdatedWhenConferenceAvailabilityChanges() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        c.setOriginalConnection(c.getOriginalConnection());
+        Bundle extras = new Bundle();
+        extras.putBoolean(ImsCallProfile.EXTRA_CONFERENCE_AVAIL, true);
+        c.updateExtras(extras);
+        int recomputed = c.getBitGroupsRecomputed();
+
+        extras.putString("other", "1");
+        c.updateExtras(extras);
+        assertEquals(recomputed, c.getBitGroupsRecomputed());
+
+        extras.putBoolean(ImsCallProfile.EXTRA_CONFERENCE_AVAIL, false);
+        c.updateExtras(extras);
+        assertTrue(c.getBitGroupsRecomputed() > recomputed);
+    }
+
+    /**
+     * Verifies that an IMS call loses the capabilities to be disconnected or separated from its
+     * conference, and gets them back once it is handed over to GSM.
+     */
+    @Test
+    public void testConferenceTerminationCapabilitiesFollowHandover() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        when(c.getOriginalConnection().getAddress()).thenReturn("5551234");
+        c.setOriginalConnection(c.getOriginalConnection());
+        assertFalse((c.getConnectionCapabilities()
+                & Connection.CAPABILITY_SEPARATE_FROM_CONFERENCE) != 0);
+        ArgumentCaptor<Handler> handler = ArgumentCaptor.forClass(Handler.class);
+        ArgumentCaptor<Integer> what = ArgumentCaptor.forClass(Integer.class);
+        verify(c.getPhone()).registerForHandoverStateChanged(handler.capture(), what.capture(),
+                any());
+
+        // SRVCC hands the call over to a connection with the same address.
+        handler.getValue().handleMessage(handler.getValue().obtainMessage(what.getValue(),
+                new AsyncResult(null, c.getOriginalConnection(), null)));
+
+        assertFalse(c.wasImsConnection());
+        assertTrue((c.getConnectionCapabilities()
+                & Connection.CAPABILITY_SEPARATE_FROM_CONFERENCE) != 0);
+        assertTrue((c.getConnectionCapabilities()
+                & Connection.CAPABILITY_DISCONNECT_FROM_CONFERENCE) != 0);
+    }
+
+    /**
+     * Verifies that, whatever inputs change, the incremental capabilities and properties are the
+     * same as when all of them are rebuilt.
+     */
+    @Test
+    public void testIncrementalBitsMatchFullRebuild() {
+        TestTelephonyConnection c = new TestTelephonyConnection();
+        c.setOriginalConnection(c.getOriginalConnection());
+        Random random = new Random(0);
+
+        for (int i = 0; i < 2000; i++) {
+            switch (random.nextInt(14)) {
+                case 0:
+                    c.setIsUsingAssistedDialing(random.nextBoolean());
+                    break;
+                case 1:
+                    c.setIsNetworkIdentifiedEmergencyCall(random.nextBoolean());
+                    break;
+                case 2:
+                    c.setIsAdhocConferenceCall(random.nextBoolean());
+                    break;
+                case 3:
+                    c.setVideoPauseSupported(random.nextBoolean());
+                    break;
+                case 4:
+                    c.setOriginalConnectionCapabilities(random.nextInt());
+                    break;
+                case 5:
+                    c.setAudioQuality(random.nextInt(3));
+                    break;
+                case 6:
+                    c.setTtyEnabled(random.nextBoolean());
+                    break;
+                case 7:
+                    c.setHoldable(random.nextBoolean());
+                    break;
+                case 8:
+                    c.setTelephonyVideoState(random.nextInt(4));
+                    break;
+                case 9:
+                    c.setCallRadioTech(random.nextInt(20));
+                    break;
+                case 10:
+                    c.setActive();
+                    break;
+                case 11:
+                    c.setOnHold();
+                    break;
+                case 12:
+                    c.onHostedConferencesChanged();
+                    break;
+                default:
+                    Bundle extras = new Bundle();
+                    extras.putBoolean(ImsCallProfile.EXTRA_CONFERENCE_AVAIL,
+                            random.nextBoolean());
+                    c.updateExtras(extras);
+                    break;
+            }
+            c.updateConnectionCapabilities();
+            c.updateConnectionProperties();
+
+            assertEquals(c.rebuildConnectionCapabilities(), c.getConnectionCapabilities());
+            assertEquals(c.rebuildConnectionProperties(), c.getConnectionProperties());
+        }
+    }
 }
@@ -35,6 +35,8 @@ import com.android.internal.telephony.Connection;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.emergency.EmergencyNumberTracker;
+import com.android.phone.CarrierConfigLoader;
+import com.android.phone.CarrierConfigSnapshot;
 
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -65,8 +67,12 @@ public class TestTelephonyConnection extends TelephonyConnection {
 
     private Phone mMockPhone;
     private int mNotifyPhoneAccountChangedCount = 0;
+    private int mCarrierConfigLoadCount = 0;
+    private CarrierConfigLoader.ConfigChangeListener mCarrierConfigChangeListener;
     private List<String> mLastConnectionEvents = new ArrayList<>();
     private List<Bundle> mLastConnectionEventExtras = new ArrayList<>();
+    private List<Bundle> mPutTelephonyExtras = new ArrayList<>();
+    private List<String> mRemovedTelephonyExtras = new ArrayList<>();
 
     @Override
     public com.android.internal.telephony.Connection getOriginalConnection() {
@@ -142,6 +148,18 @@ public class TestTelephonyConnection extends TelephonyConnection {
         mLastConnectionEventExtras.add(extras);
     }
 
+    @Override
+    public void putTelephonyExtras(Bundle extras) {
+        mPutTelephonyExtras.add(extras);
+        super.putTelephonyExtras(extras);
+    }
+
+    @Override
+    public void removeTelephonyExtras(List<String> keys) {
+        mRemovedTelephonyExtras.addAll(keys);
+        super.removeTelephonyExtras(keys);
+    }
+
     @Override
     void clearOriginalConnection() {
         // Do nothing since the original connection is mock object
@@ -154,6 +172,24 @@ public class TestTelephonyConnection extends TelephonyConnection {
         return new PersistableBundle();
     }
 
+    @Override
+    protected CarrierConfigSnapshot loadCarrierConfigSnapshot(int subId) {
+        mCarrierConfigLoadCount++;
+        return CarrierConfigSnapshot.from(getCarrierConfig());
+    }
+
+    @Override
+    protected void registerCarrierConfigChangeListener(
+            CarrierConfigLoader.ConfigChangeListener listener) {
+        mCarrierConfigChangeListener = listener;
+    }
+
+    @Override
+    protected void unregisterCarrierConfigChangeListener(
+            CarrierConfigLoader.ConfigChangeListener listener) {
+        mCarrierConfigChangeListener = null;
+    }
+
     @Override
     public CharSequence getResourceText(int messageId) {
         return "TEST";
@@ -173,6 +209,14 @@ public class TestTelephonyConnection extends TelephonyConnection {
         return mNotifyPhoneAccountChangedCount;
     }
 
+    public int getCarrierConfigLoadCount() {
+        return mCarrierConfigLoadCount;
+    }
+
+    public CarrierConfigLoader.ConfigChangeListener getCarrierConfigChangeListener() {
+        return mCarrierConfigChangeListener;
+    }
+
     public List<String> getLastConnectionEvents() {
         return mLastConnectionEvents;
     }
@@ -180,4 +224,12 @@ public class TestTelephonyConnection extends TelephonyConnection {
     public List<Bundle> getLastConnectionEventExtras() {
         return mLastConnectionEventExtras;
     }
+
+    public List<Bundle> getPutTelephonyExtras() {
+        return mPutTelephonyExtras;
+    }
+
+    public List<String> getRemovedTelephonyExtras() {
+        return mRemovedTelephonyExtras;
+    }
 }
@@ -36,6 +36,7 @@ import androidx.test.runner.AndroidJUnit4;
 import com.android.TelephonyTestBase;
 import com.android.ims.FeatureConnector;
 import com.android.ims.RcsFeatureManager;
+import com.android.phone.CarrierConfigDiff;
 
 import org.junit.After;
 import org.junit.Before;
@@ -211,10 +212,33 @@ public class TelephonyRcsServiceTest extends TelephonyTestBase {
         verify(mFeatureControllerSlot0).updateAssociatedSubscription(1);
     }
 
+    @Test
+    public void testCarrierConfigUpdateUnrelatedKeysIgnored() {
+        setCarrierConfig(CarrierConfigManager.KEY_USE_RCS_PRESENCE_BOOL, true /*isEnabled*/);
+        createRcsService(1 /*numSlots*/);
+        verify(mFeatureControllerSlot0).connect();
+
+        // Only keys that RCS does not use changed.
+        sendCarrierConfigChanged(0 /*slotId*/, 1 /*subId*/,
+                new String[] {CarrierConfigManager.KEY_MMS_MAX_MESSAGE_SIZE_INT});
+        verify(mFeatureControllerSlot0, never()).updateAssociatedSubscription(anyInt());
+
+        sendCarrierConfigChanged(0 /*slotId*/, 1 /*subId*/,
+                new String[] {CarrierConfigManager.KEY_USE_RCS_PRESENCE_BOOL});
+        verify(mFeatureControllerSlot0).updateAssociatedSubscription(1);
+    }
+
     private void sendCarrierConfigChanged(int slotId, int subId) {
+        sendCarrierConfigChanged(slotId, subId, null /*changedKeys*/);
+    }
+
+    private void sendCarrierConfigChanged(int slotId, int subId, String[] changedKeys) {
         Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
         intent.putExtra(CarrierConfigManager.EXTRA_SLOT_INDEX, slotId);
         intent.putExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX, subId);
+        if (changedKeys != null) {
+            intent.putExtra(CarrierConfigDiff.EXTRA_CHANGED_KEYS, changedKeys);
+        }
         mReceiverCaptor.getValue().onReceive(mContext, intent);
     }
 